@@ -1,15 +1,57 @@
 package CGlab;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.imageio.ImageIO;
 
 public class App {
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--benchmark")) {
+            runBenchmark(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // opcje na końcu: --format=... (bez niego format z rozszerzenia ścieżki, domyślnie PNG) i --metrics
+        // (liczniki i czasy etapów RenderMetrics wypisane po zapisie klatki)
+        ImageFormat format = null;
+        boolean metrics = false;
+        while (args.length > 0 && args[args.length - 1].startsWith("--")) {
+            String option = args[args.length - 1];
+            if (option.equals("--metrics")) {
+                metrics = true;
+            } else if (option.startsWith("--format=")) {
+                try {
+                    format = ImageFormat.forName(option.substring("--format=".length()));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Invalid image format. Valid options are: png, rgba, bgra, ppm, qoi.");
+                    return;
+                }
+            } else {
+                System.out.println("Unknown option " + option + ". Valid options are: --format=..., --metrics.");
+                return;
+            }
+            args = Arrays.copyOf(args, args.length - 1);
+        }
         if (args.length < 3 || args.length > 4) {
-            System.out.println("Usage: java CGlab.App <path> <width> <height> [<lineAlgo>]");
+            System.out.println("Usage: java CGlab.App <path> <width> <height> [<lineAlgo>] "
+                               + "[--format=png|rgba|bgra|ppm|qoi] [--metrics]");
+            System.out.println("       java CGlab.App --benchmark [shapes=sphere,terrain,soup] [triangles=1000,...] "
+                               + "[resolutions=200x200,...] [frames=5] [format=png]");
             return;
         }
 
@@ -26,6 +68,18 @@ public class App {
             return;
         }
 
+        // --format wygrywa z rozszerzeniem ścieżki, a plik dostaje rozszerzenie formatu (nie bajty QOI w "x.png")
+        if (format != null) {
+            int dot = filePath.lastIndexOf('.');
+            if (dot <= Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf(java.io.File.separatorChar))) {
+                dot = filePath.length();
+            }
+            if (!filePath.substring(Math.min(dot + 1, filePath.length())).equalsIgnoreCase(format.getExtension())) {
+                filePath = filePath.substring(0, dot) + "." + format.getExtension();
+                System.out.println("Saving " + format + " to " + filePath);
+            }
+        }
+
         if (args.length == 4) {
             try {
                 lineAlgo = Renderer.LineAlgo.valueOf(args[3]);
@@ -39,8 +93,11 @@ public class App {
         //Renderer mainRenderer = new Renderer(filePath, width, height, lineAlgo);   
         //mainRenderer.clear();
 
+        if (metrics) RenderMetrics.enable();
+
         // lab 04 i 05:
         FlatShadingRenderer mainRenderer = new FlatShadingRenderer(filePath, width, height); 
+        if (format != null) mainRenderer.setImageFormat(format);
         mainRenderer.clear();
 
        // testy dla lab 02
@@ -49,31 +106,55 @@ public class App {
        
        // testy dla lab 03
        // testDrawingTriangles(mainRenderer, width, height);
+       // testRasterizer(width, height);
+       // testPixelWriteCost(width, height);
 
-       Model model01 = new Model();
-       Model model02 = new Model();
-
+       // siatka jest wczytywana raz, a dwa jelenie to dwie instancje z własnymi macierzami modelu
+       MeshLibrary meshes = new MeshLibrary();
+       Mesh deer;
        try {
-            model01.readOBJ("/Users/mike/Downloads/deer-mod.obj"); // tutaj ustaw ścieżkę!
-            model02.readOBJ("/Users/mike/Downloads/deer-mod.obj"); // tu też 
+            deer = meshes.acquire("/Users/mike/Downloads/deer-mod.obj"); // tutaj ustaw ścieżkę!
         } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
         
         // mainRenderer.backfaceCullingOff();  // tu sobie można sprawdzić co się stanie jak nie zrobimy 
         // mainRenderer.zbufferTestOff();      // backface culling albo testu z-buffora (lub obu)
+        // mainRenderer.lodOn();               // dalszy jeleń rysowany z uproszczonej siatki (LodChain)
         
-        model01.translate(new Vec3f(0.0f, 0.0f, -0.5f)); // odsuwamy od kamery nieco pierwszy model
-        model02.translate(new Vec3f(0.75f, 0.0f, -5.0f)); // drugi odsuwamy bardziej i w prawo
+        MeshInstance deer01 = new MeshInstance(deer).translate(new Vec3f(0.0f, 0.0f, -0.5f)); // odsuwamy od kamery nieco pierwszą instancję
+        MeshInstance deer02 = new MeshInstance(deer).translate(new Vec3f(0.75f, 0.0f, -5.0f)); // drugą odsuwamy bardziej i w prawo
+
+        // testy przyjmujące Model dostają kopie z wierzchołkami w układzie świata (MeshInstance.toModel)
+        // testTiledRendering(deer01.toModel(), width, height);
+        // testMeshCache("/Users/mike/Downloads/deer-mod.obj");
+        // testSimd(deer01.toModel(), width, height);
+        // testMatrixInverse();
+        // testRenderAllocations(width, height);
+        // testConcurrentFrameBuffer(deer01.toModel(), deer02.toModel(), width, height);
+        // testFaceOrder(new Model[] {deer02.toModel(), deer01.toModel()}, width, height);
+        // testVisibilityBuffer(new Model[] {deer01.toModel(), deer02.toModel()}, width, height);
+        // testNearPlaneClipping(width, height);
+        // testInstancing(width, height);
+        // testLod(width, height);
+        // testMeshOptimizer(width, height);
+        // testStreaming(width, height);
+        // testQuantizedMesh(width, height);
+        // testStripRendering(width, height);
+        // testAsyncSave(width, height);
+        // testImageFormats(width, height);
 
-        mainRenderer.render(model01);
-        mainRenderer.render(model02);
+        mainRenderer.render(deer01);
+        mainRenderer.render(deer02);
         
         try {
             mainRenderer.save();
         } catch (IOException ex) {
             Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, ex);
         }
+        meshes.release(deer);
+        if (metrics) System.out.println(RenderMetrics.snapshot());
     }
 
     // Funkcje testujące poprawność rozwiązania laboratorium 2 i 3:
@@ -82,6 +163,40 @@ public class App {
     // testDrawingTriangles - dzieli sobie obraz na 20 komórek i w każdej z nich rysuje losowy trójkąt,
     //                        dodatkowo wierzchołki trójkąta są zaznaczone kontrastowym kolorem aby można
     //                        było wizualnie ocenić poprawność rysowania
+    // testRasterizer - porównuje piksel po pikselu rasteryzer przyrostowy z Renderer.drawTriangle
+    //                  z niezależną wersją referencyjną, która sprawdza każdy piksel wprost z definicji;
+    //                  dodatkowo sprawdza, że piksele na krawędziach wspólnych dwóch trójkątów są zapisane raz
+    // testPixelWriteCost - mierzy koszt zapisu piksela przez BufferedImage.setRGB i przez FrameBuffer
+    // testMeshCache - porównuje czas parsowania OBJ z wczytaniem binarnego cache (MeshCache)
+    // testSimd - porównuje obraz i czas rasteryzacji SIMD (jdk.incubator.vector) ze skalarną
+    // runBenchmark - tryb --benchmark: skalowanie całego potoku na siatkach z MeshGenerator
+    // testMatrixInverse - sprawdza Matrix4f.invertInto i normalMatrixInto na macierzach z FlatShadingRenderer
+    // testRenderAllocations - sprawdza, że render() alokuje tyle samo niezależnie od liczby ścian modelu
+    // testTiledRendering - renderuje model jednowątkowo i kafelkowo-wielowątkowo, porównuje obrazy i czasy
+    // testConcurrentFrameBuffer - rysuje dwa modele do ConcurrentFrameBuffer z dwóch wątków naraz
+    //                             (i partiami ścian), porównuje z rysowaniem jednowątkowym
+    // testFaceOrder - rysuje modele w kolejności ścian z pliku i posortowane przez CommandBuffer,
+    //                 porównuje obrazy, liczbę zapisanych pikseli (overdraw) i czasy
+    // testVisibilityBuffer - porównuje renderowanie z buforem widoczności i bez niego, także po relight()
+    // testNearPlaneClipping - sprawdza NearPlaneClipper na losowych trójkątach i liczniki odrzucania/obcinania
+    //                         na scenie z terenem przechodzącym pod kamerą i modelami poza bryłą widzenia
+    // testInstancing - sprawdza liczniki odwołań i wyrzucanie w MeshLibrary, porównuje instancje z modelami
+    //                  o przesuniętych wierzchołkach i mierzy pamięć oraz czas 10 000 instancji jednej siatki
+    // testMeshOptimizer - sklejanie, czyszczenie i kolejność ścian (MeshOptimizer) na siatce z rozdzielonymi
+    //                     wierzchołkami i losową kolejnością: miary pamięci podręcznej, czasy i porównanie obrazów
+    // testLod - buduje LodChain sfery i terenu (liczba ścian, błąd, odchyłka od sfery, brzeg terenu) i porównuje
+    //           rząd coraz dalszych instancji narysowanych z LOD i bez, z liczbą zaoszczędzonych trójkątów
+    // testStreaming - zapisuje duży OBJ i porównuje obraz z ObjStream (też z małymi partiami i kolejką na jedną)
+    //                 z readOBJ + render, podaje pamięć i czas oczekiwania parsera i renderera
+    // testQuantizedMesh - cele QuantizedMesh: co najmniej 3x mniej pamięci niż float/int, indeksy bez strat,
+    //                     pomijalna różnica obrazu (także w dużym prostopadłościanie, z zapisanymi normalnymi)
+    //                     i czas rysowania najwyżej 2x dłuższy niż siatki nieskompresowanej
+    // testStripRendering - porównuje PNG z StripRenderer z pikselami całej klatki, mierzy czas i pamięć
+    //                      szczytową plakatu 4096 x 4096 rysowanego pasami
+    // testAsyncSave - PngWriter z wieloma blokami deflate (jeden wątek i pula dają te same bajty), kolejne
+    //                 klatki z save() i saveAsync() porównane z zapisanymi plikami
+    // testImageFormats - zapisuje klatkę każdym ImageFormat, odczytuje z powrotem i porównuje czas i rozmiar
+    //                    z ImageIO PNG (verticalFlip + ImageIO.write, jak dawniej save())
     public static void testDrawingLines(Renderer mainRenderer, int centerX, int centerY) {
         int length = 100;
         int numLines = 72; 
@@ -147,4 +262,1337 @@ public class App {
             mainRenderer.drawPoint((int)C.x, (int)C.y, 0xffff0000);
         }
     }
+
+    public static int testRasterizer(int width, int height) {
+        int numTriangles = 500;
+        Random random = new Random(42);
+        Renderer tested = new Renderer("test.png", width, height);
+        Renderer reference = new Renderer("reference.png", width, height);
+        tested.clear();
+        reference.clear();
+
+        for (int i = 0; i < numTriangles; i++) {
+            // część wierzchołków wychodzi poza obraz, żeby sprawdzić też obcinanie do ekranu
+            Vec3f A = new Vec3f(random.nextFloat() * width * 1.2f - width * 0.1f, random.nextFloat() * height * 1.2f - height * 0.1f, random.nextFloat());
+            Vec3f B = new Vec3f(random.nextFloat() * width * 1.2f - width * 0.1f, random.nextFloat() * height * 1.2f - height * 0.1f, random.nextFloat());
+            Vec3f C = new Vec3f(random.nextFloat() * width * 1.2f - width * 0.1f, random.nextFloat() * height * 1.2f - height * 0.1f, random.nextFloat());
+            int color = random.nextInt() | 0xff000000;
+
+            tested.drawTriangle(A, B, C, color);
+            drawTriangleReference(reference, A, B, C, color);
+        }
+
+        int differences = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (tested.render.getRGB(x, y) != reference.render.getRGB(x, y)) differences++;
+            }
+        }
+
+        // wspólne krawędzie: środek wachlarza w środku piksela, na krawędzi piksela i w dowolnym miejscu
+        int sharedEdgeFailures = 0;
+        float[] centers = {32, 32, 30, 33.5f, 27.3125f, 35.6875f, 40, 24};
+        for (int i = 0; i < centers.length; i += 2) {
+            sharedEdgeFailures += testSharedEdges(false, centers[i], centers[i + 1]);
+            sharedEdgeFailures += testSharedEdges(true, centers[i], centers[i + 1]);
+        }
+
+        System.out.println("Rasterizer test: " + differences + " differing pixels, " + sharedEdgeFailures
+                           + " pixels on shared edges not written exactly once");
+        return differences + sharedEdgeFailures;
+    }
+
+    // Rasteryzer referencyjny napisany wprost z definicji reguły top-left, bez funkcji z Renderer:
+    // punkt należy do trójkąta, jeśli leży ściśle po tej samej stronie każdej krawędzi co przeciwległy
+    // wierzchołek, a punkt leżący dokładnie na krawędzi - tylko wtedy, gdy to krawędź górna albo lewa.
+    // Nie zależy od orientacji trójkąta, więc wierzchołków nie zamieniamy.
+    private static void drawTriangleReference(Renderer r, Vec3f A, Vec3f B, Vec3f C, int color) {
+        int one = Renderer.SUBPIXEL_ONE;
+        long ax = Math.round(A.x * one), ay = Math.round(A.y * one);
+        long bx = Math.round(B.x * one), by = Math.round(B.y * one);
+        long cx = Math.round(C.x * one), cy = Math.round(C.y * one);
+
+        long sideA = side(bx, by, cx, cy, ax, ay); // A względem krawędzi BC
+        long sideB = side(cx, cy, ax, ay, bx, by); // B względem krawędzi CA
+        long sideC = side(ax, ay, bx, by, cx, cy); // C względem krawędzi AB
+        if (sideA == 0) return; // trójkąt zdegenerowany (wtedy wszystkie trzy są zerami)
+        boolean topLeftBC = isTopOrLeftEdge(bx, by, cx, cy, ax, ay);
+        boolean topLeftCA = isTopOrLeftEdge(cx, cy, ax, ay, bx, by);
+        boolean topLeftAB = isTopOrLeftEdge(ax, ay, bx, by, cx, cy);
+
+        int width = r.render.getWidth();
+        int height = r.render.getHeight();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                long px = (long) x * one;
+                long py = (long) y * one;
+                long wa = side(bx, by, cx, cy, px, py);
+                long wb = side(cx, cy, ax, ay, px, py);
+                long wc = side(ax, ay, bx, by, px, py);
+                boolean inside = (Long.signum(wa) == Long.signum(sideA) || (wa == 0 && topLeftBC))
+                              && (Long.signum(wb) == Long.signum(sideB) || (wb == 0 && topLeftCA))
+                              && (Long.signum(wc) == Long.signum(sideC) || (wc == 0 && topLeftAB));
+                if (!inside) continue;
+
+                // współrzędne barycentryczne: stosunek odległości od krawędzi do odległości wierzchołka
+                float Pz = (float) (A.z * ((double) wa / sideA) + B.z * ((double) wb / sideB)
+                                    + C.z * ((double) wc / sideC));
+                if (Pz < r.zbuffer.get(x, y)) {
+                    r.render.setRGB(x, y, color);
+                    r.zbuffer.depth[y * width + x] = Pz;
+                }
+            }
+        }
+    }
+
+    // Po której stronie prostej PQ leży punkt X: znak iloczynu wektorowego (X - P) x (Q - P), 0 na prostej.
+    private static long side(long px, long py, long qx, long qy, long x, long y) {
+        return (x - px) * (qy - py) - (y - py) * (qx - px);
+    }
+
+    // Oś y obrazu jest w save() odwracana, więc "góra" to większe y. Krawędź PQ z przeciwległym
+    // wierzchołkiem R jest górna, gdy jest pozioma, a R leży pod nią; lewa, gdy nie jest pozioma,
+    // a R leży na prawo od niej (wnętrze trójkąta ma na prawo).
+    private static boolean isTopOrLeftEdge(long px, long py, long qx, long qy, long rx, long ry) {
+        if (py == qy) return ry < py;
+        // x prostej PQ na wysokości R to px + (ry - py) * (qx - px) / (qy - py); porównujemy bez dzielenia
+        long lhs = (rx - px) * (qy - py), rhs = (ry - py) * (qx - px);
+        return qy > py ? lhs > rhs : lhs < rhs;
+    }
+
+    // Wachlarz 8 trójkątów wokół punktu wewnątrz kwadratu [16, 48] x [16, 48]: krawędzie wspólne są
+    // poziome, pionowe i ukośne i przechodzą przez środki pikseli, a co drugi trójkąt ma odwrotną orientację.
+    // Każdy piksel może być zapisany najwyżej raz, a piksel ściśle wewnątrz kwadratu dokładnie raz.
+    // Zwraca liczbę pikseli, które tego nie spełniają.
+    private static int testSharedEdges(boolean reference, float centerX, float centerY) {
+        int size = 64;
+        float[] ring = {16, 16, 32, 16, 48, 16, 48, 32, 48, 48, 32, 48, 16, 48, 16, 32};
+        Renderer r = new Renderer("edges.png", size, size);
+        int[] writes = new int[size * size];
+        for (int i = 0; i < 8; i++) {
+            Vec3f center = new Vec3f(centerX, centerY, 0.5f);
+            Vec3f B = new Vec3f(ring[2 * i], ring[2 * i + 1], 0.5f);
+            Vec3f C = new Vec3f(ring[(2 * i + 2) % 16], ring[(2 * i + 3) % 16], 0.5f);
+            r.clear();
+            if (i % 2 == 1) {Vec3f t = B; B = C; C = t;}
+            if (reference) drawTriangleReference(r, center, B, C, 0xffff0000);
+            else r.drawTriangle(center, B, C, 0xffff0000);
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (r.render.getRGB(x, y) == 0xffff0000) writes[y * size + x]++;
+                }
+            }
+        }
+
+        int failures = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                boolean interior = x > 16 && x < 48 && y > 16 && y < 48;
+                int n = writes[y * size + x];
+                if (n > 1 || (interior && n != 1)) failures++;
+            }
+        }
+        return failures;
+    }
+
+    public static int testTiledRendering(Model model, int width, int height) {
+        FlatShadingRenderer single = new FlatShadingRenderer("single.png", width, height);
+        FlatShadingRenderer tiled = new FlatShadingRenderer("tiled.png", width, height);
+        single.parallelRenderingOff();
+        single.clear();
+        tiled.clear();
+
+        long t0 = System.nanoTime();
+        single.render(model);
+        long t1 = System.nanoTime();
+        tiled.render(model);
+        long t2 = System.nanoTime();
+
+        int differences = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (single.render.getRGB(x, y) != tiled.render.getRGB(x, y)) differences++;
+            }
+        }
+        System.out.println("Tiled rendering test: " + differences + " differing pixels, single thread "
+                           + (t1 - t0) / 1000000 + " ms, tiled on " + Runtime.getRuntime().availableProcessors()
+                           + " cores " + (t2 - t1) / 1000000 + " ms");
+        return differences;
+    }
+
+    public static void testPixelWriteCost(int width, int height) {
+        int repeats = 20;
+        Renderer renderer = new Renderer("bench.png", width, height);
+        BufferedImage image = renderer.render;
+        FrameBuffer frameBuffer = renderer.frameBuffer;
+        double pixels = (double) width * height * repeats;
+
+        // kilka przebiegów rozgrzewających JIT, liczy się ostatni
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            for (int r = 0; r < repeats; r++) {
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        image.setRGB(x, y, 0xff000000 | (x ^ y ^ r));
+                    }
+                }
+            }
+            long t1 = System.nanoTime();
+            for (int r = 0; r < repeats; r++) {
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        frameBuffer.setPixel(x, y, 0xff000000 | (x ^ y ^ r));
+                    }
+                }
+            }
+            long t2 = System.nanoTime();
+            for (int r = 0; r < repeats; r++) {
+                for (int x = 0; x < width; x++) {           // stary clear(): kolumnami przez setRGB
+                    for (int y = 0; y < height; y++) {
+                        image.setRGB(x, y, 0xff000000);
+                    }
+                }
+            }
+            long t3 = System.nanoTime();
+            for (int r = 0; r < repeats; r++) {
+                renderer.clear();
+            }
+            long t4 = System.nanoTime();
+
+            if (round == 2) {
+                System.out.printf("setRGB write:         %.2f ns/pixel%n", (t1 - t0) / pixels);
+                System.out.printf("FrameBuffer write:    %.2f ns/pixel%n", (t2 - t1) / pixels);
+                System.out.printf("old clear (setRGB):   %.2f ns/pixel%n", (t3 - t2) / pixels);
+                System.out.printf("clear (color+depth):  %.2f ns/pixel%n", (t4 - t3) / pixels);
+            }
+        }
+    }
+
+    public static void testMeshCache(String objPath) {
+        try {
+            Files.deleteIfExists(MeshCache.cachePath(objPath));
+
+            long t0 = System.nanoTime();
+            Model parsed = new Model();
+            parsed.readOBJ(objPath, false);
+            long t1 = System.nanoTime();
+            MeshCache.store(objPath, parsed);
+            long t2 = System.nanoTime();
+            Model cached = new Model();
+            boolean hit = MeshCache.load(objPath, cached);
+            long t3 = System.nanoTime();
+
+            boolean same = hit && Arrays.equals(parsed.getPositions(), cached.getPositions())
+                               && Arrays.equals(parsed.getIndices(), cached.getIndices());
+            System.out.println("Mesh cache test: " + parsed.getFaceCount() + " faces, cold parse "
+                               + (t1 - t0) / 1000000 + " ms, cache write " + (t2 - t1) / 1000000
+                               + " ms, cached load " + (t3 - t2) / 1000000 + " ms, identical: " + same);
+        } catch (IOException e) {
+            Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+
+    // Modele nie mogą mieć pikseli o dokładnie równej głębokości - wtedy wygrywa ten, który zdążył pierwszy.
+    public static int testConcurrentFrameBuffer(Model model01, Model model02, int width, int height) {
+        FlatShadingRenderer single = new FlatShadingRenderer("single.png", width, height);
+        single.parallelRenderingOff();
+        single.clear();
+        long t0 = System.nanoTime();
+        single.render(model01);
+        single.render(model02);
+        long t1 = System.nanoTime();
+
+        // po jednym rendererze (i wątku) na model, wspólny bufor docelowy
+        ConcurrentFrameBuffer shared = new ConcurrentFrameBuffer(width, height);
+        FlatShadingRenderer first = new FlatShadingRenderer("first.png", width, height);
+        FlatShadingRenderer second = new FlatShadingRenderer("second.png", width, height);
+        first.parallelRenderingOff();
+        second.parallelRenderingOff();
+        first.concurrentFrameBufferOn(shared);
+        second.concurrentFrameBufferOn(shared);
+        first.clear();
+        long t2 = System.nanoTime();
+        Thread thread = new Thread(() -> second.render(model02));
+        thread.start();
+        first.render(model01);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        long t3 = System.nanoTime();
+        first.concurrentFrameBufferOff();
+
+        // jeden renderer, partie ścian obu modeli rysowane równolegle
+        FlatShadingRenderer batched = new FlatShadingRenderer("batched.png", width, height);
+        batched.concurrentFrameBufferOn();
+        batched.clear();
+        long t4 = System.nanoTime();
+        batched.render(model02);
+        batched.render(model01);
+        long t5 = System.nanoTime();
+        batched.concurrentFrameBufferOff();
+
+        int differences = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = single.render.getRGB(x, y);
+                if (first.render.getRGB(x, y) != expected) differences++;
+                if (batched.render.getRGB(x, y) != expected) differences++;
+            }
+        }
+        System.out.println("Concurrent frame buffer test: " + differences + " differing pixels, single thread "
+                           + (t1 - t0) / 1000000 + " ms, thread per model " + (t3 - t2) / 1000000
+                           + " ms, parallel face batches " + (t5 - t4) / 1000000 + " ms");
+        return differences;
+    }
+
+    public static int testFaceOrder(Model[] models, int width, int height) {
+        boolean metricsWereEnabled = RenderMetrics.isEnabled();
+        RenderMetrics.enable();
+        FlatShadingRenderer reference = null;
+        long referenceWritten = 0;
+        int differences = 0;
+        for (CommandBuffer.Order order : CommandBuffer.Order.values()) {
+            FlatShadingRenderer renderer = new FlatShadingRenderer("order.png", width, height);
+            if (order == CommandBuffer.Order.SUBMISSION) renderer.faceSortingOff(); else renderer.faceSortingOn(order);
+            long time = Long.MAX_VALUE;
+            RenderMetrics.Snapshot metrics = null;
+            for (int round = 0; round < 5; round++) {
+                renderer.clear();
+                RenderMetrics.reset();
+                long t0 = System.nanoTime();
+                for (Model model : models) renderer.render(model);
+                time = Math.min(time, System.nanoTime() - t0);
+                metrics = RenderMetrics.snapshot();
+            }
+
+            if (reference == null) {
+                reference = renderer;
+                referenceWritten = metrics.pixelsWritten;
+            } else {
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (reference.render.getRGB(x, y) != renderer.render.getRGB(x, y)) differences++;
+                    }
+                }
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "Face order %-13s: %d pixels tested, %d written (%+.1f%% vs file order), overdraw %.2f, "
+                    + "%d triangles (%d pixels) rejected by Hi-Z, %.1f ms",
+                    order, metrics.pixelsTested, metrics.pixelsWritten,
+                    100.0 * (metrics.pixelsWritten - referenceWritten) / Math.max(1, referenceWritten),
+                    metrics.overdrawRatio(), metrics.trianglesOccluded, metrics.pixelsOccluded, time / 1e6));
+        }
+        if (!metricsWereEnabled) RenderMetrics.disable();
+        System.out.println("Face order test: " + differences + " differing pixels");
+        return differences;
+    }
+
+    public static int testVisibilityBuffer(Model[] models, int width, int height) {
+        FlatShadingRenderer forward = new FlatShadingRenderer("forward.png", width, height);
+        FlatShadingRenderer deferred = new FlatShadingRenderer("deferred.png", width, height);
+        deferred.visibilityBufferOn();
+        Vec3f[] lights = {new Vec3f(0.0f, 0.0f, 5.0f), new Vec3f(-4.0f, 3.0f, 2.0f)};
+
+        long forwardTime = Long.MAX_VALUE, geometryTime = Long.MAX_VALUE, shadingTime = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            forward.setLightSource(lights[0]);
+            deferred.setLightSource(lights[0]);
+            forward.clear();
+            deferred.clear();
+            long t0 = System.nanoTime();
+            for (Model model : models) forward.render(model);
+            long t1 = System.nanoTime();
+            for (Model model : models) deferred.render(model);
+            long t2 = System.nanoTime();
+            deferred.resolve();
+            long t3 = System.nanoTime();
+            forwardTime = Math.min(forwardTime, t1 - t0);
+            geometryTime = Math.min(geometryTime, t2 - t1);
+            shadingTime = Math.min(shadingTime, t3 - t2);
+        }
+        int differences = countDifferences(forward, deferred, width, height);
+
+        // nowe światło: zwykły renderer musi przejść całą geometrię, bufor widoczności tylko cieniowanie
+        forward.setLightSource(lights[1]);
+        forward.clear();
+        long t0 = System.nanoTime();
+        for (Model model : models) forward.render(model);
+        long t1 = System.nanoTime();
+        deferred.relight(lights[1]);
+        long t2 = System.nanoTime();
+        differences += countDifferences(forward, deferred, width, height);
+
+        System.out.println("Visibility buffer test: " + differences + " differing pixels, forward "
+                           + forwardTime / 1000000 + " ms, visibility buffer " + geometryTime / 1000000
+                           + " ms + shading " + shadingTime / 1000000 + " ms; new light: forward "
+                           + (t1 - t0) / 1000000 + " ms, relight " + (t2 - t1) / 1000000 + " ms");
+        return differences;
+    }
+
+    private static int countDifferences(Renderer a, Renderer b, int width, int height) {
+        int differences = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (a.render.getRGB(x, y) != b.render.getRGB(x, y)) differences++;
+            }
+        }
+        return differences;
+    }
+
+    public static int testNearPlaneClipping(int width, int height) {
+        Random random = new Random(7);
+        float wNear = 1.0f;
+        float[] in = new float[12], out = new float[16];
+        int failures = 0;
+        for (int test = 0; test < 100000; test++) {
+            int inside = 0;
+            for (int i = 0; i < 12; i++) in[i] = (float) (random.nextGaussian() * 4);
+            for (int v = 0; v < 3; v++) if (in[4 * v + 3] >= wNear) inside++;
+
+            int n = NearPlaneClipper.clip(in, 3, wNear, out);
+            int expected = inside == 0 ? 0 : inside == 1 ? 3 : inside == 2 ? 4 : 3;
+            if (n != expected) failures++;
+            // każdy wierzchołek wyniku to wierzchołek wejścia albo punkt na jego krawędzi, przed płaszczyzną
+            for (int v = 0; v < n; v++) {
+                if (out[4 * v + 3] < wNear || !onTriangleEdge(in, out, 4 * v)) {
+                    failures++;
+                    break;
+                }
+            }
+        }
+
+        boolean metricsWereEnabled = RenderMetrics.isEnabled();
+        RenderMetrics.enable();
+        RenderMetrics.reset();
+        Model floor = MeshGenerator.terrain(20000);
+        floor.translate(new Vec3f(0.0f, 1.9f, 5.5f));     // od przodu sceny aż za kamerę
+        Model behind = MeshGenerator.sphere(2000);
+        behind.translate(new Vec3f(0.0f, 0.0f, 10.0f));    // za kamerą
+        Model aside = MeshGenerator.sphere(2000);
+        aside.translate(new Vec3f(-30.0f, 0.0f, 0.0f));    // daleko z lewej
+        FlatShadingRenderer renderer = new FlatShadingRenderer("clipping.png", width, height);
+        renderer.clear();
+        renderer.render(floor);
+        renderer.render(behind);
+        renderer.render(aside);
+        RenderMetrics.Snapshot metrics = RenderMetrics.snapshot();
+        if (!metricsWereEnabled) RenderMetrics.disable();
+        if (metrics.modelsCulled != 2 || metrics.trianglesClipped == 0) failures++;
+
+        System.out.println("Near plane clipping test: " + failures + " failures; scene: " + metrics.modelsCulled
+                           + " models culled, " + metrics.trianglesCulled + " triangles culled, "
+                           + metrics.trianglesBackfacing + " backfacing, " + metrics.trianglesClipped + " clipped, "
+                           + metrics.trianglesRasterized + " rasterized");
+        return failures;
+    }
+
+    // czy punkt p[o..o+3] leży na jednej z krawędzi trójkąta tri (albo jest jego wierzchołkiem)
+    private static boolean onTriangleEdge(float[] tri, float[] p, int o) {
+        for (int e = 0; e < 3; e++) {
+            int a = 4 * e, b = 4 * ((e + 1) % 3);
+            float dw = tri[b + 3] - tri[a + 3];
+            float t = dw == 0 ? 0 : (p[o + 3] - tri[a + 3]) / dw;
+            if (t < -1e-4f || t > 1 + 1e-4f) continue;
+            boolean match = true;
+            for (int k = 0; k < 4 && match; k++) {
+                float expected = tri[a + k] + t * (tri[b + k] - tri[a + k]);
+                match = Math.abs(expected - p[o + k]) <= 1e-3f * (1 + Math.abs(expected));
+            }
+            if (match) return true;
+        }
+        return false;
+    }
+
+    public static int testInstancing(int width, int height) {
+        int failures = 0;
+        try {
+            Path obj = Files.createTempFile("instancing", ".obj");
+            Files.write(obj, Arrays.asList("v 0 0 0", "v 1 0 0", "v 0 1 0", "f 1 2 3"));
+            MeshLibrary library = new MeshLibrary(0); // bez zapasu: siatka bez odwołań jest od razu wyrzucana
+            Mesh first = library.acquire(obj.toString());
+            Mesh second = library.acquire(obj.getParent().resolve(".").resolve(obj.getFileName()).toString());
+            if (first != second || library.getReferenceCount(obj.toString()) != 2) failures++;
+            library.release(first);
+            if (library.size() != 1) failures++;
+            library.release(second);
+            if (library.size() != 0) failures++;
+            if (library.acquire(obj.toString()) == first) failures++;
+            Files.deleteIfExists(obj);
+            Files.deleteIfExists(MeshCache.cachePath(obj.toString()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // te same przesunięcia jako instancje jednej siatki i jako osobne modele z przesuniętymi wierzchołkami;
+        // różnica tylko w zaokrągleniach (macierz modelu mnożona z M zamiast dodawana do wierzchołków)
+        Mesh sphere = Mesh.of(MeshGenerator.sphere(2000));
+        FlatShadingRenderer instanced = new FlatShadingRenderer("instanced.png", width, height);
+        FlatShadingRenderer copies = new FlatShadingRenderer("copies.png", width, height);
+        instanced.clear();
+        copies.clear();
+        for (int i = 0; i < 5; i++) {
+            MeshInstance instance = new MeshInstance(sphere).scale(0.5f).rotateY(30 * i)
+                                                            .translate(new Vec3f(1.2f * i - 2.4f, 0.0f, -1.5f * i));
+            instanced.render(instance);
+            copies.render(instance.toModel());
+        }
+        int differences = countDifferences(instanced, copies, width, height);
+        if (differences > width * height / 1000) failures++;
+
+        // 10 000 instancji na siatce 100 x 100 przed kamerą: pamięć to jedna siatka i po macierzy na instancję
+        int count = 10000;
+        Mesh mesh = Mesh.of(MeshGenerator.sphere(2000));
+        long before = usedHeap();
+        MeshInstance[] instances = new MeshInstance[count];
+        for (int i = 0; i < count; i++) {
+            instances[i] = new MeshInstance(mesh).scale(0.05f)
+                                                 .translate(new Vec3f(0.2f * (i % 100) - 10.0f, 0.0f, -0.2f * (i / 100)));
+        }
+        long perInstance = (usedHeap() - before) / count;
+        if (perInstance > mesh.getSizeInBytes() / 10) failures++;
+
+        FlatShadingRenderer renderer = new FlatShadingRenderer("instances.png", width, height);
+        renderer.clear();
+        long start = System.nanoTime();
+        for (MeshInstance instance : instances) renderer.render(instance);
+        long time = System.nanoTime() - start;
+
+        System.out.println("Instancing test: " + failures + " failures; instances vs copies differ in " + differences
+                           + " pixels; mesh " + mesh.getSizeInBytes() / 1024 + " KiB, " + perInstance
+                           + " B per instance (" + count + " copies would take "
+                           + count * mesh.getSizeInBytes() / (1024 * 1024) + " MiB); " + count + " instances rendered in "
+                           + time / 1000000 + " ms");
+        return failures;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static int testLod(int width, int height) {
+        int failures = 0;
+        Mesh sphere = Mesh.of(MeshGenerator.sphere(20000));
+        long start = System.nanoTime();
+        LodChain chain = sphere.getLods();
+        long buildTime = System.nanoTime() - start;
+        float[] b = sphere.getBounds();
+        float cx = (b[0] + b[3]) / 2, cy = (b[1] + b[4]) / 2, cz = (b[2] + b[5]) / 2, radius = (b[3] - b[0]) / 2;
+        StringBuilder levels = new StringBuilder();
+        for (int level = 0; level < chain.getLevelCount(); level++) {
+            Geometry geometry = chain.getLevel(level);
+            float[] p = geometry.getPositions();
+            float deviation = 0;
+            for (int v = 1; v < geometry.getVertexCount(); v++) {
+                float dx = p[3 * v] - cx, dy = p[3 * v + 1] - cy, dz = p[3 * v + 2] - cz;
+                deviation = Math.max(deviation, Math.abs((float) Math.sqrt(dx * dx + dy * dy + dz * dz) - radius));
+            }
+            if (level > 0 && (geometry.getFaceCount() >= chain.getLevel(level - 1).getFaceCount()
+                              || chain.getError(level) < chain.getError(level - 1))) failures++;
+            levels.append(String.format(Locale.ROOT, "%n  level %d: %6d faces, error %.4f, max deviation from sphere %.4f",
+                                        level, geometry.getFaceCount(), chain.getError(level), deviation));
+        }
+        if (chain.getLevelCount() < 4) failures++;
+
+        // teren ma brzeg: uproszczone poziomy nie mogą się kurczyć w płaszczyźnie xz bardziej niż o swój błąd
+        Model terrain = MeshGenerator.terrain(20000);
+        LodChain terrainChain = terrain.getLods();
+        Geometry coarsest = terrainChain.getLevel(terrainChain.getLevelCount() - 1);
+        for (int level = 1; level < terrainChain.getLevelCount(); level++) {
+            for (int k : new int[] {0, 2, 3, 5}) {
+                float moved = Math.abs(terrainChain.getLevel(level).getBounds()[k] - terrain.getBounds()[k]);
+                if (moved > terrainChain.getError(level)) failures++;
+            }
+        }
+
+        // rząd sfer coraz dalej od kamery, z LOD i bez
+        FlatShadingRenderer full = new FlatShadingRenderer("lod-off.png", width, height);
+        FlatShadingRenderer simplified = new FlatShadingRenderer("lod-on.png", width, height);
+        simplified.lodOn();
+        MeshInstance[] row = new MeshInstance[8];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = new MeshInstance(sphere).scale(0.4f).translate(new Vec3f(0.6f * (i % 2) - 0.3f, 0.0f, -2.5f * i));
+        }
+        boolean metricsWereEnabled = RenderMetrics.isEnabled();
+        RenderMetrics.enable();
+        long fullTime = 0, lodTime = 0;
+        RenderMetrics.Snapshot metrics = null;
+        for (int round = 0; round < 5; round++) {
+            full.clear();
+            simplified.clear();
+            long t0 = System.nanoTime();
+            for (MeshInstance instance : row) full.render(instance);
+            long t1 = System.nanoTime();
+            RenderMetrics.reset();
+            for (MeshInstance instance : row) simplified.render(instance);
+            long t2 = System.nanoTime();
+            metrics = RenderMetrics.snapshot();
+            fullTime += t1 - t0;
+            lodTime += t2 - t1;
+        }
+        if (!metricsWereEnabled) RenderMetrics.disable();
+        // przy cieniowaniu płaskim każda zmiana ścian zmienia odcień, więc porównujemy sylwetki (pokrycie z-bufora)
+        int differences = 0;
+        for (int i = 0; i < width * height; i++) {
+            boolean a = full.zbuffer.depth[i] == Float.POSITIVE_INFINITY;
+            if (a != (simplified.zbuffer.depth[i] == Float.POSITIVE_INFINITY)) differences++;
+        }
+        if (metrics.trianglesSavedByLod == 0 || differences > width * height / 1000) failures++;
+
+        System.out.println("LOD test: " + failures + " failures; sphere chain built in " + buildTime / 1000000 + " ms:"
+                           + levels + String.format(Locale.ROOT,
+                           "%n  terrain: %d -> %d faces; row of %d instances: %d triangles saved by LOD, "
+                           + "silhouettes differ in %d pixels, %.1f ms full vs %.1f ms with LOD", terrain.getFaceCount(),
+                           coarsest.getFaceCount(), row.length, metrics.trianglesSavedByLod, differences,
+                           fullTime / 5e6, lodTime / 5e6));
+        return failures;
+    }
+
+    public static int testMeshOptimizer(int width, int height) {
+        int failures = 0;
+        Model reference = MeshGenerator.sphere(20000);
+        reference.translate(new Vec3f(0.0f, 0.0f, 0.5f));
+        System.out.println("Mesh optimizer test:");
+        long[] times = new long[4];
+        FlatShadingRenderer[] renderers = new FlatShadingRenderer[4];
+        for (int variant = 0; variant < 4; variant++) {
+            // "z eksportera": każda ściana z własnymi wierzchołkami (z drgnięciem poniżej epsilon),
+            // ściany w losowej kolejności, do tego powtórzone i zdegenerowane
+            Model model = messyCopy(reference, new Random(11));
+            MeshOptimizer.Ordering ordering = variant == 0 ? null : MeshOptimizer.Ordering.values()[variant - 1];
+            if (ordering != null) {
+                MeshOptimizer.Report report = model.optimize(1e-5f, ordering);
+                System.out.println("  " + ordering + ": " + report);
+                if (report.facesAfter != reference.getFaceCount() || report.verticesAfter > reference.getVertexCount()
+                    || report.degenerateFaces == 0 || report.duplicateFaces == 0) failures++;
+                if (ordering != MeshOptimizer.Ordering.NONE && !(report.acmrAfter < report.acmrBefore)) failures++;
+                if (report.fetchMissesAfter > report.fetchMissesKept) failures++;  // numeracja nie może pogorszyć
+            }
+            FlatShadingRenderer renderer = new FlatShadingRenderer("optimized.png", width, height);
+            renderer.parallelRenderingOff();
+            for (int round = 0; round < 12; round++) {
+                renderer.clear();
+                long start = System.nanoTime();
+                renderer.render(model);
+                if (round >= 2) times[variant] += System.nanoTime() - start;
+            }
+            renderers[variant] = renderer;
+        }
+        int differences = 0;
+        for (int variant = 1; variant < 4; variant++) {
+            differences = Math.max(differences, countDifferences(renderers[0], renderers[variant], width, height));
+        }
+        if (differences > width * height / 1000) failures++;
+        System.out.println(String.format(Locale.ROOT, "  render: unoptimized %.2f ms, NONE %.2f ms, FORSYTH %.2f ms, "
+                                          + "MORTON %.2f ms; at most %d differing pixels; %d failures",
+                                          times[0] / 1e7, times[1] / 1e7, times[2] / 1e7, times[3] / 1e7,
+                                          differences, failures));
+        return failures;
+    }
+
+    public static int testStreaming(int width, int height) {
+        int failures = 0;
+        Path obj = null;
+        try {
+            // duży OBJ z dysku: połowa ścian z indeksami względnymi, jak w plikach z niektórych eksporterów
+            obj = Files.createTempFile("streaming", ".obj");
+            Model source = MeshGenerator.sphere(400000);
+            source.translate(new Vec3f(0.0f, 0.0f, 0.5f));
+            float[] p = source.getPositions();
+            int[] indices = source.getIndices();
+            int vertices = source.getVertexCount() - 1;
+            try (java.io.BufferedWriter out = Files.newBufferedWriter(obj)) {
+                for (int v = 1; v <= vertices; v++) {
+                    out.write("v " + p[3 * v] + " " + p[3 * v + 1] + " " + p[3 * v + 2] + "\n");
+                }
+                for (int f = 0; f < source.getFaceCount(); f++) {
+                    int a = indices[3 * f], b = indices[3 * f + 1], c = indices[3 * f + 2];
+                    if (f % 2 == 0) out.write("f " + a + " " + b + " " + c + "\n");
+                    else out.write("f " + (a - vertices - 1) + " " + (b - vertices - 1) + " " + (c - vertices - 1) + "\n");
+                }
+            }
+            long modelBytes = 4L * p.length + 4L * indices.length;
+            source = null;
+
+            FlatShadingRenderer loaded = new FlatShadingRenderer("loaded.png", width, height);
+            long start = System.nanoTime();
+            Model model = new Model();
+            model.readOBJ(obj.toString());
+            loaded.render(model);
+            long loadedTime = System.nanoTime() - start;
+            model = null;
+
+            FlatShadingRenderer streamed = new FlatShadingRenderer("streamed.png", width, height);
+            ObjStream.Stats stats = ObjStream.render(obj.toString(), streamed);
+            // malutkie partie i kolejka na jedną: parser ciągle czeka na renderer, obraz ma być ten sam
+            FlatShadingRenderer throttled = new FlatShadingRenderer("throttled.png", width, height);
+            ObjStream.Stats small = ObjStream.render(obj.toString(), throttled, 100, 1);
+
+            int differences = countDifferences(loaded, streamed, width, height);
+            differences += countDifferences(loaded, throttled, width, height);
+            if (differences > 0) failures++;
+            if (stats.faces != small.faces || stats.vertices != vertices || small.batches != (small.faces + 99) / 100) {
+                failures++;
+            }
+
+            // ściana przed swoimi wierzchołkami: strumień musi to zgłosić, a nie narysować śmieci
+            Files.write(obj, Arrays.asList("v 0 0 0", "f 1 2 3", "v 1 0 0", "v 0 1 0"));
+            try {
+                ObjStream.render(obj.toString(), throttled);
+                failures++;
+            } catch (IOException expected) {
+                // ok
+            }
+
+            System.out.println(String.format(Locale.ROOT, "Streaming test: %d failures, %d differing pixels;%n"
+                                              + "  loaded: %.1f MB geometry, %.1f ms (parse + render)%n"
+                                              + "  streamed: %s%n  small batches: %s", failures, differences,
+                                              modelBytes / 1e6, loadedTime / 1e6, stats, small));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (obj != null) {
+                try {
+                    Files.deleteIfExists(obj);
+                    Files.deleteIfExists(MeshCache.cachePath(obj.toString()));
+                } catch (IOException e) {
+                    // plik tymczasowy, najwyżej zostanie
+                }
+            }
+        }
+        return failures;
+    }
+
+    public static int testQuantizedMesh(int width, int height) {
+        int failures = 0;
+        Model reference = MeshGenerator.sphere(200000);
+        reference.translate(new Vec3f(0.0f, 0.0f, 0.5f));
+        reference.optimize();
+        QuantizedMesh quantized = reference.quantize();
+        Model terrain = MeshGenerator.terrain(200000);
+        QuantizedMesh quantizedTerrain = terrain.quantize(); // bez optimize: kolejność z generatora
+
+        // indeksy bez strat, pozycje najwyżej o pół kroku kwantyzacji
+        if (!Arrays.equals(quantized.getIndices(), Arrays.copyOf(reference.getIndices(), 3 * reference.getFaceCount()))
+            || !Arrays.equals(quantizedTerrain.getIndices(), Arrays.copyOf(terrain.getIndices(), 3 * terrain.getFaceCount()))) {
+            failures++;
+        }
+        float[] p = reference.getPositions(), q = quantized.getPositions();
+        float error = 0;
+        for (int v = 1; v < reference.getVertexCount(); v++) {
+            for (int k = 0; k < 3; k++) {
+                float e = Math.abs(p[3 * v + k] - q[3 * v + k]);
+                error = Math.max(error, e);
+                if (e > quantized.getMaxError(k) * 1.01f + 1e-7f) failures++;
+            }
+        }
+        // cel: 3-4x mniej pamięci niż float/int, także bez MeshOptimizer
+        float ratio = (float) quantized.getUncompressedSizeInBytes() / quantized.getSizeInBytes();
+        float terrainRatio = (float) quantizedTerrain.getUncompressedSizeInBytes() / quantizedTerrain.getSizeInBytes();
+        if (ratio < 3 || terrainRatio < 3) failures++;
+
+        // zwarta siatka rysowana bezpośrednio, rozpakowana kopia i oryginał; także z buforem widoczności
+        FlatShadingRenderer original = new FlatShadingRenderer("original.png", width, height);
+        FlatShadingRenderer compact = new FlatShadingRenderer("quantized.png", width, height);
+        FlatShadingRenderer decoded = new FlatShadingRenderer("decoded.png", width, height);
+        FlatShadingRenderer deferred = new FlatShadingRenderer("quantized-vb.png", width, height);
+        deferred.visibilityBufferOn();
+        Model copy = quantized.decode();
+        long originalTime = Long.MAX_VALUE, compactTime = Long.MAX_VALUE;
+        for (int round = 0; round < 12; round++) {
+            original.clear();
+            compact.clear();
+            long t0 = System.nanoTime();
+            original.render(reference);
+            long t1 = System.nanoTime();
+            compact.render(quantized, null);
+            long t2 = System.nanoTime();
+            if (round >= 2) {
+                originalTime = Math.min(originalTime, t1 - t0);
+                compactTime = Math.min(compactTime, t2 - t1);
+            }
+        }
+        // rozpakowana kopia nie ma zapisanych normalnych, więc porównanie bit w bit tylko bez nich
+        decoded.clear();
+        deferred.clear();
+        decoded.render(copy);
+        deferred.render(quantized, null);
+        deferred.resolve();
+        int exact = countDifferences(compact, deferred, width, height);
+        if (quantized.getStoredNormalCount() == 0) exact += countDifferences(compact, decoded, width, height);
+
+        // Pomijalny błąd: normalna każdej ściany różni się od tej z siatki float najwyżej o jeden odcień
+        // (inaczej ściana ma zapisaną normalną), więc o więcej mogą się różnić tylko piksele, które przesunięcie
+        // wierzchołków oddało innej ścianie albo tłu - krawędzie sylwetki, najwyżej 0.1% obrazu.
+        int[] differences = countShadeDifferences(original, compact, width, height);
+        if (exact > 0 || differences[1] > width * height / 1000) failures++;
+
+        // Ten sam teren z jednym dalekim, nieużywanym wierzchołkiem: prostopadłościan jest ok. 50x dłuższy w z,
+        // tyle samo rośnie krok kwantyzacji i normalne liczone z wierzchołków odjeżdżają o wiele odcieni.
+        // Wierzchołki przesuwają się wtedy o ułamek piksela, więc część pikseli przechodzi na sąsiednią ścianę;
+        // normalne sprawdzamy na pikselach, które w obu buforach widoczności należą do tej samej ściany.
+        float[] farPositions = Arrays.copyOf(terrain.getPositions(), 3 * terrain.getVertexCount() + 3);
+        farPositions[3 * terrain.getVertexCount() + 2] = -200.0f;
+        Model far = new Model();
+        far.setGeometry(farPositions, terrain.getVertexCount() + 1, terrain.getIndices(), terrain.getFaceCount());
+        QuantizedMesh quantizedFar = far.quantize();
+        FlatShadingRenderer farOriginal = new FlatShadingRenderer("far.png", width, height);
+        FlatShadingRenderer farCompact = new FlatShadingRenderer("far-quantized.png", width, height);
+        farOriginal.visibilityBufferOn();
+        farCompact.visibilityBufferOn();
+        farOriginal.clear();
+        farCompact.clear();
+        farOriginal.render(far);
+        farCompact.render(quantizedFar, null);
+        farOriginal.resolve();
+        farCompact.resolve();
+        int sameFace = 0, farShadeErrors = 0;
+        int[] ids = farOriginal.visibility.ids, farPixels = farOriginal.frameBuffer.pixels;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == 0 || ids[i] != farCompact.visibility.ids[i]) continue;
+            sameFace++;
+            if (Math.abs((farPixels[i] & 0xff) - (farCompact.frameBuffer.pixels[i] & 0xff)) > 1) farShadeErrors++;
+        }
+        if (quantizedFar.getStoredNormalCount() == 0 || farShadeErrors > 0) failures++;
+
+        // zwarta siatka może rysować się wolniej (dekodowanie okien), ale nie więcej niż 2x
+        if (compactTime > 2 * originalTime) failures++;
+
+        long decodeTime = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            quantized.getIndices();
+            decodeTime = Math.min(decodeTime, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format(Locale.ROOT, "Quantized mesh test: %d failures;%n"
+                + "  optimized sphere: %d vertices, %d faces, %.2f MB -> %.2f MB (%.2fx), max position error %.2e%n"
+                + "  terrain without optimize: %.2f MB -> %.2f MB (%.2fx)%n"
+                + "  %d pixels differ from the float mesh (%d by more than one shade), %d from the decoded copy and visibility buffer;%n"
+                + "  terrain in a 50x longer box: %d stored normals (%.2f MB), %d of %d pixels on the same face differ by more than one shade;%n"
+                + "  render %.2f ms float vs %.2f ms quantized (%.2fx), index decode %.2f ms (%.0f M indices/s)",
+                failures, reference.getVertexCount() - 1, reference.getFaceCount(),
+                quantized.getUncompressedSizeInBytes() / 1e6, quantized.getSizeInBytes() / 1e6, ratio, error,
+                quantizedTerrain.getUncompressedSizeInBytes() / 1e6, quantizedTerrain.getSizeInBytes() / 1e6, terrainRatio,
+                differences[0], differences[1], exact, quantizedFar.getStoredNormalCount(),
+                quantizedFar.getSizeInBytes() / 1e6, farShadeErrors, sameFace, originalTime / 1e6, compactTime / 1e6, (double) compactTime / originalTime,
+                decodeTime / 1e6, 3.0 * quantized.getFaceCount() / (decodeTime / 1e9) / 1e6));
+        return failures;
+    }
+
+    // {piksele różniące się jasnością, piksele różniące się o więcej niż jeden odcień} (obrazy w odcieniach szarości)
+    private static int[] countShadeDifferences(Renderer a, Renderer b, int width, int height) {
+        int[] result = new int[2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int d = Math.abs((a.render.getRGB(x, y) & 0xff) - (b.render.getRGB(x, y) & 0xff));
+                if (d > 0) result[0]++;
+                if (d > 1) result[1]++;
+            }
+        }
+        return result;
+    }
+
+    // Scena testów zapisu klatki (pasy, zapis w tle, formaty): teren i kula przed nim, w kolejności rysowania.
+    private static Model[] saveTestScene() {
+        Model sphere = MeshGenerator.sphere(20000);
+        sphere.translate(new Vec3f(0.0f, 0.0f, 0.5f));
+        return new Model[] {MeshGenerator.terrain(20000), sphere};
+    }
+
+    public static int testStripRendering(int width, int height) {
+        int failures = 0;
+        Model[] scene = saveTestScene();
+        try {
+            // pasy po 37 wierszy (wysokość obrazu nie jest wielokrotnością pasa) przez PngWriter, porównane
+            // z pikselami całej klatki - sprawdza naraz pasy i kodowanie PNG
+            FlatShadingRenderer full = new FlatShadingRenderer("full.png", width, height);
+            StripRenderer strips = new StripRenderer("strips.png", width, height, 37);
+            full.clear();
+            for (Model model : scene) {
+                full.render(model);
+                strips.draw(model);
+            }
+            java.io.ByteArrayOutputStream png = new java.io.ByteArrayOutputStream();
+            strips.save(png);
+            BufferedImage image = ImageIO.read(new java.io.ByteArrayInputStream(png.toByteArray()));
+            int differences = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (image.getRGB(x, y) != full.render.getRGB(x, height - 1 - y)) differences++;
+                }
+            }
+            if (differences > 0) failures++;
+
+            // duży obraz: pamięć szczytowa sterty zależy od pasa, nie od obrazu
+            int size = 4096;
+            StripRenderer poster = new StripRenderer("poster.png", size, size);
+            for (Model model : scene) poster.draw(model);
+            System.gc();
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            long before = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                    before += pool.getUsage().getUsed();
+                    heapPools.add(pool);
+                }
+            }
+            long start = System.nanoTime();
+            poster.save(OutputStream.nullOutputStream());
+            long time = System.nanoTime() - start;
+            long peak = 0;
+            for (MemoryPoolMXBean pool : heapPools) peak += pool.getPeakUsage().getUsed();
+            long wholeFrame = 12L * size * size;  // kolor, z-bufor i kopia z verticalFlip
+            if (peak - before > wholeFrame / 4) failures++;
+
+            System.out.println(String.format(Locale.ROOT, "Strip rendering test: %d failures, %d pixels differ; "
+                    + "%dx%d in strips of %d: %.1f s, peak heap +%.1f MB (a whole frame would need %.1f MB)",
+                    failures, differences, size, size, StripRenderer.DEFAULT_STRIP_HEIGHT, time / 1e9,
+                    (peak - before) / 1e6, wholeFrame / 1e6));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return failures;
+    }
+
+    public static int testAsyncSave(int width, int height) {
+        int failures = 0;
+        Model[] scene = saveTestScene();
+        try {
+            // wąski, wysoki obraz z szumem: wiele bloków deflate; jeden wątek i pula muszą dać te same bajty
+            Random random = new Random(5);
+            int noiseWidth = 37, noiseHeight = 20000;
+            int[] noise = new int[noiseWidth * noiseHeight];
+            for (int i = 0; i < noise.length; i++) noise[i] = (255 << 24) | random.nextInt(1 << 12) * 0x1001;
+            byte[][] encoded = new byte[2][];
+            for (int variant = 0; variant < 2; variant++) {
+                java.io.ByteArrayOutputStream png = new java.io.ByteArrayOutputStream();
+                try (PngWriter writer = new PngWriter(png, noiseWidth, noiseHeight, variant == 1)) {
+                    for (int y = 0; y < noiseHeight; y++) writer.writeRow(noise, y * noiseWidth);
+                }
+                encoded[variant] = png.toByteArray();
+            }
+            if (!Arrays.equals(encoded[0], encoded[1])) failures++;
+            int[] decoded = new int[noise.length];
+            ImageIO.read(new java.io.ByteArrayInputStream(encoded[1]))
+                   .getRGB(0, 0, noiseWidth, noiseHeight, decoded, 0, noiseWidth);
+            if (!Arrays.equals(decoded, noise)) failures++;
+
+            // kolejne klatki z save() i saveAsync(), każdy plik musi mieć swoją klatkę
+            int frames = 4;
+            Path dir = Files.createTempDirectory("saveAsync");
+            int[][] expected = new int[frames][];
+            long[] frameTime = new long[2];
+            for (int variant = 0; variant < 2; variant++) {
+                List<java.util.concurrent.CompletableFuture<Void>> saves = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int frame = 0; frame < frames; frame++) {
+                    FlatShadingRenderer renderer = new FlatShadingRenderer(
+                            dir.resolve(variant + "-" + frame + ".png").toString(), width, height);
+                    renderer.setLightSource(new Vec3f(frame - 2.0f, 1.0f, 5.0f));
+                    renderer.clear();
+                    for (Model model : scene) renderer.render(model);
+                    if (variant == 0) {
+                        renderer.save();
+                        expected[frame] = Renderer.verticalFlip(renderer.render)
+                                                  .getRGB(0, 0, width, height, null, 0, width);
+                    } else {
+                        saves.add(renderer.saveAsync());
+                        renderer.clear(); // zapis w tle ma własną kopię klatki
+                    }
+                }
+                for (java.util.concurrent.CompletableFuture<Void> save : saves) save.join();
+                frameTime[variant] = System.nanoTime() - start;
+            }
+            for (int frame = 0; frame < frames; frame++) {
+                for (int variant = 0; variant < 2; variant++) {
+                    Path file = dir.resolve(variant + "-" + frame + ".png");
+                    int[] pixels = ImageIO.read(file.toFile()).getRGB(0, 0, width, height, null, 0, width);
+                    if (!Arrays.equals(pixels, expected[frame])) failures++;
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+
+            System.out.println(String.format(Locale.ROOT, "Async save test: %d failures; %d frames %dx%d: %.1f ms "
+                    + "with save(), %.1f ms with saveAsync()", failures, frames, width, height,
+                    frameTime[0] / 1e6, frameTime[1] / 1e6));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return failures;
+    }
+
+    public static int testImageFormats(int width, int height) {
+        int failures = 0;
+        StringBuilder report = new StringBuilder();
+        try {
+            Path file = Files.createTempFile("formats", ".img");
+            FlatShadingRenderer renderer = new FlatShadingRenderer(file.toString(), width, height);
+            renderer.clear();
+            for (Model model : saveTestScene()) renderer.render(model);
+            // oczekiwany obraz od górnego wiersza, jak w plikach
+            int[] expected = Renderer.verticalFlip(renderer.render).getRGB(0, 0, width, height, null, 0, width);
+
+            // ImageIO jako punkt odniesienia: kopia odwrócona przez verticalFlip i ImageIO.write
+            long imageIoTime = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                ImageIO.write(Renderer.verticalFlip(renderer.render), "png", file.toFile());
+                imageIoTime = Math.min(imageIoTime, System.nanoTime() - start);
+            }
+            long imageIoSize = Files.size(file);
+            report.append(String.format(Locale.ROOT, "%n  ImageIO PNG: %8.2f ms, %9d bytes", imageIoTime / 1e6,
+                                        imageIoSize));
+
+            for (ImageFormat format : ImageFormat.values()) {
+                renderer.setImageFormat(format);
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    long start = System.nanoTime();
+                    renderer.save();
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                byte[] bytes = Files.readAllBytes(file);
+                if (!Arrays.equals(decodeImage(format, bytes, width, height), expected)) failures++;
+                report.append(String.format(Locale.ROOT, "%n  %-11s %8.2f ms, %9d bytes (%.1fx faster than ImageIO, "
+                                            + "%.2fx its size)", format + ":", best / 1e6, bytes.length,
+                                            (double) imageIoTime / best, (double) bytes.length / imageIoSize));
+            }
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println("Image formats test: " + failures + " failures, " + width + "x" + height + report);
+        return failures;
+    }
+
+    // Obraz z pliku danego formatu jako ARGB od górnego wiersza (do sprawdzania ImageFormat).
+    private static int[] decodeImage(ImageFormat format, byte[] bytes, int width, int height) throws IOException {
+        int[] out = new int[width * height];
+        java.nio.ByteBuffer in = java.nio.ByteBuffer.wrap(bytes);
+        switch (format) {
+            case PNG: {
+                BufferedImage image = ImageIO.read(new java.io.ByteArrayInputStream(bytes));
+                image.getRGB(0, 0, width, height, out, 0, width);
+                break;
+            }
+            case RAW_RGBA:
+                for (int i = 0; i < out.length; i++) {
+                    int c = in.getInt();
+                    out[i] = c >>> 8 | c << 24;
+                }
+                break;
+            case RAW_BGRA:
+                in.order(java.nio.ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(out);
+                break;
+            case PPM: {
+                String header = "P6\n" + width + " " + height + "\n255\n";
+                in.position(header.length());
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = 0xff000000 | (in.get() & 0xff) << 16 | (in.get() & 0xff) << 8 | (in.get() & 0xff);
+                }
+                break;
+            }
+            case QOI: {
+                in.position(14);
+                int[] index = new int[64];
+                int c = 0xff000000;
+                for (int i = 0; i < out.length; ) {
+                    int op = in.get() & 0xff;
+                    int r = (c >> 16) & 0xff, g = (c >> 8) & 0xff, b = c & 0xff, a = c >>> 24;
+                    if (op == 0xfe) {
+                        r = in.get() & 0xff; g = in.get() & 0xff; b = in.get() & 0xff;
+                    } else if (op == 0xff) {
+                        r = in.get() & 0xff; g = in.get() & 0xff; b = in.get() & 0xff; a = in.get() & 0xff;
+                    } else if (op >> 6 == 0) {
+                        int hit = index[op];
+                        r = (hit >> 16) & 0xff; g = (hit >> 8) & 0xff; b = hit & 0xff; a = hit >>> 24;
+                    } else if (op >> 6 == 1) {
+                        r += ((op >> 4) & 3) - 2; g += ((op >> 2) & 3) - 2; b += (op & 3) - 2;
+                    } else if (op >> 6 == 2) {
+                        int dg = (op & 63) - 32, next = in.get() & 0xff;
+                        r += dg + (next >> 4) - 8; g += dg; b += dg + (next & 15) - 8;
+                    } else {
+                        for (int k = 0; k < (op & 63) + 1; k++) out[i++] = c;
+                        continue;
+                    }
+                    c = a << 24 | (r & 0xff) << 16 | (g & 0xff) << 8 | (b & 0xff);
+                    index[(((c >> 16) & 0xff) * 3 + ((c >> 8) & 0xff) * 5 + (c & 0xff) * 7 + (c >>> 24) * 11) & 63] = c;
+                    out[i++] = c;
+                }
+                break;
+            }
+        }
+        return out;
+    }
+
+    private static Model messyCopy(Model model, Random random) {
+        float[] p = model.getPositions();
+        int[] source = model.getIndices();
+        int faces = model.getFaceCount();
+        int extra = faces / 50;
+        int[] order = new int[faces + 2 * extra];
+        for (int f = 0; f < faces; f++) order[f] = f;
+        for (int k = 0; k < extra; k++) {
+            order[faces + k] = random.nextInt(faces);           // powtórzona ściana
+            order[faces + extra + k] = -1 - random.nextInt(faces); // zdegenerowana: pierwszy wierzchołek dwa razy
+        }
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i]; order[i] = order[j]; order[j] = t;
+        }
+        float[] positions = new float[3 * (1 + 3 * order.length)];
+        int[] indices = new int[3 * order.length];
+        for (int f = 0; f < order.length; f++) {
+            int face = order[f] >= 0 ? order[f] : -1 - order[f];
+            for (int j = 0; j < 3; j++) {
+                int v = source[3 * face + (order[f] >= 0 ? j : j == 2 ? 0 : j)];
+                int out = 1 + 3 * f + j;
+                for (int k = 0; k < 3; k++) positions[3 * out + k] = p[3 * v + k] + (random.nextFloat() - 0.5f) * 2e-6f;
+                indices[3 * f + j] = out;
+            }
+        }
+        Model messy = new Model();
+        messy.setGeometry(positions, 1 + 3 * order.length, indices, order.length);
+        return messy;
+    }
+
+    public static int testSimd(Model model, int width, int height) {
+        FlatShadingRenderer scalar = new FlatShadingRenderer("scalar.png", width, height);
+        FlatShadingRenderer vector = new FlatShadingRenderer("simd.png", width, height);
+        if (!vector.isSimdAvailable()) {
+            System.out.println("SIMD test: jdk.incubator.vector not available, run with --add-modules jdk.incubator.vector");
+            return 0;
+        }
+        scalar.simdOff();
+        vector.simdOn();
+        scalar.parallelRenderingOff();
+        vector.parallelRenderingOff();
+
+        long scalarTime = 0, vectorTime = 0;
+        for (int round = 0; round < 10; round++) {
+            scalar.clear();
+            vector.clear();
+            long t0 = System.nanoTime();
+            scalar.render(model);
+            long t1 = System.nanoTime();
+            vector.render(model);
+            long t2 = System.nanoTime();
+            if (round >= 5) {     // pierwsze przebiegi to rozgrzewka JIT
+                scalarTime += t1 - t0;
+                vectorTime += t2 - t1;
+            }
+        }
+
+        int differences = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (scalar.render.getRGB(x, y) != vector.render.getRGB(x, y)) differences++;
+            }
+        }
+        System.out.println("SIMD test: " + differences + " differing pixels, scalar " + scalarTime / 5000000
+                           + " ms/frame, SIMD " + vectorTime / 5000000 + " ms/frame");
+        return differences;
+    }
+
+    public static int testMatrixInverse() {
+        Random random = new Random(7);
+        int failures = 0;
+        for (int n = 0; n < 100; n++) {
+            // obrót wokół losowej osi, niejednorodne skalowanie i przesunięcie - tak jak macierz modelu
+            Vec3f axis = new Vec3f(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f);
+            axis.normalize();
+            float angle = random.nextFloat() * 6.28f;
+            float c = (float) Math.cos(angle), s = (float) Math.sin(angle), t = 1 - c;
+            Matrix4f rotation = new Matrix4f(
+                    t * axis.x * axis.x + c, t * axis.x * axis.y - s * axis.z, t * axis.x * axis.z + s * axis.y, 0,
+                    t * axis.x * axis.y + s * axis.z, t * axis.y * axis.y + c, t * axis.y * axis.z - s * axis.x, 0,
+                    t * axis.x * axis.z - s * axis.y, t * axis.y * axis.z + s * axis.x, t * axis.z * axis.z + c, 0,
+                    0, 0, 0, 1);
+            Matrix4f scale = new Matrix4f(0.5f + random.nextFloat() * 3, 0, 0, random.nextFloat() * 10 - 5,
+                                          0, 0.5f + random.nextFloat() * 3, 0, random.nextFloat() * 10 - 5,
+                                          0, 0, 0.5f + random.nextFloat() * 3, random.nextFloat() * 10 - 5,
+                                          0, 0, 0, 1);
+            Matrix4f m = Matrix4f.multiply(scale, rotation);
+
+            Matrix4f inverse = new Matrix4f();
+            if (!m.invertInto(inverse)) { failures++; continue; }
+            Matrix4f product = Matrix4f.multiply(m, inverse);
+
+            // macierz normalnych dla części 3x3 to transpozycja odwrotności
+            Matrix4f normal = new Matrix4f();
+            m.normalMatrixInto(normal);
+            Matrix4f expected = new Matrix4f(inverse).transpose();
+
+            float error = 0;
+            for (int r = 0; r < 4; r++) {
+                for (int col = 0; col < 4; col++) {
+                    error = Math.max(error, Math.abs(product.data(r, col) - (r == col ? 1 : 0)));
+                    if (r < 3 && col < 3) error = Math.max(error, Math.abs(normal.data(r, col) - expected.data(r, col)));
+                }
+            }
+            if (error > 1e-4f) failures++;
+        }
+        Matrix4f singular = new Matrix4f(Matrix4f.Matrix.Ones);
+        if (singular.invert()) failures++;
+        System.out.println("Matrix inverse test: " + failures + " failures");
+        return failures;
+    }
+
+    // Liczy bajty zaalokowane przez bieżący wątek, więc renderujemy jednowątkowo. Bufory renderera
+    // (vertexBuffer, kolory ścian) rosną przy pierwszym renderze dużego modelu i potem są używane dalej,
+    // więc w pomiarze zostają tylko alokacje stałe (macierze kamery).
+    public static int testRenderAllocations(int width, int height) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation test: per-thread allocation counter not available");
+            return 0;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        Model small = MeshGenerator.terrain(5_000);
+        Model large = MeshGenerator.terrain(320_000);
+        FlatShadingRenderer renderer = new FlatShadingRenderer("alloc.png", width, height);
+        renderer.parallelRenderingOff();
+
+        long smallBytes = Long.MAX_VALUE, largeBytes = Long.MAX_VALUE;
+        renderer.render(large);
+        for (int round = 0; round < 5; round++) {
+            renderer.clear();
+            long t0 = threads.getThreadAllocatedBytes(thread);
+            renderer.render(small);
+            long t1 = threads.getThreadAllocatedBytes(thread);
+            renderer.clear();
+            renderer.render(large);
+            long t2 = threads.getThreadAllocatedBytes(thread);
+            smallBytes = Math.min(smallBytes, t1 - t0);
+            largeBytes = Math.min(largeBytes, t2 - t1);
+        }
+
+        // 64x więcej ścian; setupFace tworzył wcześniej kilka Vec3f na ścianę, teraz różnica musi być mała
+        boolean constant = largeBytes - smallBytes < 16 * 1024;
+        System.out.println("Allocation test: " + small.getFaceCount() + " faces -> " + smallBytes + " B, "
+                           + large.getFaceCount() + " faces -> " + largeBytes + " B per render, constant: " + constant);
+        return constant ? 0 : 1;
+    }
+
+    // Benchmark skalowania: dla każdej kombinacji kształtu siatki, liczby trójkątów i rozdzielczości
+    // generuje model, renderuje kilka klatek i koduje jedną do PNG (w pamięci, bez zapisu pliku).
+    // Nie potrzebuje plików modeli ani ekranu. Największe przypadki wymagają dużego -Xmx; przy braku
+    // pamięci przypadek jest pomijany, a benchmark idzie dalej.
+    public static void runBenchmark(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        String[] shapes = MeshGenerator.SHAPES;
+        int[] triangleCounts = {1_000, 10_000, 100_000, 1_000_000, 10_000_000};
+        String[] resolutions = {"200x200", "1920x1080", "3840x2160", "7680x4320"};
+        int frames = 5;
+        ImageFormat format = ImageFormat.PNG;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String[] values = kv.length == 2 ? kv[1].split(",") : new String[0];
+            switch (kv[0]) {
+                case "shapes": shapes = values; break;
+                case "triangles": triangleCounts = Arrays.stream(values).mapToInt(Integer::parseInt).toArray(); break;
+                case "resolutions": resolutions = values; break;
+                case "frames": frames = Integer.parseInt(values[0]); break;
+                case "format": format = ImageFormat.forName(values[0]); break;
+                default:
+                    System.out.println("Unknown benchmark option: " + arg);
+                    return;
+            }
+        }
+
+        System.out.println("Benchmark: Java " + Runtime.version() + ", " + Runtime.getRuntime().availableProcessors()
+                           + " cores, max heap " + Runtime.getRuntime().maxMemory() / (1 << 20) + " MB");
+        RenderMetrics.enable();
+        for (String shape : shapes) {
+            for (int triangles : triangleCounts) {
+                for (String resolution : resolutions) {
+                    String[] size = resolution.split("x");
+                    String result;
+                    try {
+                        result = benchmarkCase(shape, triangles, Integer.parseInt(size[0]), Integer.parseInt(size[1]), frames,
+                                               format);
+                    } catch (OutOfMemoryError e) {
+                        result = "out of memory, skipped (raise -Xmx)";
+                    }
+                    System.out.println(shape + " " + triangles + " triangles " + resolution + ": " + result);
+                }
+            }
+        }
+    }
+
+    private static String benchmarkCase(String shape, int triangles, int width, int height, int frames,
+                                        ImageFormat format) {
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long gcCount0 = 0, gcTime0 = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount0 += gc.getCollectionCount();
+            gcTime0 += gc.getCollectionTime();
+        }
+
+        long t0 = System.nanoTime();
+        Model model = MeshGenerator.generate(shape, triangles);
+        long t1 = System.nanoTime();
+
+        FlatShadingRenderer renderer = new FlatShadingRenderer("benchmark.png", width, height);
+        renderer.setImageFormat(format);
+        for (int i = 0; i < 2; i++) {   // rozgrzewka JIT i buforów renderera
+            renderer.clear();
+            renderer.render(model);
+        }
+        RenderMetrics.reset();
+        long t2 = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            renderer.clear();
+            renderer.render(model);
+        }
+        long t3 = System.nanoTime();
+        RenderMetrics.Snapshot metrics = RenderMetrics.snapshot();
+
+        try {
+            renderer.save(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long t4 = System.nanoTime();
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) peakHeap += pool.getPeakUsage().getUsed();
+        long gcCount = -gcCount0, gcTime = -gcTime0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+
+        int faces = model.getFaceCount();
+        double generate = (t1 - t0) / 1e9, render = (t3 - t2) / 1e9 / frames, encode = (t4 - t3) / 1e9;
+        return String.format(Locale.ROOT,
+                "%d faces | generate %.1f ms (%.2f M tris/s) | render %.2f ms/frame (%.2f M tris/s, %.1f M pixels/s)"
+                + " | transform %.1f M verts/s, setup %.1f M tris/s, raster %.1f M tris/s, %.1f M pixels written/s"
+                + " | z-fail %.1f%%, overdraw %.2f | encode %s %.1f ms (%.1f M pixels/s) | peak heap %d MB"
+                + " | GC %d collections, %d ms",
+                faces, generate * 1e3, faces / generate / 1e6, render * 1e3, faces / render / 1e6,
+                (double) width * height / render / 1e6,
+                metrics.throughput(RenderMetrics.Stage.TRANSFORM) / 1e6, metrics.throughput(RenderMetrics.Stage.SETUP) / 1e6,
+                metrics.throughput(RenderMetrics.Stage.RASTERIZATION) / 1e6,
+                metrics.pixelsWritten * 1e3 / Math.max(1, metrics.nanos(RenderMetrics.Stage.RASTERIZATION)),
+                100 * metrics.zFailRatio(), metrics.overdrawRatio(), format, encode * 1e3, (double) width * height / encode / 1e6,
+                peakHeap / (1 << 20), gcCount, gcTime);
+    }
 }
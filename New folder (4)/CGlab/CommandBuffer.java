@@ -0,0 +1,213 @@
+package CGlab;
+
+import java.util.Arrays;
+
+// Lista poleceń rysowania: zamiast rysować od razu (jak Renderer.drawTriangle), polecenia są zapisywane,
+// a Renderer.submit wykonuje je wszystkie naraz. Daje to swobodę kolejności:
+//  - trójkąty z testem głębokości (nieprzezroczyste) są sortowane według order - domyślnie od przodu do tyłu,
+//    żeby dalsze trójkąty jak najczęściej odpadały na teście głębokości (albo całe na Hi-Z) zamiast
+//    nadpisywać piksele; wynik jest ten sam co w kolejności zapisu, poza pikselami o identycznej głębokości,
+//  - przy wykonaniu równoległym trójkąty idą przez drawTrianglesTiled (albo drawTrianglesConcurrent),
+//  - punkty, linie i trójkąty 2D (bez testu głębokości) to nakładka: rysowane po trójkątach,
+//    w kolejności zapisu.
+//
+// Bufor jest wielokrotnego użytku: reset() zeruje liczniki, a tablice tylko rosną, więc kolejne klatki
+// nic nie alokują.
+public class CommandBuffer {
+
+    public enum Order {
+        SUBMISSION,     // kolejność zapisu, jak przy rysowaniu natychmiastowym
+        FRONT_TO_BACK,  // według najbliższego wierzchołka, najbliższe najpierw
+        BACK_TO_FRONT,  // według najdalszego wierzchołka, najdalsze najpierw (algorytm malarza)
+        BY_COLOR        // pogrupowane według koloru, w obrębie koloru kolejność zapisu
+    }
+
+    private static final int POINT = 0, LINE = 1, TRIANGLE_2D = 2;
+
+    private Order order = Order.FRONT_TO_BACK;
+
+    // trójkąty nieprzezroczyste: po 9 floatów (x, y, z trzech wierzchołków) i kolor
+    private float[] triangles = new float[0];
+    private int[] colors = new int[0];
+    private int triangleCount;
+
+    // nakładka: strumień intów [rodzaj, argumenty...], współrzędne trójkątów 2D jako bity floatów
+    private int[] overlay = new int[0];
+    private int overlayLength;
+
+    // wynik prepare(): trójkąty w kolejności wykonania, w układzie Renderer.drawTrianglesTiled
+    private long[] keys = new long[0];
+    float[] sortedVertices = new float[0];
+    int[] sortedColors = new int[0];
+    int[] identityIndices = new int[0];
+
+    public CommandBuffer() {
+    }
+
+    public CommandBuffer(Order order) {
+        this.order = order;
+    }
+
+    public void setOrder(Order order) {
+        this.order = order;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    public void reset() {
+        triangleCount = 0;
+        overlayLength = 0;
+    }
+
+    public void drawPoint(int x, int y, int color) {
+        int o = growOverlay(4);
+        overlay[o] = POINT; overlay[o + 1] = x; overlay[o + 2] = y; overlay[o + 3] = color;
+    }
+
+    public void drawLine(int x0, int y0, int x1, int y1, int color) {
+        int o = growOverlay(6);
+        overlay[o] = LINE; overlay[o + 1] = x0; overlay[o + 2] = y0;
+        overlay[o + 3] = x1; overlay[o + 4] = y1; overlay[o + 5] = color;
+    }
+
+    // trójkąt 2D, rysowany jak Renderer.drawTriangle(Vec2f, ...) - bez testu głębokości
+    public void drawTriangle(Vec2f A, Vec2f B, Vec2f C, int color) {
+        int o = growOverlay(8);
+        overlay[o] = TRIANGLE_2D;
+        overlay[o + 1] = Float.floatToRawIntBits(A.x); overlay[o + 2] = Float.floatToRawIntBits(A.y);
+        overlay[o + 3] = Float.floatToRawIntBits(B.x); overlay[o + 4] = Float.floatToRawIntBits(B.y);
+        overlay[o + 5] = Float.floatToRawIntBits(C.x); overlay[o + 6] = Float.floatToRawIntBits(C.y);
+        overlay[o + 7] = color;
+    }
+
+    // trójkąt w pikselach ekranu z głębokością, jak Renderer.drawTriangle(Vec3f, ...); kolor 0 = pomiń
+    public void drawTriangle(Vec3f A, Vec3f B, Vec3f C, int color) {
+        drawTriangle(A.x, A.y, A.z, B.x, B.y, B.z, C.x, C.y, C.z, color);
+    }
+
+    public void drawTriangle(float ax, float ay, float az, float bx, float by, float bz,
+                             float cx, float cy, float cz, int color) {
+        if (color == 0) return;
+        growTriangles(1);
+        float[] t = triangles;
+        int o = 9 * triangleCount;
+        t[o] = ax; t[o + 1] = ay; t[o + 2] = az;
+        t[o + 3] = bx; t[o + 4] = by; t[o + 5] = bz;
+        t[o + 6] = cx; t[o + 7] = cy; t[o + 8] = cz;
+        colors[triangleCount++] = color;
+    }
+
+    // Wiele trójkątów naraz, w układzie drawTrianglesTiled (vertices po 3 floaty na wierzchołek,
+    // indices po 3 na trójkąt, colors z 0 dla ścian odrzuconych).
+    public void drawTriangles(float[] vertices, int[] indices, int[] colors, int count) {
+        growTriangles(count);
+        float[] t = triangles;
+        int n = triangleCount;
+        for (int i = 0; i < count; i++) {
+            if (colors[i] == 0) continue;
+            int o = 9 * n;
+            for (int j = 0; j < 3; j++) {
+                int v = 3 * indices[3 * i + j];
+                t[o + 3 * j] = vertices[v];
+                t[o + 3 * j + 1] = vertices[v + 1];
+                t[o + 3 * j + 2] = vertices[v + 2];
+            }
+            this.colors[n++] = colors[i];
+        }
+        triangleCount = n;
+    }
+
+    // Ustala kolejność wykonania trójkątów i układa je w sortedVertices / sortedColors. Klucz sortowania
+    // to 64 bity: w starszej połowie wielkość porządkująca, w młodszej numer trójkąta, więc zwykłe
+    // Arrays.sort na long[] jest stabilne i nic nie alokuje (parallelSort przy wykonaniu równoległym).
+    void prepare(boolean parallel) {
+        int n = triangleCount;
+        if (sortedVertices.length < 9 * n) {
+            sortedVertices = new float[triangles.length];
+            sortedColors = new int[colors.length];
+        }
+        if (identityIndices.length < 3 * n) {
+            identityIndices = new int[3 * (triangles.length / 9)];
+            for (int i = 0; i < identityIndices.length; i++) identityIndices[i] = i;
+        }
+        if (order == Order.SUBMISSION) {
+            System.arraycopy(triangles, 0, sortedVertices, 0, 9 * n);
+            System.arraycopy(colors, 0, sortedColors, 0, n);
+            return;
+        }
+
+        if (keys.length < n) keys = new long[colors.length];
+        long[] keys = this.keys;
+        float[] t = triangles;
+        for (int i = 0; i < n; i++) {
+            int o = 9 * i;
+            int metric;
+            switch (order) {
+                case FRONT_TO_BACK:
+                    metric = ConcurrentFrameBuffer.sortableDepth(Math.min(t[o + 2], Math.min(t[o + 5], t[o + 8])));
+                    break;
+                case BACK_TO_FRONT:
+                    metric = ~ConcurrentFrameBuffer.sortableDepth(Math.max(t[o + 2], Math.max(t[o + 5], t[o + 8])));
+                    break;
+                default: // BY_COLOR
+                    metric = colors[i];
+                    break;
+            }
+            keys[i] = ((long) metric << 32) | i;
+        }
+        if (parallel) Arrays.parallelSort(keys, 0, n); else Arrays.sort(keys, 0, n);
+
+        for (int k = 0; k < n; k++) {
+            int i = (int) keys[k];
+            System.arraycopy(t, 9 * i, sortedVertices, 9 * k, 9);
+            sortedColors[k] = colors[i];
+        }
+    }
+
+    // Nakładka w kolejności zapisu, po trójkątach.
+    void drawOverlay(Renderer renderer) {
+        int[] s = overlay;
+        int o = 0;
+        while (o < overlayLength) {
+            switch (s[o]) {
+                case POINT:
+                    renderer.drawPoint(s[o + 1], s[o + 2], s[o + 3]);
+                    o += 4;
+                    break;
+                case LINE:
+                    renderer.drawLine(s[o + 1], s[o + 2], s[o + 3], s[o + 4], s[o + 5]);
+                    o += 6;
+                    break;
+                default: // TRIANGLE_2D
+                    renderer.addPixels(renderer.rasterizeTriangle(
+                            Float.intBitsToFloat(s[o + 1]), Float.intBitsToFloat(s[o + 2]), 0.0f,
+                            Float.intBitsToFloat(s[o + 3]), Float.intBitsToFloat(s[o + 4]), 0.0f,
+                            Float.intBitsToFloat(s[o + 5]), Float.intBitsToFloat(s[o + 6]), 0.0f,
+                            s[o + 7], false, 0, 0, renderer.render.getWidth(), renderer.render.getHeight()));
+                    o += 8;
+                    break;
+            }
+        }
+    }
+
+    private void growTriangles(int more) {
+        int needed = triangleCount + more;
+        if (colors.length >= needed) return;
+        int capacity = Math.max(needed, 2 * colors.length);
+        triangles = Arrays.copyOf(triangles, 9 * capacity);
+        colors = Arrays.copyOf(colors, capacity);
+    }
+
+    private int growOverlay(int length) {
+        int o = overlayLength;
+        if (overlay.length < o + length) overlay = Arrays.copyOf(overlay, Math.max(o + length, 2 * overlay.length));
+        overlayLength = o + length;
+        return o;
+    }
+}
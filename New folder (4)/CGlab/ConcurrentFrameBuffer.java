@@ -0,0 +1,117 @@
+package CGlab;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+// Wspólny cel renderowania dla wielu wątków naraz. Głębokość i kolor piksela są spakowane w jeden long
+// (głębokość w starszych 32 bitach, kolor ARGB w młodszych), więc test głębokości i zapis koloru to jedna
+// operacja compare-and-set, bez blokad i bez podziału ekranu na kafelki. Dzięki temu kilka modeli albo
+// kilka partii ścian jednego modelu może być rasteryzowanych jednocześnie, a widoczność i tak jest poprawna.
+//
+// Głębokość jest zapisana jako int zachowujący kolejność floatów (sortableDepth), czyli porównanie
+// starszych połówek jako liczb ze znakiem daje to samo, co porównanie głębokości. Przy równej głębokości
+// zostaje piksel zapisany wcześniej - tak jak w rysowaniu jednowątkowym, tylko że "wcześniej" zależy tu
+// od kolejności wątków.
+//
+// Wynik trafia do zwykłego FrameBuffer i DepthBuffer dopiero w resolve().
+public class ConcurrentFrameBuffer {
+
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    public final int width;
+    public final int height;
+    private final long[] cells;
+
+    public ConcurrentFrameBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.cells = new long[width * height];
+        clear(0xff000000);
+    }
+
+    public void clear(int color) {
+        Arrays.fill(cells, pack(Float.POSITIVE_INFINITY, color));
+    }
+
+    // Test głębokości i zapis w jednym kroku: kolor i głębokość zostają zapisane tylko wtedy, gdy z jest
+    // bliżej niż to, co leży w pikselu i. Pętla powtarza się tylko, jeśli inny wątek zmienił piksel między
+    // odczytem a CAS; piksel zasłonięty kończy się na jednym zwykłym odczycie.
+    public boolean testAndSet(int i, float z, int color) {
+        int key = sortableDepth(z);
+        long value = ((long) key << 32) | (color & 0xffffffffL);
+        long old = (long) CELLS.getOpaque(cells, i);
+        while (key < (int) (old >> 32)) {
+            long witness = (long) CELLS.compareAndExchange(cells, i, old, value);
+            if (witness == old) return true;
+            old = witness;
+        }
+        return false;
+    }
+
+    // Zapis koloru bez testu głębokości (głębokość piksela zostaje bez zmian).
+    public void setColor(int i, int color) {
+        long old = (long) CELLS.getOpaque(cells, i);
+        while (true) {
+            long value = (old & 0xffffffff00000000L) | (color & 0xffffffffL);
+            long witness = (long) CELLS.compareAndExchange(cells, i, old, value);
+            if (witness == old) return;
+            old = witness;
+        }
+    }
+
+    public int getColor(int x, int y) {
+        return (int) (long) CELLS.getOpaque(cells, y * width + x);
+    }
+
+    public float getDepth(int x, int y) {
+        return depthOf((long) CELLS.getOpaque(cells, y * width + x));
+    }
+
+    // Przepisuje zawartość zwykłych buforów, np. przy przejściu renderera w tryb współbieżny.
+    public void load(FrameBuffer frameBuffer, DepthBuffer zbuffer) {
+        checkSize(frameBuffer.width, frameBuffer.height);
+        int[] pixels = frameBuffer.pixels;
+        float[] depth = zbuffer.depth;
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = pack(depth[i], pixels[i]);
+        }
+    }
+
+    // Kopiuje kolory i głębokości do zwykłych buforów. Wywołujący musi zadbać, żeby nikt w tym czasie
+    // nie rasteryzował (np. po zakończeniu równoległego strumienia, który daje happens-before).
+    public void resolve(FrameBuffer frameBuffer, DepthBuffer zbuffer) {
+        checkSize(frameBuffer.width, frameBuffer.height);
+        int[] pixels = frameBuffer.pixels;
+        float[] depth = zbuffer.depth;
+        for (int i = 0; i < cells.length; i++) {
+            long cell = cells[i];
+            pixels[i] = (int) cell;
+            depth[i] = depthOf(cell);
+        }
+        zbuffer.rebuild();
+    }
+
+    void checkSize(int width, int height) {
+        if (width != this.width || height != this.height) {
+            throw new IllegalArgumentException("Frame buffer size mismatch: " + width + "x" + height
+                                               + " vs " + this.width + "x" + this.height);
+        }
+    }
+
+    static long pack(float z, int color) {
+        return ((long) sortableDepth(z) << 32) | (color & 0xffffffffL);
+    }
+
+    // Bity floata przekształcone tak, żeby kolejność intów ze znakiem była kolejnością floatów: dla liczb
+    // ujemnych odwracamy bity wykładnika i mantysy. Dodanie 0.0f zamienia -0 na +0 (dla floatów są równe).
+    static int sortableDepth(float z) {
+        int bits = Float.floatToIntBits(z + 0.0f);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    static float depthOf(long cell) {
+        int key = (int) (cell >> 32);
+        return Float.intBitsToFloat(key ^ ((key >> 31) & 0x7fffffff));
+    }
+}
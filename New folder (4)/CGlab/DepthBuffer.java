@@ -0,0 +1,120 @@
+package CGlab;
+
+import java.util.Arrays;
+
+// Płaski z-bufor (jedna tablica float[], układ wierszowy jak w FrameBuffer) z hierarchią Hi-Z:
+// dla każdego kafelka TILE x TILE pamiętamy największą głębokość w kafelku. Jeśli najbliższy punkt
+// trójkąta (albo całego modelu) jest dalej niż maksimum każdego kafelka, który przykrywa, to żaden
+// jego piksel nie przejdzie testu głębokości i można go odrzucić bez rasteryzacji.
+//
+// Maksimum kafelka jest liczone leniwie: zapis piksela tylko oznacza kafelek jako nieaktualny,
+// a przeliczenie następuje przy pierwszym zapytaniu. Dopóki w kafelku jest choć jeden piksel
+// z głębokością +Inf, maksimum i tak wynosi +Inf, więc nic nie przeliczamy.
+public class DepthBuffer {
+
+    public static final int TILE_SHIFT = 3;
+    public static final int TILE = 1 << TILE_SHIFT;
+
+    public final int width;
+    public final int height;
+    public final float[] depth;
+
+    public final int tilesX;
+    public final int tilesY;
+    private final float[] tileMax;
+    private final int[] tileUncovered;  // ile pikseli kafelka ma jeszcze głębokość +Inf
+    private final boolean[] tileDirty;
+
+    public DepthBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.depth = new float[width * height];
+        this.tilesX = (width + TILE - 1) / TILE;
+        this.tilesY = (height + TILE - 1) / TILE;
+        this.tileMax = new float[tilesX * tilesY];
+        this.tileUncovered = new int[tilesX * tilesY];
+        this.tileDirty = new boolean[tilesX * tilesY];
+        clear();
+    }
+
+    public void clear() {
+        Arrays.fill(depth, Float.POSITIVE_INFINITY);
+        Arrays.fill(tileMax, Float.POSITIVE_INFINITY);
+        Arrays.fill(tileDirty, false);
+        for (int ty = 0; ty < tilesY; ty++) {
+            int h = Math.min(TILE, height - ty * TILE);
+            for (int tx = 0; tx < tilesX; tx++) {
+                tileUncovered[ty * tilesX + tx] = h * Math.min(TILE, width - tx * TILE);
+            }
+        }
+    }
+
+    // Przelicza stan kafelków Hi-Z po zapisie bezpośrednio do depth (np. ConcurrentFrameBuffer.resolve).
+    public void rebuild() {
+        Arrays.fill(tileUncovered, 0);
+        Arrays.fill(tileDirty, true);
+        for (int y = 0; y < height; y++) {
+            int rowTiles = (y >> TILE_SHIFT) * tilesX;
+            for (int x = 0, i = y * width; x < width; x++, i++) {
+                if (depth[i] == Float.POSITIVE_INFINITY) tileUncovered[rowTiles + (x >> TILE_SHIFT)]++;
+            }
+        }
+    }
+
+    // Liczba pikseli, do których jeszcze nic nie zapisano (dla RenderMetrics.pixelsCovered).
+    public long uncoveredCount() {
+        long count = 0;
+        for (int uncovered : tileUncovered) count += uncovered;
+        return count;
+    }
+
+    public float get(int x, int y) {
+        return depth[y * width + x];
+    }
+
+    // Zapis głębokości pod indeksem i = y * width + x. Głębokość może tylko maleć (test z < depth[i]
+    // robi wywołujący), więc nieaktualne maksimum kafelka jest nadal poprawnym ograniczeniem górnym.
+    public void write(int i, int x, int y, float z) {
+        int t = (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+        if (depth[i] == Float.POSITIVE_INFINITY) tileUncovered[t]--;
+        depth[i] = z;
+        tileDirty[t] = true;
+    }
+
+    // Zapis bloku pikseli jednego wiersza w obrębie jednego kafelka, wykonany już bezpośrednio do depth
+    // (ścieżka SIMD); newlyCovered to liczba zapisanych pikseli, które miały wcześniej głębokość +Inf.
+    public void markWritten(int x, int y, int newlyCovered) {
+        int t = (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+        tileUncovered[t] -= newlyCovered;
+        tileDirty[t] = true;
+    }
+
+    // Czy cały prostokąt pikseli [minX, maxX] x [minY, maxY] (domknięty) jest już zasłonięty przez
+    // coś bliższego niż minZ. Wymaga, żeby równolegle nikt nie pisał do tych samych kafelków Hi-Z.
+    public boolean occludes(int minX, int minY, int maxX, int maxY, float minZ) {
+        int tx0 = minX >> TILE_SHIFT, tx1 = maxX >> TILE_SHIFT;
+        int ty0 = minY >> TILE_SHIFT, ty1 = maxY >> TILE_SHIFT;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                int t = ty * tilesX + tx;
+                if (tileUncovered[t] > 0) return false;
+                if (tileDirty[t]) updateTileMax(t);
+                if (!(minZ >= tileMax[t])) return false;
+            }
+        }
+        return true;
+    }
+
+    private void updateTileMax(int t) {
+        int x0 = (t % tilesX) * TILE, y0 = (t / tilesX) * TILE;
+        int x1 = Math.min(width, x0 + TILE), y1 = Math.min(height, y0 + TILE);
+        float max = Float.NEGATIVE_INFINITY;
+        for (int y = y0; y < y1; y++) {
+            for (int i = y * width + x0, end = y * width + x1; i < end; i++) {
+                max = Math.max(max, depth[i]);
+            }
+        }
+        tileMax[t] = max;
+        tileDirty[t] = false;
+    }
+}
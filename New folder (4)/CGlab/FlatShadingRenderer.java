@@ -1,5 +1,8 @@
 package CGlab;
 
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
 public class FlatShadingRenderer extends Renderer {
 
     private Vec3f lightSource = new Vec3f(0.0f, 0.0f, 5.0f); // źródło światła "przed ekranem"
@@ -8,21 +11,63 @@ public class FlatShadingRenderer extends Renderer {
     private Vec3f gaze = new Vec3f(0.0f, -0.3f, -1.0f);   // i skierowana nieco w dół
     private Vec3f viewUp = new Vec3f(0.0f, 1.0f, 0.0f);
 
-    private Matrix4f Mcam;
-    private Matrix4f Mper;
-    private Matrix4f Mvp;
+    private final Matrix4f Mcam = new Matrix4f();
+    private final Matrix4f Mper = new Matrix4f();
+    private final Matrix4f Mvp = new Matrix4f();
+    private final Matrix4f M = new Matrix4f();    // Mvp * Mper * Mcam (* macierz modelu instancji)
 
     private float fov = 45;
+    // Klatka, której wycinek rysuje ten renderer: rozmiar całej klatki (do rzutowania; wiersz, od którego
+    // zaczyna się obraz renderera, to frameOffsetY). Domyślnie klatka to cały obraz; inaczej tylko w StripRenderer.
+    private int frameWidth, frameHeight;
     private float far = -25;
     private float near = -1;
 
     protected boolean cullFace = true;
+    protected boolean parallel = true;
+    protected boolean faceSorting = false;
+    protected boolean lod = false;
+    private float lodPixelError = 1.0f;
+
+    // przy faceSorting ściany przechodzą przez bufor poleceń i są rysowane od najbliższych
+    private final CommandBuffer commands = new CommandBuffer(CommandBuffer.Order.FRONT_TO_BACK);
+
+    protected VertexBuffer vertexBuffer = new VertexBuffer();
+    private int[] colors = new int[0];    // kolor każdej ściany, 0 = ściana odrzucona
+    private final FaceScratch sequentialScratch = new FaceScratch();
+
+    // trójkąty powstałe z obcięcia płaszczyzną bliską w bieżącym render(), we współrzędnych ekranu
+    private float[] clipped = new float[0];
+    private int[] clippedColors = new int[0];
+    private int clippedCount;
+    private final float[] clipInput = new float[12];
+    private final float[] clipScratch = new float[16];
+    private final Vec3f clipVertex = new Vec3f();
+
+    // tryb bufora widoczności: render() zapisuje numery ścian, cieniowanie dopiero w resolve()
+    protected VisibilityBuffer visibility;
+    private boolean visibilityShaded = true;
+
+    private static final int FACE_BATCH = 4096;
+    // Ściany zwartej siatki idą przez setup i rasteryzację oknami po tyle ścian (całe bloki indeksów),
+    // rozpakowanymi do jednego bufora roboczego - pamięć robocza nie zależy od wielkości modelu.
+    private static final int FACE_WINDOW = 16 * QuantizedMesh.BLOCK_FACES;
+    // Pozycje wierzchołków okna są dekodowane raz na okno, jeśli jego indeksy mieszczą się w przedziale
+    // najwyżej tylu wierzchołków (po MeshOptimizer i w siatkach z generatorów mieszczą się z zapasem).
+    private static final int WINDOW_VERTICES = 4 * FACE_WINDOW;
+    private int[] windowIndices = new int[0];
+    private float[] windowPositions = new float[0];
+    private final FaceWindow window = new FaceWindow();
+    private final Matrix4f normalWorld = new Matrix4f();
+    private final FaceCounts counts = new FaceCounts();
 
     public FlatShadingRenderer(String filename) { 
         super(filename);
+        setFrameRegion(render.getWidth(), render.getHeight(), 0);
     }
     public FlatShadingRenderer(String filename, int w, int h) { 
         super(filename, w, h);
+        setFrameRegion(w, h, 0);
     }
 
     public void backfaceCullingOff() {this.cullFace = false;}
@@ -31,10 +76,121 @@ public class FlatShadingRenderer extends Renderer {
     public void zbufferTestOff() {this.zbufferTest = false;}
     public void zbufferTestOn() {this.zbufferTest = true;}
 
+    public void parallelRenderingOff() {this.parallel = false;}
+    public void parallelRenderingOn() {this.parallel = true;}
+
+    public void lodOff() {this.lod = false;}
+    public void lodOn() {this.lod = true;}
+
+    // LOD: zamiast pełnej siatki rysowany jest najprostszy poziom z getLods(), którego błąd geometryczny
+    // po rzutowaniu na ekran (w najbliższym punkcie sfery otaczającej) nie przekracza pixelError pikseli.
+    public void lodOn(float pixelError) {
+        this.lodPixelError = pixelError;
+        this.lod = true;
+    }
+
+    public void faceSortingOff() {this.faceSorting = false;}
+    public void faceSortingOn() {faceSortingOn(CommandBuffer.Order.FRONT_TO_BACK);}
+
+    public void faceSortingOn(CommandBuffer.Order order) {
+        this.commands.setOrder(order);
+        this.faceSorting = true;
+    }
+
+    // Bufor widoczności: render() rasteryzuje tylko numery ścian i głębokość, a cieniowanie każdej
+    // widocznej ściany i zapis każdego piksela odbywa się raz, w resolve() (save() woła je sam).
+    // Modele z klatki nie mogą się zmieniać do resolve() i relight(), bo cieniowanie czyta ich wierzchołki
+    // (macierze instancji są zapamiętywane, więc instancje można przestawiać od razu).
+    public void visibilityBufferOn() {
+        if (visibility == null) visibility = new VisibilityBuffer(render.getWidth(), render.getHeight());
+    }
+
+    public void visibilityBufferOff() {
+        resolve();
+        visibility = null;
+    }
+
+    // Obraz renderera to wiersze [offsetY, offsetY + wysokość obrazu) klatki frameWidth x frameHeight.
+    void setFrameRegion(int frameWidth, int frameHeight, int offsetY) {
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.frameOffsetY = offsetY;
+    }
+
+    public void setLightSource(Vec3f light) {
+        lightSource.set(light.x, light.y, light.z);
+        visibilityShaded = false;
+    }
+
+    // Zmiana światła bez przebiegu geometrii: obraz jest przeliczany z bufora widoczności.
+    public void relight(Vec3f light) {
+        if (visibility == null) throw new IllegalStateException("relight needs the visibility buffer");
+        setLightSource(light);
+        resolve();
+    }
+
+    @Override
+    public void clear(int color) {
+        super.clear(color);
+        if (visibility != null) {
+            visibility.clear();
+            visibilityShaded = true;
+        }
+    }
+
+    @Override
+    public void resolve() {
+        super.resolve();
+        if (visibility != null && !visibilityShaded) shadeVisibilityBuffer();
+    }
+
+    // Przebieg cieniowania: ściany trafione w co najmniej jeden piksel (markVisible), kolor każdej z nich
+    // liczony raz, równolegle partiami ścian, i na koniec jeden zapis na piksel (writeColors).
+    private void shadeVisibilityBuffer() {
+        long start = RenderMetrics.start();
+        VisibilityBuffer visibility = this.visibility;
+        int covered = visibility.markVisible();
+        for (int draw = 0; draw < visibility.getDrawCount(); draw++) {
+            Geometry model = visibility.getModel(draw);
+            Matrix4f world = visibility.getTransform(draw);
+            int base = visibility.getBase(draw);
+            int faceCount = model.getFaceCount();
+            // zwarta siatka: indeksy i pozycje partii rozpakowywane dopiero, gdy partia ma widoczną ścianę
+            QuantizedMesh quantized = model instanceof QuantizedMesh ? (QuantizedMesh) model : null;
+            Matrix4f normalMatrix = normalMatrix(world, new Matrix4f());
+            int batches = (faceCount + FACE_BATCH - 1) / FACE_BATCH;
+            IntStream.range(0, batches).parallel().forEach(b -> {
+                FaceScratch scratch = new FaceScratch();
+                FaceWindow window = null;
+                int first = b * FACE_BATCH, end = Math.min(faceCount, first + FACE_BATCH);
+                int offset = quantized == null ? 0 : first;
+                for (int i = first; i < end; i++) {
+                    if (!visibility.isVisible(base + i)) continue;
+                    if (window == null) {
+                        window = new FaceWindow();
+                        window.set(model, world, normalMatrix, offset);
+                        if (quantized != null) {
+                            window.indices = new int[3 * (end - first)];
+                            quantized.decodeFaces(first, end - first, window.indices);
+                            decodeWindowPositions(quantized, window, end - first, new float[0]);
+                        }
+                    }
+                    faceGeometry(window, i - offset, scratch);
+                    visibility.setFaceColor(base + i, shadeFace(scratch));
+                }
+            });
+        }
+        visibility.writeColors(frameBuffer.pixels);
+        visibilityShaded = true;
+        RenderMetrics.end(RenderMetrics.Stage.SHADING, start, covered);
+    }
+
     private void computeCameraMatrix(){
 
-        gaze.normalize();
+        // normalizujemy kopię: gaze.normalize() w miejscu zmieniało przy kolejnych wywołaniach ostatnie
+        // bity wektora, więc drugi render() tego samego renderera miał minimalnie inną kamerę niż pierwszy
         Vec3f w = new Vec3f(-gaze.x, -gaze.y, -gaze.z);
+        w.normalize();
         Vec3f u = viewUp.cross(w);
         u.normalize();
         Vec3f v = w.cross(u);
@@ -50,92 +206,540 @@ public class FlatShadingRenderer extends Renderer {
                                    0.0f, 0.0f, 1.0f, -eye.z,
                                    0.0f, 0.0f, 0.0f, 1.0f);
 
-        Mcam = Matrix4f.multiply(M1, M2);
+        Matrix4f.multiplyInto(M1, M2, Mcam);
     }
 
     private void computePerspectiveMatrix() {
         float theta = (float)Math.toRadians(fov);
-        float a = render.getWidth() / (float)render.getHeight();
+        float a = frameWidth / (float)frameHeight;
 
-        Mper = new Matrix4f(1 / (a * (float) Math.tan(theta / 2)), 0.0f, 0.0f, 0.0f,
-                            0.0f, 1 / (float) Math.tan(theta / 2), 0.0f, 0.0f,
-                            0.0f, 0.0f, -((far + near) / (far - near)), -((2 * far * near) / (far - near)),
-                            0.0f, 0.0f, -1.0f, 0.0f);
+        Mper.set(1 / (a * (float) Math.tan(theta / 2)), 0.0f, 0.0f, 0.0f,
+                 0.0f, 1 / (float) Math.tan(theta / 2), 0.0f, 0.0f,
+                 0.0f, 0.0f, -((far + near) / (far - near)), -((2 * far * near) / (far - near)),
+                 0.0f, 0.0f, -1.0f, 0.0f);
     }
 
     private void computeViewportMatrix() {
-        Mvp = new Matrix4f(render.getWidth() / 2.0f, 0.0f, 0.0f, render.getWidth() / 2.0f,
-        0.0f, render.getHeight() / 2.0f, 0.0f, render.getHeight() / 2.0f,
+        Mvp.set(frameWidth / 2.0f, 0.0f, 0.0f, frameWidth / 2.0f,
+        0.0f, frameHeight / 2.0f, 0.0f, frameHeight / 2.0f,
         0.0f, 0.0f, 1.0f, 0.0f,
         0.0f, 0.0f, 0.0f, 1.0f);
     }
     public void render(Model model) {
+        render(model, null);
+    }
 
-        System.out.println("----------Rendering model----------");
-        
-        float avgZculled = 0.0f;
-        float avgZdrawed = 0.0f;
+    // Instancja współdzielonej siatki: jej macierz modelu jest dokładana do M, więc wierzchołki siatki
+    // są przekształcane do świata i na ekran jednym mnożeniem, bez kopii geometrii.
+    public void render(MeshInstance instance) {
+        render(instance.getMesh(), instance.getTransform());
+    }
 
+    // Czasy etapów i liczniki trafiają do RenderMetrics (jeśli są włączone), zamiast na System.out.
+    // world to macierz model -> świat, null oznacza jednostkową (wierzchołki już są w układzie świata).
+    public void render(Geometry geometry, Matrix4f world) {
         this.computeCameraMatrix();
         this.computePerspectiveMatrix();
         this.computeViewportMatrix();
 
-        System.out.println("Camera Matrix:");
-        System.out.println(Mcam.toString());
-        System.out.println("Perspective Matrix:");
-        System.out.println(Mper.toString());
+        Matrix4f.multiplyInto(Mper, Mcam, M);
+        Matrix4f.multiplyInto(Mvp, M, M);
+        if (world != null) Matrix4f.multiplyInto(M, world, M);
+
+        // z włączonym LOD dalej rysujemy wybrany poziom siatki zamiast pełnej geometrii
+        int lodLevel = lod ? selectLod(geometry.getLods(), geometry.getBounds(), world) : 0;
+        Geometry selected = lodLevel == 0 ? geometry : geometry.getLods().getLevel(lodLevel);
+        int faceCount = selected.getFaceCount();
+        int savedByLod = geometry.getFaceCount() - faceCount;
+
+        // metrics: liczniki RenderMetrics; recording: JFR nagrywa CGlab.Render (także bez RenderMetrics.enable())
+        boolean metrics = RenderMetrics.enabled;
+        boolean recording = RenderMetrics.recordingRenders();
+        // model w całości poza bryłą widzenia: nie dotykamy ani jednego wierzchołka
+        if (isOutsideFrustum(selected)) {
+            if (metrics) {
+                RenderMetrics.trianglesSavedByLod.add(savedByLod);
+                RenderMetrics.modelsCulled.increment();
+                RenderMetrics.trianglesSubmitted.add(faceCount);
+                RenderMetrics.trianglesCulled.add(faceCount);
+            }
+            return;
+        }
+
+        // piksele tylko tego renderera: przyrost jego liczników, nie globalnych (inne wątki rysują naraz)
+        long uncoveredBefore = metrics || recording ? zbuffer.uncoveredCount() : 0;
+        long testedBefore = pixelsTested, writtenBefore = pixelsWritten;
+        RenderMetrics.RenderEvent event = null;
+        if (recording) {
+            event = new RenderMetrics.RenderEvent();
+            event.begin();
+        }
+
+        // każdy wierzchołek transformujemy raz; ściany i rasteryzer czytają już tylko z vertexBuffer
+        long start = RenderMetrics.start();
+        vertexBuffer.transform(selected, M, render.getWidth(), render.getHeight(), frameOffsetY, near, far, parallel);
+        RenderMetrics.end(RenderMetrics.Stage.TRANSFORM, start, selected.getVertexCount());
+
+        // z buforem widoczności "kolorem" ściany jest jej numer + 1, a cieniowanie czeka na resolve()
+        if (visibility != null && concurrentTarget != null) {
+            throw new IllegalStateException("Visibility buffer and concurrent frame buffer cannot be combined");
+        }
+        int idBase = visibility == null ? -1 : visibility.addDraw(selected, world) + 1;
+
+        FaceCounts counts = this.counts;
+        counts.reset();
+        int windows = 1;
+        if (selected instanceof QuantizedMesh) {
+            windows = (faceCount + FACE_WINDOW - 1) / FACE_WINDOW;
+            for (int first = 0; first < faceCount; first += FACE_WINDOW) {
+                drawFaces(selected, first, Math.min(FACE_WINDOW, faceCount - first), world, idBase,
+                          metrics || recording, counts);
+            }
+        } else {
+            drawFaces(selected, 0, faceCount, world, idBase, metrics || recording, counts);
+        }
+        int culled = counts.culled, backfacing = counts.backfacing, clippedFaces = counts.clipped;
+        boolean occluded = counts.occluded > 0 && counts.occluded == windows;
+
+        long covered = metrics || recording ? uncoveredBefore - zbuffer.uncoveredCount() : 0;
+        if (metrics) {
+            RenderMetrics.trianglesSubmitted.add(faceCount);
+            RenderMetrics.trianglesCulled.add(culled);
+            RenderMetrics.trianglesBackfacing.add(backfacing);
+            RenderMetrics.trianglesClipped.add(clippedFaces);
+            if (occluded) RenderMetrics.modelsOccluded.increment();
+            RenderMetrics.trianglesRasterized.add(counts.rasterized);
+            RenderMetrics.trianglesSavedByLod.add(savedByLod);
+            RenderMetrics.pixelsCovered.add(covered);
+        }
+        if (recording) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.trianglesSubmitted = faceCount;
+                event.trianglesCulled = culled;
+                event.trianglesBackfacing = backfacing;
+                event.trianglesClipped = clippedFaces;
+                event.lodLevel = lodLevel;
+                event.trianglesSavedByLod = savedByLod;
+                event.pixelsTested = pixelsTested - testedBefore;
+                event.pixelsWritten = pixelsWritten - writtenBefore;
+                event.pixelsCovered = covered;
+                event.width = render.getWidth();
+                event.height = render.getHeight();
+                event.commit();
+            }
+        }
+    }
+
+    // Setup, obcinanie i rasteryzacja ścian [first, first + faceCount) modelu, którego wierzchołki są już
+    // w vertexBuffer; wyniki dopisywane do counts. Ściany zwykłej geometrii idą jednym wywołaniem (first = 0),
+    // zwartej - oknami po FACE_WINDOW, z indeksami rozpakowanymi do windowIndices.
+    private void drawFaces(Geometry model, int first, int faceCount, Matrix4f world, int idBase, boolean metrics,
+                           FaceCounts counts) {
+        long start = RenderMetrics.start();
+        FaceWindow window = this.window;
+        window.set(model, world, normalMatrix(world, normalWorld), first);
+        if (model instanceof QuantizedMesh) {
+            QuantizedMesh quantized = (QuantizedMesh) model;
+            window.indices = decodeWindow(quantized, first, faceCount);
+            windowPositions = decodeWindowPositions(quantized, window, faceCount, windowPositions);
+        }
+        int[] indices = window.indices;
+        int ids = idBase < 0 ? -1 : idBase + first;
+        float[] screenCoords = vertexBuffer.screen;
+        if (colors.length < faceCount) colors = new int[faceCount];
+        int[] colors = this.colors;
+
+        if (parallel) {
+            // każda ściana pisze tylko do swojego elementu tablicy, więc kolejność wykonania nie ma znaczenia;
+            // wektory pomocnicze są wspólne dla całej partii ścian, a nie tworzone dla każdej ściany
+            int batches = (faceCount + FACE_BATCH - 1) / FACE_BATCH;
+            IntStream.range(0, batches).parallel().forEach(b -> {
+                FaceScratch scratch = new FaceScratch();
+                for (int i = b * FACE_BATCH, end = Math.min(faceCount, i + FACE_BATCH); i < end; i++) {
+                    colors[i] = setupFace(window, i, scratch, ids);
+                }
+            });
+        } else {
+            for (int i = 0; i < faceCount; i++) {
+                colors[i] = setupFace(window, i, sequentialScratch, ids);
+            }
+        }
+        // ściany przecinające płaszczyznę bliską są zastępowane trójkątami po obcięciu (clipped)
+        int clippedFaces = vertexBuffer.nearVertices ? clipNearFaces(window, colors, faceCount) : 0;
+        if (clippedFaces == 0) clippedCount = 0;
+        RenderMetrics.end(RenderMetrics.Stage.SETUP, start, faceCount);
+
+        int culled = 0, backfacing = 0;
+        if (metrics) {
+            byte[] outcode = vertexBuffer.outcode;
+            int rejected = 0;
+            for (int i = 0; i < faceCount; i++) {
+                if (colors[i] != 0) continue;
+                rejected++;
+                if ((outcode[indices[3 * i]] & outcode[indices[3 * i + 1]] & outcode[indices[3 * i + 2]]) != 0) culled++;
+            }
+            backfacing = rejected - culled - clippedFaces;
+        }
+        int rasterized = faceCount - culled - backfacing - clippedFaces + clippedCount;
+
+        start = RenderMetrics.start();
+        if (visibility != null) {
+            rasterTarget = visibility.ids;
+            visibilityShaded = false;
+        }
+        // w trybie współbieżnym zbuffer nie odzwierciedla tego, co narysowały inne wątki
+        // (trójkątów po obcięciu nie ma w bounding boxie isOccluded, więc wtedy test pomijamy)
+        boolean occluded = zbufferTest && concurrentTarget == null && clippedCount == 0
+                           && isOccluded(screenCoords, indices, colors, faceCount);
+        if (occluded) {
+            // całe okno jest schowane za tym, co już narysowano - pomijamy rasteryzację
+        } else if (faceSorting) {
+            commands.reset();
+            commands.drawTriangles(screenCoords, indices, colors, faceCount);
+            float[] t = clipped;
+            for (int k = 0; k < clippedCount; k++) {
+                int o = 9 * k;
+                commands.drawTriangle(t[o], t[o + 1], t[o + 2], t[o + 3], t[o + 4], t[o + 5],
+                                      t[o + 6], t[o + 7], t[o + 8], clippedColors[k]);
+            }
+            submit(commands, parallel);
+        } else if (parallel && concurrentTarget != null) {
+            drawTrianglesConcurrent(screenCoords, indices, colors, faceCount);
+        } else if (parallel) {
+            drawTrianglesTiled(screenCoords, indices, colors, faceCount);
+        } else {
+            long tested = 0, written = 0;
+            for (int i = 0; i < faceCount; i++) {
+                if (colors[i] == 0) continue;
+                int a = 3 * indices[3 * i], b = 3 * indices[3 * i + 1], c = 3 * indices[3 * i + 2];
+                long pixels = rasterizeTriangle(screenCoords[a], screenCoords[a + 1], screenCoords[a + 2],
+                                                screenCoords[b], screenCoords[b + 1], screenCoords[b + 2],
+                                                screenCoords[c], screenCoords[c + 1], screenCoords[c + 2],
+                                                colors[i], zbufferTest, 0, 0, render.getWidth(), render.getHeight());
+                tested += pixels >>> 32;
+                written += pixels & 0xffffffffL;
+            }
+            addPixels(tested, written);
+        }
+        if (!occluded && !faceSorting) {
+            float[] t = clipped;
+            for (int k = 0; k < clippedCount; k++) {
+                int o = 9 * k;
+                addPixels(rasterizeTriangle(t[o], t[o + 1], t[o + 2], t[o + 3], t[o + 4], t[o + 5],
+                                            t[o + 6], t[o + 7], t[o + 8],
+                                            clippedColors[k], zbufferTest, 0, 0, render.getWidth(), render.getHeight()));
+            }
+        }
+        rasterTarget = frameBuffer.pixels;
+        RenderMetrics.end(RenderMetrics.Stage.RASTERIZATION, start, occluded ? 0 : rasterized);
+
+        counts.culled += culled;
+        counts.backfacing += backfacing;
+        counts.clipped += clippedFaces;
+        if (occluded) counts.occluded++;
+        else counts.rasterized += rasterized;
+    }
 
-        Matrix4f M = Matrix4f.multiply(Mper, Mcam);
-        M = Matrix4f.multiply(Mvp, M);
+    // Indeksy ścian [first, first + count) zwartej siatki do windowIndices, blokami (równolegle).
+    private int[] decodeWindow(QuantizedMesh model, int first, int count) {
+        if (windowIndices.length < 3 * count) windowIndices = new int[3 * FACE_WINDOW];
+        int[] out = windowIndices;
+        int block = first / QuantizedMesh.BLOCK_FACES;
+        int blocks = (count + QuantizedMesh.BLOCK_FACES - 1) / QuantizedMesh.BLOCK_FACES;
+        if (parallel) {
+            IntStream.range(0, blocks).parallel()
+                     .forEach(k -> model.decodeBlock(block + k, out, 3 * k * QuantizedMesh.BLOCK_FACES));
+        } else {
+            model.decodeFaces(first, count, out);
+        }
+        return out;
+    }
 
-        for (Vec3i face : model.getFaceList()) {
+    // Pozycje wierzchołków ścian okna zwartej siatki (indeksy już w window.indices), dekodowane raz na okno
+    // zamiast przy każdej ścianie: przedział od najmniejszego do największego indeksu okna, jeśli ma najwyżej
+    // WINDOW_VERTICES wierzchołków, trafia do buffer (za mały jest zastępowany nowym; zwracany jest użyty).
+    // Przy rozrzuconych indeksach window.positions = null i wierzchołki dekoduje pojedynczo position().
+    private static float[] decodeWindowPositions(QuantizedMesh model, FaceWindow window, int faceCount,
+                                                 float[] buffer) {
+        int[] indices = window.indices;
+        int min = Integer.MAX_VALUE, max = -1;
+        for (int i = 0; i < 3 * faceCount; i++) {
+            min = Math.min(min, indices[i]);
+            max = Math.max(max, indices[i]);
+        }
+        int count = max - min + 1;
+        if (max < 0 || count > WINDOW_VERTICES) {
+            window.positions = null;
+            return buffer;
+        }
+        if (buffer.length < 3 * count) buffer = new float[3 * count];
+        model.decodePositions(buffer, min, max + 1);
+        window.positions = buffer;
+        window.vertexBase = min;
+        return buffer;
+    }
 
-            Vec3f[] screen_coords = new Vec3f[3];
-            Vec3f[] world_coords = new Vec3f[3];
+    // Poziom LOD dla modelu o prostopadłościanie bounds (w układzie modelu) i macierzy modelu world.
+    // Błąd poziomu e (jednostki modelu) w odległości d od kamery (wzdłuż osi widzenia) zajmuje na ekranie
+    // e * s * f / d pikseli, gdzie s to największa skala macierzy modelu, a f = (h / 2) / tan(fov / 2).
+    // Bierzemy d najbliższego punktu sfery otaczającej, więc żadna część modelu nie ma większego błędu.
+    private int selectLod(LodChain chain, float[] bounds, Matrix4f world) {
+        if (chain.getLevelCount() == 1 || !(bounds[0] <= bounds[3])) return 0;
+        float cx = (bounds[0] + bounds[3]) / 2, cy = (bounds[1] + bounds[4]) / 2, cz = (bounds[2] + bounds[5]) / 2;
+        float dx = bounds[3] - bounds[0], dy = bounds[4] - bounds[1], dz = bounds[5] - bounds[2];
+        float radius = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) / 2;
+        float scale = 1.0f;
+        if (world != null) {
+            float wx = world.data(0, 0) * cx + world.data(0, 1) * cy + world.data(0, 2) * cz + world.data(0, 3);
+            float wy = world.data(1, 0) * cx + world.data(1, 1) * cy + world.data(1, 2) * cz + world.data(1, 3);
+            float wz = world.data(2, 0) * cx + world.data(2, 1) * cy + world.data(2, 2) * cz + world.data(2, 3);
+            cx = wx; cy = wy; cz = wz;
+            for (int col = 0; col < 3; col++) {
+                float x = world.data(0, col), y = world.data(1, col), z = world.data(2, col);
+                scale = Math.max(col == 0 ? 0 : scale, (float) Math.sqrt(x * x + y * y + z * z));
+            }
+        }
+        // kamera patrzy wzdłuż -z swojego układu, więc odległość to -z_cam
+        float depth = -(Mcam.data(2, 0) * cx + Mcam.data(2, 1) * cy + Mcam.data(2, 2) * cz + Mcam.data(2, 3))
+                      - radius * scale;
+        if (!(depth > -near)) return 0;
+        float focal = frameHeight / 2.0f / (float) Math.tan(Math.toRadians(fov) / 2);
+        return chain.select(lodPixelError * depth / (scale * focal));
+    }
+
+    // Test bryły widzenia dla całego modelu: 8 narożników prostopadłościanu otaczającego po transformacji
+    // i ich outcode. Jeśli wszystkie leżą po zewnętrznej stronie tej samej płaszczyzny, to cały model też.
+    private boolean isOutsideFrustum(Geometry model) {
+        if (model.isEmpty()) return true;
+        float[] bounds = model.getBounds();
+        int width = render.getWidth(), height = render.getHeight();
+        int common = 0xff;
+        for (int corner = 0; corner < 8 && common != 0; corner++) {
+            float x = bounds[(corner & 1) == 0 ? 0 : 3];
+            float y = bounds[(corner & 2) == 0 ? 1 : 4];
+            float z = bounds[(corner & 4) == 0 ? 2 : 5];
+            float sx = M.data(0, 0) * x + M.data(0, 1) * y + M.data(0, 2) * z + M.data(0, 3);
+            float sy = M.data(1, 0) * x + M.data(1, 1) * y + M.data(1, 2) * z + M.data(1, 3);
+            float sw = M.data(3, 0) * x + M.data(3, 1) * y + M.data(3, 2) * z + M.data(3, 3);
+            common &= VertexBuffer.outcode(sx, sy, sw, width, height, frameOffsetY, -near, -far);
+        }
+        return common != 0;
+    }
+
+    // Ściany, które przeszły setupFace, a mają wierzchołek za płaszczyzną bliską: obcinamy je
+    // w przestrzeni obcinania (NearPlaneClipper), wynik trafia do clipped / clippedColors, a ściana
+    // dostaje kolor 0, żeby zwykła ścieżka jej nie rysowała. Takich ścian jest zwykle niewiele,
+    // więc pętla jest jednowątkowa. Zwraca liczbę obciętych ścian.
+    private int clipNearFaces(FaceWindow window, int[] colors, int faceCount) {
+        byte[] outcode = vertexBuffer.outcode;
+        int[] indices = window.indices;
+        float[] in = clipInput, scratch = clipScratch;
+        Vec3f vertex = clipVertex;
+        int faces = 0, count = 0;
+        for (int i = 0; i < faceCount; i++) {
+            if (colors[i] == 0) continue;
+            int a = indices[3 * i], b = indices[3 * i + 1], c = indices[3 * i + 2];
+            if (((outcode[a] | outcode[b] | outcode[c]) & VertexBuffer.OUT_NEAR) == 0) continue;
+            vertexBuffer.clipCoords(position(window, a, vertex), in, 0);
+            vertexBuffer.clipCoords(position(window, b, vertex), in, 4);
+            vertexBuffer.clipCoords(position(window, c, vertex), in, 8);
+            if (clippedColors.length < count + 2) {
+                clipped = Arrays.copyOf(clipped, 9 * Math.max(16, 2 * (count + 2)));
+                clippedColors = Arrays.copyOf(clippedColors, Math.max(16, 2 * (count + 2)));
+            }
+            int produced = NearPlaneClipper.clipTriangle(in, -near, scratch, clipped, 9 * count);
+            for (int k = 0; k < produced; k++) clippedColors[count + k] = colors[i];
+            count += produced;
+            colors[i] = 0;
+            faces++;
+        }
+        clippedCount = count;
+        return faces;
+    }
+
+    // Test Hi-Z dla całego modelu: ekranowy bounding box wszystkich widocznych ścian i najmniejsza
+    // głębokość ich wierzchołków porównane z z-buforem.
+    private boolean isOccluded(float[] screenCoords, int[] indices, int[] colors, int faceCount) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < faceCount; i++) {
+            if (colors[i] == 0) continue;
+            for (int j = 0; j < 3; j++) {
+                int o = 3 * indices[3 * i + j];
+                minX = Math.min(minX, screenCoords[o]);
+                maxX = Math.max(maxX, screenCoords[o]);
+                minY = Math.min(minY, screenCoords[o + 1]);
+                maxY = Math.max(maxY, screenCoords[o + 1]);
+                minZ = Math.min(minZ, screenCoords[o + 2]);
+            }
+        }
+        int x0 = (int) Math.max(0, Math.floor(minX));
+        int y0 = (int) Math.max(0, Math.floor(minY) - frameOffsetY);
+        int x1 = (int) Math.min(render.getWidth() - 1, Math.ceil(maxX));
+        int y1 = (int) Math.min(render.getHeight() - 1, Math.ceil(maxY) - frameOffsetY);
+        if (!(x0 <= x1 && y0 <= y1)) return false; // nic do narysowania albo NaN - zostawiamy rasteryzerowi
+        return zbuffer.occludes(x0, y0, x1, y1, minZ);
+    }
 
-            world_coords[0] = model.getVertex(face.x);
-            world_coords[1] = model.getVertex(face.y);
-            world_coords[2] = model.getVertex(face.z);
+    // Odrzucanie (poza bryłą widzenia, backface culling) i cieniowanie jednej ściany. Wierzchołki są już
+    // przetransformowane w vertexBuffer. Zwracany jest kolor albo 0 jeśli ściana została odrzucona;
+    // przy idBase >= 0 (bufor widoczności) zamiast koloru idBase + face, a cieniowanie jest pomijane.
+    private int setupFace(FaceWindow window, int face, FaceScratch scratch, int idBase) {
 
-            for (int j=0; j<3; j++) {
+        // wszystkie trzy wierzchołki po tej samej zewnętrznej stronie bryły widzenia
+        byte[] outcode = vertexBuffer.outcode;
+        int[] indices = window.indices;
+        if ((outcode[indices[3 * face]] & outcode[indices[3 * face + 1]] & outcode[indices[3 * face + 2]]) != 0) {
+            return 0;
+        }
 
-                Vec4f sc = Matrix4f.multiply(M, new Vec4f(world_coords[j], 1.0f));
-                sc.x /= sc.w;
-                sc.y /= sc.w;
+        Vec3f normVec = faceGeometry(window, face, scratch);
 
-                screen_coords[j] = new Vec3f(sc.x, sc.y, sc.z);
+        if (cullFace) {
+            Vec3f cameraToTriangleVector = Vec3f.subInto(scratch.world_coords[0], eye, scratch.toEye);
+            cameraToTriangleVector.normalize();
+            if(normVec.dot(cameraToTriangleVector) > 0) {
+                return 0;
             }
-            
-            Vec3f AB = Vec3f.sub(world_coords[1], world_coords[0]);
-            Vec3f AC = Vec3f.sub(world_coords[2], world_coords[0]);
+        }
 
-            AB.normalize();
-            AC.normalize();
+        return idBase >= 0 ? idBase + face : shadeFace(scratch);
+    }
 
-            Vec3f normVec = AB.cross(AC);
+    // Wierzchołki ściany w układzie świata (do scratch.world_coords) i jej normalna (scratch.normVec).
+    // Normalna z iloczynu wektorowego krawędzi już po przekształceniu, więc jest poprawna także przy
+    // skalowaniu niejednorodnym (bez macierzy normalnych). Wyjątek to ściany zwartej siatki z zapisaną
+    // normalną (kwantyzacja zmieniła tę z wierzchołków): ta jest w układzie modelu, więc kierunek do świata
+    // przechodzi przez macierz normalnych N = (M^-1)^T, a długość (sinus kąta przy A) zmienia się jak
+    // |M AB x M AC| / (|M AB| |M AC|) = sin A * |det M| * |N n| * |M^-1 AB'| * |M^-1 AC'|, gdzie n to zapisany
+    // kierunek, a AB', AC' - znormalizowane krawędzie w świecie. Te są już po kwantyzacji, więc przy skalowaniu
+    // niejednorodnym długość ma błąd rzędu błędu kierunku krawędzi (bez skalowania jest dokładna).
+    private Vec3f faceGeometry(FaceWindow window, int face, FaceScratch scratch) {
+        Vec3f[] world_coords = scratch.world_coords;
+        int[] indices = window.indices;
+        Matrix4f world = window.world;
+
+        for (int j=0; j<3; j++) {
+            position(window, indices[3 * face + j], world_coords[j]);
+            if (world != null) Matrix4f.transformPointInto(world, world_coords[j], world_coords[j]);
+        }
 
-            if (cullFace) {
-                Vec3f cameraToTriangleVector = Vec3f.sub(world_coords[0], eye);
-                cameraToTriangleVector.normalize();
-                if(normVec.dot(cameraToTriangleVector) > 0) {
-                    avgZculled = 0.995f * avgZculled + 0.005f * world_coords[0].z;
-                    continue;
-                }
+        Vec3f AB = Vec3f.subInto(world_coords[1], world_coords[0], scratch.AB);
+        Vec3f AC = Vec3f.subInto(world_coords[2], world_coords[0], scratch.AC);
+
+        AB.normalize();
+        AC.normalize();
+
+        Vec3f normVec = AB.crossInto(AC, scratch.normVec);
+        QuantizedMesh quantized = window.quantized;
+        if (quantized != null && quantized.hasStoredNormals() && (world == null || window.normalMatrix != null)
+            && quantized.getStoredNormal(window.first + face, scratch.storedNormal)) {
+            Vec3f stored = scratch.storedNormal;
+            float sinA = (float) Math.sqrt(stored.dot(stored));
+            if (world != null && sinA > 0) {
+                Matrix4f N = window.normalMatrix;
+                Matrix4f.transformPointInto(N, stored, stored); // N n * sin A
+                float length = (float) Math.sqrt(stored.dot(stored)) * window.worldDeterminant
+                               * inverseLength(N, AB) * inverseLength(N, AC);
+                // krawędź zgnieciona przez kwantyzację w punkt (NaN): zostaje długość z układu modelu
+                if (!(length <= 1)) length = sinA;
+                stored.normalize();
+                stored.set(stored.x * length, stored.y * length, stored.z * length);
             }
-        
-            Vec3f toLightVector = Vec3f.sub(lightSource, world_coords[0]);
-            toLightVector.normalize();
+            normVec.set(stored);
+        }
+        return normVec;
+    }
+
+    // macierz normalnych world w dest albo null (bez world albo gdy world się nie odwraca)
+    private static Matrix4f normalMatrix(Matrix4f world, Matrix4f dest) {
+        return world != null && world.normalMatrixInto(dest) ? dest : null;
+    }
 
-            int lightIntensity = (int)(255 * normVec.dot(toLightVector));
-            lightIntensity = Math.max(0, Math.min(255, lightIntensity));
+    // |M^-1 v| dla macierzy normalnych N = (M^-1)^T, czyli długość wektora v ze świata w układzie modelu
+    private static float inverseLength(Matrix4f N, Vec3f v) {
+        float x = N.data(0, 0) * v.x + N.data(1, 0) * v.y + N.data(2, 0) * v.z;
+        float y = N.data(0, 1) * v.x + N.data(1, 1) * v.y + N.data(2, 1) * v.z;
+        float z = N.data(0, 2) * v.x + N.data(1, 2) * v.y + N.data(2, 2) * v.z;
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
 
-            int color = (255 << 24) | (lightIntensity << 16) | (lightIntensity << 8) | lightIntensity;
-            drawTriangle(screen_coords[0], screen_coords[1], screen_coords[2], color);
+    // Pozycja wierzchołka v w układzie modelu do out: z pozycji okna, a gdy ich nie ma (zwarta siatka
+    // z rozrzuconymi indeksami), dekodowana z siatki tylko dla tego jednego wierzchołka.
+    private static Vec3f position(FaceWindow window, int v, Vec3f out) {
+        float[] positions = window.positions;
+        if (positions == null) {
+            window.quantized.getPosition(v, out);
+            return out;
+        }
+        int o = 3 * (v - window.vertexBase);
+        return out.set(positions[o], positions[o + 1], positions[o + 2]);
+    }
 
-            avgZdrawed = 0.995f * avgZdrawed + 0.005f * world_coords[0].z;
+    // Oświetlenie ściany, której geometrię policzyło już faceGeometry.
+    private int shadeFace(FaceScratch scratch) {
+        Vec3f normVec = scratch.normVec;
+        Vec3f[] world_coords = scratch.world_coords;
+
+        Vec3f toLightVector = Vec3f.subInto(lightSource, world_coords[0], scratch.toLight);
+        toLightVector.normalize();
+
+        int lightIntensity = (int)(255 * normVec.dot(toLightVector));
+        lightIntensity = Math.max(0, Math.min(255, lightIntensity));
+
+        return (255 << 24) | (lightIntensity << 16) | (lightIntensity << 8) | lightIntensity;
+    }
+
+    // Wyniki drawFaces sumowane po oknach ścian jednego render().
+    private static final class FaceCounts {
+        int culled, backfacing, clipped, rasterized;
+        int occluded;   // okna pominięte przez test Hi-Z
+
+        void reset() {
+            culled = backfacing = clipped = rasterized = occluded = 0;
+        }
+    }
+
+    // Wektory pomocnicze setupFace, żeby cieniowanie ściany nic nie alokowało. Jeden zestaw na wątek.
+    private static final class FaceScratch {
+        final Vec3f[] world_coords = {new Vec3f(), new Vec3f(), new Vec3f()};
+        final Vec3f AB = new Vec3f();
+        final Vec3f AC = new Vec3f();
+        final Vec3f normVec = new Vec3f();
+        final Vec3f toEye = new Vec3f();
+        final Vec3f toLight = new Vec3f();
+        final Vec3f storedNormal = new Vec3f();
+    }
+
+    // Ściany jednego wywołania drawFaces (zwartej siatki: jednego okna) albo jednej partii cieniowania
+    // bufora widoczności. Dla zwykłej geometrii to tablice modelu (first = 0, vertexBase = 0).
+    private static final class FaceWindow {
+        QuantizedMesh quantized;   // model, jeśli to zwarta siatka
+        Matrix4f world;            // model -> świat albo null
+        Matrix4f normalMatrix;     // macierz normalnych world, null bez world albo gdy world się nie odwraca
+        float worldDeterminant;    // |det world| (części 3x3), czyli 1 / |det normalMatrix|
+        int first;                 // numer ściany 0 okna w siatce (zapisane normalne QuantizedMesh)
+        int[] indices;             // ściana i okna to indices[3 * i ..]
+        float[] positions;         // wierzchołek v pod positions[3 * (v - vertexBase)]; null - z quantized
+        int vertexBase;
+
+        void set(Geometry model, Matrix4f world, Matrix4f normalMatrix, int first) {
+            this.quantized = model instanceof QuantizedMesh ? (QuantizedMesh) model : null;
+            this.world = world;
+            this.normalMatrix = normalMatrix;
+            if (normalMatrix != null) {
+                Matrix4f N = normalMatrix;
+                float det = N.data(0, 0) * (N.data(1, 1) * N.data(2, 2) - N.data(1, 2) * N.data(2, 1))
+                          - N.data(0, 1) * (N.data(1, 0) * N.data(2, 2) - N.data(1, 2) * N.data(2, 0))
+                          + N.data(0, 2) * (N.data(1, 0) * N.data(2, 1) - N.data(1, 1) * N.data(2, 0));
+                this.worldDeterminant = 1 / Math.abs(det);
+            }
+            this.first = first;
+            this.indices = quantized == null ? model.getIndices() : null;
+            this.positions = quantized == null ? model.getPositions() : null;
+            this.vertexBase = 0;
         }
-        System.out.println("Approximate average depth of culled faces: " + avgZculled);
-        System.out.println("Approximate average depth of drawed faces: " + avgZdrawed);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+package CGlab;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+// Bufor kolorów zapisywany bezpośrednio do tablicy int[] obrazu (DataBufferInt), z pominięciem
+// BufferedImage.setRGB, które przy każdym wywołaniu konwertuje kolor przez ColorModel i sprawdza zakres.
+// Układ wierszowy: piksel (x, y) leży pod indeksem y * width + x.
+public class FrameBuffer {
+
+    public final int width;
+    public final int height;
+    public final int[] pixels;
+
+    private final BufferedImage image;
+
+    public FrameBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int index(int x, int y) {
+        return y * width + x;
+    }
+
+    public boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    // zapis z kontrolą zakresu - piksele poza obrazem są pomijane
+    public void setPixel(int x, int y, int color) {
+        if (contains(x, y)) pixels[y * width + x] = color;
+    }
+
+    public int getPixel(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void fill(int color) {
+        Arrays.fill(pixels, color);
+    }
+}
@@ -0,0 +1,26 @@
+package CGlab;
+
+// To, czego renderer potrzebuje od siatki: tablice w układzie Model (wierzchołek 0 sztuczny,
+// positions po 3 floaty, indices po 3 inty na ścianę) i prostopadłościan otaczający. Implementują to
+// modyfikowalny Model i niezmienny Mesh, współdzielony przez wiele MeshInstance. Tablice tylko do odczytu.
+public interface Geometry {
+
+    int getVertexCount();
+
+    int getFaceCount();
+
+    float[] getPositions();
+
+    int[] getIndices();
+
+    // {minX, minY, minZ, maxX, maxY, maxZ}, bez sztucznego wierzchołka 0
+    float[] getBounds();
+
+    // poziomy szczegółowości budowane przy pierwszym wywołaniu i zapamiętywane
+    LodChain getLods();
+
+    default boolean isEmpty() {
+        float[] bounds = getBounds();
+        return !(bounds[0] <= bounds[3]);
+    }
+}
@@ -0,0 +1,197 @@
+package CGlab;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// Formaty zapisu klatki dla Renderer.save() i saveAsync(). Wszystkie dostają piksele w układzie frameBuffer
+// (ARGB, wiersz 0 na dole obrazu) i piszą wiersze od ostatniego, więc obraz nie jest odwracany kopią.
+//
+// PNG - PngWriter (filtry i deflate w blokach); RAW_RGBA / RAW_BGRA - same bajty pikseli, bez nagłówka,
+// dla narzędzi, które i tak kodują klatkę po swojemu; PPM - binarny P6 (RGB, bez kanału alfa);
+// QOI - "Quite OK Image", bezstratny, kodowany jednym przebiegiem bez entropii, wielokrotnie szybszy od PNG.
+//
+// Surowe formaty, PPM i QOI idą do kanału przez bufor bezpośredni na kilka wierszy naraz, jeden na wątek
+// i używany ponownie w kolejnych klatkach (allocateDirect jest drogie, a pamięć oddaje dopiero GC).
+// Sam frameBuffer to int[] na stercie (DataBufferInt obrazu), więc kanał nie może czytać z niego
+// bezpośrednio; BGRA to na little-endian dokładnie układ bajtów int ARGB, więc kopia wiersza to jeden
+// put() bez przestawiania bajtów.
+public enum ImageFormat {
+
+    PNG("png") {
+        @Override
+        void write(int[] pixels, int width, int height, WritableByteChannel out) throws IOException {
+            try (PngWriter png = new PngWriter(Channels.newOutputStream(out), width, height)) {
+                for (int y = height - 1; y >= 0; y--) png.writeRow(pixels, y * width);
+            }
+        }
+    },
+
+    RAW_RGBA("rgba") {
+        @Override
+        void write(int[] pixels, int width, int height, WritableByteChannel out) throws IOException {
+            writeRaw(pixels, width, height, out, false);
+        }
+    },
+
+    RAW_BGRA("bgra") {
+        @Override
+        void write(int[] pixels, int width, int height, WritableByteChannel out) throws IOException {
+            writeRaw(pixels, width, height, out, true);
+        }
+    },
+
+    PPM("ppm") {
+        @Override
+        void write(int[] pixels, int width, int height, WritableByteChannel out) throws IOException {
+            ByteBuffer buffer = rowBuffer(3 * width);
+            buffer.put(("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+            for (int y = height - 1; y >= 0; y--) {
+                if (buffer.remaining() < 3 * width) drain(buffer, out);
+                for (int x = 0, o = y * width; x < width; x++) {
+                    int c = pixels[o + x];
+                    buffer.put((byte) (c >> 16)).put((byte) (c >> 8)).put((byte) c);
+                }
+            }
+            drain(buffer, out);
+        }
+    },
+
+    QOI("qoi") {
+        @Override
+        void write(int[] pixels, int width, int height, WritableByteChannel out) throws IOException {
+            ByteBuffer buffer = rowBuffer(5 * width + 9);
+            buffer.put("qoif".getBytes(StandardCharsets.US_ASCII)).putInt(width).putInt(height);
+            buffer.put((byte) 4).put((byte) 0);  // RGBA, sRGB
+
+            int[] index = new int[64];
+            int previous = 0xff000000, run = 0;
+            for (int y = height - 1; y >= 0; y--) {
+                // najgorszy przypadek: 5 bajtów na piksel, po ostatnim wierszu jeszcze seria i znacznik końca
+                if (buffer.remaining() < 5 * width + 9) drain(buffer, out);
+                for (int x = 0, o = y * width; x < width; x++) {
+                    int c = pixels[o + x];
+                    if (c == previous) {
+                        if (++run == 62) {
+                            buffer.put((byte) (0xc0 | (run - 1)));
+                            run = 0;
+                        }
+                        continue;
+                    }
+                    if (run > 0) {
+                        buffer.put((byte) (0xc0 | (run - 1)));
+                        run = 0;
+                    }
+                    int r = (c >> 16) & 0xff, g = (c >> 8) & 0xff, b = c & 0xff, a = c >>> 24;
+                    int hash = (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+                    if (index[hash] == c) {
+                        buffer.put((byte) hash);
+                    } else {
+                        index[hash] = c;
+                        if ((c ^ previous) >>> 24 == 0) {
+                            int dr = (byte) (r - ((previous >> 16) & 0xff));
+                            int dg = (byte) (g - ((previous >> 8) & 0xff));
+                            int db = (byte) (b - (previous & 0xff));
+                            int drg = dr - dg, dbg = db - dg;
+                            if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                                buffer.put((byte) (0x40 | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2)));
+                            } else if (dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7 && dbg >= -8 && dbg <= 7) {
+                                buffer.put((byte) (0x80 | (dg + 32))).put((byte) ((drg + 8) << 4 | (dbg + 8)));
+                            } else {
+                                buffer.put((byte) 0xfe).put((byte) r).put((byte) g).put((byte) b);
+                            }
+                        } else {
+                            buffer.put((byte) 0xff).put((byte) r).put((byte) g).put((byte) b).put((byte) a);
+                        }
+                    }
+                    previous = c;
+                }
+            }
+            if (run > 0) buffer.put((byte) (0xc0 | (run - 1)));
+            buffer.put(new byte[] {0, 0, 0, 0, 0, 0, 0, 1});
+            drain(buffer, out);
+        }
+    };
+
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<>();
+
+    private final String extension;
+
+    ImageFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    // Cała klatka do out. Zamyka go wołający (PNG zamyka go już sam, razem z PngWriter).
+    abstract void write(int[] pixels, int width, int height, WritableByteChannel out) throws IOException;
+
+    // Format po nazwie z wiersza poleceń albo rozszerzeniu ("qoi", "raw_bgra", "bgra"...).
+    public static ImageFormat forName(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        for (ImageFormat format : values()) {
+            if (format.extension.equals(key) || format.name().toLowerCase(Locale.ROOT).equals(key)) return format;
+        }
+        throw new IllegalArgumentException("Unknown image format " + name);
+    }
+
+    // Format z rozszerzenia pliku; PNG, jeśli rozszerzenie nie jest znane.
+    public static ImageFormat forPath(String path) {
+        int dot = path.lastIndexOf('.');
+        String extension = dot < 0 ? "" : path.substring(dot + 1).toLowerCase(Locale.ROOT);
+        for (ImageFormat format : values()) {
+            if (format.extension.equals(extension)) return format;
+        }
+        return PNG;
+    }
+
+    private static void writeRaw(int[] pixels, int width, int height, WritableByteChannel out, boolean bgra)
+            throws IOException {
+        // int ARGB zapisany w little-endian to bajty B, G, R, A; RGBA to int (RGB << 8 | A) w big-endian
+        ByteBuffer buffer = rowBuffer(4 * width).order(bgra ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        IntBuffer ints = buffer.asIntBuffer();
+        int rowsPerBuffer = ints.capacity() / width;
+        int[] row = bgra ? null : new int[width];
+        for (int top = height; top > 0; top -= rowsPerBuffer) {
+            ints.clear();
+            for (int y = top - 1; y >= Math.max(0, top - rowsPerBuffer); y--) {
+                if (bgra) {
+                    ints.put(pixels, y * width, width);
+                } else {
+                    for (int x = 0, o = y * width; x < width; x++) {
+                        int c = pixels[o + x];
+                        row[x] = c << 8 | c >>> 24;
+                    }
+                    ints.put(row);
+                }
+            }
+            buffer.position(0).limit(4 * ints.position());
+            while (buffer.hasRemaining()) out.write(buffer);
+        }
+    }
+
+    // pusty bufor bezpośredni wątku na co najmniej jeden wiersz, zwykle na wiele; większy tylko dla
+    // bardzo szerokich obrazów
+    private static ByteBuffer rowBuffer(int rowBytes) {
+        ByteBuffer buffer = BUFFERS.get();
+        if (buffer == null || buffer.capacity() < rowBytes + 64) {
+            buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, rowBytes + 64));
+            BUFFERS.set(buffer);
+        }
+        return buffer.clear().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) out.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,73 @@
+package CGlab;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Łańcuch poziomów szczegółowości (LOD) jednej siatki: poziom 0 to sama siatka, każdy następny ma
+// mniej więcej połowę ścian poprzedniego (MeshSimplifier, jeden przebieg dla całego łańcucha).
+// Dla poziomu pamiętamy błąd geometryczny w jednostkach modelu - o ile najwyżej odsunięto
+// powierzchnię - więc renderer może wybrać najprostszy poziom, którego błąd po rzutowaniu na ekran
+// nie przekracza zadanej liczby pikseli (FlatShadingRenderer.lodOn).
+public final class LodChain {
+
+    public static final int MAX_LEVELS = 8;
+    public static final int MIN_FACES = 64;   // mniejszych siatek już nie upraszczamy
+
+    private final Geometry[] levels;
+    private final float[] errors;
+
+    private LodChain(Geometry[] levels, float[] errors) {
+        this.levels = levels;
+        this.errors = errors;
+    }
+
+    public static LodChain build(Geometry base) {
+        long start = RenderMetrics.start();
+        List<Geometry> levels = new ArrayList<>();
+        List<Float> errors = new ArrayList<>();
+        levels.add(base);
+        errors.add(0.0f);
+        if (base.getFaceCount() > MIN_FACES) {
+            MeshSimplifier simplifier = new MeshSimplifier(base);
+            int faces = base.getFaceCount();
+            while (levels.size() < MAX_LEVELS && faces > MIN_FACES) {
+                simplifier.simplify(Math.max(MIN_FACES, faces / 2));
+                // dalej nie da się zwijać (np. same krawędzie brzegowe albo odwracane ściany)
+                if (simplifier.getFaceCount() > faces * 3 / 4) break;
+                faces = simplifier.getFaceCount();
+                levels.add(simplifier.toMesh());
+                errors.add(simplifier.getError());
+            }
+        }
+        RenderMetrics.end(RenderMetrics.Stage.SIMPLIFY, start, base.getFaceCount());
+
+        float[] errorArray = new float[errors.size()];
+        for (int i = 0; i < errorArray.length; i++) errorArray[i] = errors.get(i);
+        return new LodChain(levels.toArray(new Geometry[0]), errorArray);
+    }
+
+    // Łańcuch z samym poziomem 0, dla geometrii, której nie warto upraszczać (np. partie ObjStream).
+    static LodChain single(Geometry base) {
+        return new LodChain(new Geometry[] {base}, new float[] {0.0f});
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public Geometry getLevel(int level) {
+        return levels[level];
+    }
+
+    public float getError(int level) {
+        return errors[level];
+    }
+
+    // Najprostszy poziom o błędzie nie większym niż maxError (w jednostkach modelu).
+    public int select(float maxError) {
+        for (int level = levels.length - 1; level > 0; level--) {
+            if (errors[level] <= maxError) return level;
+        }
+        return 0;
+    }
+}
@@ -1,20 +1,18 @@
 package CGlab;
 
+// Macierz 4x4 przechowywana w jednej płaskiej tablicy float[16], wierszami: element (row, col)
+// to data[4 * row + col]. Metody z przyrostkiem Into zapisują wynik do podanej macierzy/wektora
+// zamiast tworzyć nowy obiekt; wynik może być jednym z argumentów (wszystko liczymy najpierw
+// do zmiennych lokalnych). Wersje statyczne bez Into zostały dla wygody i zwracają nowy obiekt.
 public class Matrix4f {
 
     public enum Matrix {
  	Zeros, Ones, Identity;
     }
 
-    private float[][] data;
+    private final float[] data = new float[16];
 
     public Matrix4f(){
-        data = new float[4][4];
-	    for(int i = 0; i < 4; i++) {
-            for(int j = 0; j < 4; j++) {
-	            this.data[i][j] = 0;
-	        }
- 	    }
     }
 
     public Matrix4f(float m00, float m01, float m02, float m03,
@@ -22,172 +20,209 @@ public class Matrix4f {
             float m20, float m21, float m22, float m23,
             float m30, float m31, float m32, float m33)
     {
-        data = new float[4][4];
-        this.data[0][0] = m00;
-        this.data[0][1] = m01;
-        this.data[0][2] = m02;
-        this.data[0][3] = m03;
-
-        this.data[1][0] = m10;
-        this.data[1][1] = m11;
-        this.data[1][2] = m12;
-        this.data[1][3] = m13;
-
-        this.data[2][0] = m20;
-        this.data[2][1] = m21;
-        this.data[2][2] = m22;
-        this.data[2][3] = m23;
-
-        this.data[3][0] = m30;
-        this.data[3][1] = m31;
-        this.data[3][2] = m32;
-        this.data[3][3] = m33;
-    }
-
-    public float data(int row, int col) {
-      return data[row][col];
+        set(m00, m01, m02, m03, m10, m11, m12, m13, m20, m21, m22, m23, m30, m31, m32, m33);
     }
 
-
     public Matrix4f(Matrix matrixType){
-      data = new float[4][4];
-    	if(matrixType == Matrix.Zeros){
-        	for(int i = 0; i < 4; i++) {
-        		for(int j = 0; j < 4; j++) {
-        			 this.data[i][j] = 0;
-        		}
-        	}
-        }
         if(matrixType == Matrix.Ones){
-            for(int i = 0; i < 4; i++) {
-                for(int j = 0; j < 4; j++) {
-                     this.data[i][j] = 1;
-                }
+            for(int i = 0; i < 16; i++) {
+                this.data[i] = 1;
             }
         }
         if(matrixType == Matrix.Identity){
-            for(int i = 0; i < 4; i++) {
-                for(int j = 0; j < 4; j++) {
-                     if(i == j) this.data[i][j] = 1;
-                     else this.data[i][j] = 0;
-                }
-            }
+            setIdentity();
         }
     }
 
+    public Matrix4f(Matrix4f other) {
+        set(other);
+    }
+
+    public float data(int row, int col) {
+      return data[4 * row + col];
+    }
+
+    public void set(int row, int col, float value) {
+        data[4 * row + col] = value;
+    }
+
+    public Matrix4f set(float m00, float m01, float m02, float m03,
+                        float m10, float m11, float m12, float m13,
+                        float m20, float m21, float m22, float m23,
+                        float m30, float m31, float m32, float m33) {
+        float[] d = this.data;
+        d[0] = m00;  d[1] = m01;  d[2] = m02;  d[3] = m03;
+        d[4] = m10;  d[5] = m11;  d[6] = m12;  d[7] = m13;
+        d[8] = m20;  d[9] = m21;  d[10] = m22; d[11] = m23;
+        d[12] = m30; d[13] = m31; d[14] = m32; d[15] = m33;
+        return this;
+    }
+
+    public Matrix4f set(Matrix4f other) {
+        System.arraycopy(other.data, 0, this.data, 0, 16);
+        return this;
+    }
+
+    public Matrix4f setIdentity() {
+        return set(1, 0, 0, 0,
+                   0, 1, 0, 0,
+                   0, 0, 1, 0,
+                   0, 0, 0, 1);
+    }
+
     public static Vec4f multiply(Matrix4f m, Vec4f v){
-        float v00, v01, v02, v03;
-        v00 = m.data(0, 0)*v.x + m.data(0, 1)*v.y + 
-              m.data(0, 2)*v.z + m.data(0, 3)*v.w;  
-        v01 = m.data(1, 0)*v.x + m.data(1, 1)*v.y + 
-              m.data(1, 2)*v.z + m.data(1, 3)*v.w;  
-        v02 = m.data(2, 0)*v.x + m.data(2, 1)*v.y + 
-              m.data(2, 2)*v.z + m.data(2, 3)*v.w;  
-        v03 = m.data(3, 0)*v.x + m.data(3, 1)*v.y + 
-              m.data(3, 2)*v.z + m.data(3, 3)*v.w;        
-        return new Vec4f(v00, v01, v02, v03);   
+        return multiplyInto(m, v, new Vec4f(0, 0, 0, 0));
     }
 
+    // dest = m * v; dest może być tym samym obiektem co v
+    public static Vec4f multiplyInto(Matrix4f m, Vec4f v, Vec4f dest){
+        float[] d = m.data;
+        float v00 = d[0]*v.x + d[1]*v.y + d[2]*v.z + d[3]*v.w;
+        float v01 = d[4]*v.x + d[5]*v.y + d[6]*v.z + d[7]*v.w;
+        float v02 = d[8]*v.x + d[9]*v.y + d[10]*v.z + d[11]*v.w;
+        float v03 = d[12]*v.x + d[13]*v.y + d[14]*v.z + d[15]*v.w;
+        dest.x = v00; dest.y = v01; dest.z = v02; dest.w = v03;
+        return dest;
+    }
+
+    // dest = m * (p, 1) bez dzielenia przez w - dla macierzy afinicznych, np. model -> świat;
+    // dest może być tym samym obiektem co p
+    public static Vec3f transformPointInto(Matrix4f m, Vec3f p, Vec3f dest) {
+        float[] d = m.data;
+        float x = d[0]*p.x + d[1]*p.y + d[2]*p.z + d[3];
+        float y = d[4]*p.x + d[5]*p.y + d[6]*p.z + d[7];
+        float z = d[8]*p.x + d[9]*p.y + d[10]*p.z + d[11];
+        return dest.set(x, y, z);
+    }
+
+    // this = this * m1
     public void multiply(Matrix4f m1){
-        float  m00, m01, m02, m03,
-               m10, m11, m12, m13,
-               m20, m21, m22, m23,
-               m30, m31, m32, m33; 
-
-        m00 = this.data[0][0]*m1.data[0][0] + this.data[0][1]*m1.data[1][0] +
-              this.data[0][2]*m1.data[2][0] + this.data[0][3]*m1.data[3][0];
-        m01 = this.data[0][0]*m1.data[0][1] + this.data[0][1]*m1.data[1][1] +
-              this.data[0][2]*m1.data[2][1] + this.data[0][3]*m1.data[3][1];
-        m02 = this.data[0][0]*m1.data[0][2] + this.data[0][1]*m1.data[1][2] +
-              this.data[0][2]*m1.data[2][2] + this.data[0][3]*m1.data[3][2];
-        m03 = this.data[0][0]*m1.data[0][3] + this.data[0][1]*m1.data[1][3] +
-              this.data[0][2]*m1.data[2][3] + this.data[0][3]*m1.data[3][3];
-
-        m10 = this.data[1][0]*m1.data[0][0] + this.data[1][1]*m1.data[1][0] +
-              this.data[1][2]*m1.data[2][0] + this.data[1][3]*m1.data[3][0];
-        m11 = this.data[1][0]*m1.data[0][1] + this.data[1][1]*m1.data[1][1] +
-              this.data[1][2]*m1.data[2][1] + this.data[1][3]*m1.data[3][1];
-        m12 = this.data[1][0]*m1.data[0][2] + this.data[1][1]*m1.data[1][2] +
-              this.data[1][2]*m1.data[2][2] + this.data[1][3]*m1.data[3][2];
-        m13 = this.data[1][0]*m1.data[0][3] + this.data[1][1]*m1.data[1][3] +
-              this.data[1][2]*m1.data[2][3] + this.data[1][3]*m1.data[3][3];
-
-        m20 = this.data[2][0]*m1.data[0][0] + this.data[2][1]*m1.data[1][0] +
-              this.data[2][2]*m1.data[2][0] + this.data[2][3]*m1.data[3][0];
-        m21 = this.data[2][0]*m1.data[0][1] + this.data[2][1]*m1.data[1][1] +
-              this.data[2][2]*m1.data[2][1] + this.data[2][3]*m1.data[3][1];
-        m22 = this.data[2][0]*m1.data[0][2] + this.data[2][1]*m1.data[1][2] +
-              this.data[2][2]*m1.data[2][2] + this.data[2][3]*m1.data[3][2];
-        m23 = this.data[2][0]*m1.data[0][3] + this.data[2][1]*m1.data[1][3] +
-              this.data[2][2]*m1.data[2][3] + this.data[2][3]*m1.data[3][3];
-
-        m30 = this.data[3][0]*m1.data[0][0] + this.data[3][1]*m1.data[1][0] +
-              this.data[3][2]*m1.data[2][0] + this.data[3][3]*m1.data[3][0];
-        m31 = this.data[3][0]*m1.data[0][1] + this.data[3][1]*m1.data[1][1] +
-              this.data[3][2]*m1.data[2][1] + this.data[3][3]*m1.data[3][1];
-        m32 = this.data[3][0]*m1.data[0][2] + this.data[3][1]*m1.data[1][2] +
-              this.data[3][2]*m1.data[2][2] + this.data[3][3]*m1.data[3][2];
-        m33 = this.data[3][0]*m1.data[0][3] + this.data[3][1]*m1.data[1][3] +
-              this.data[3][2]*m1.data[2][3] + this.data[3][3]*m1.data[3][3];
-
-        this.data[0][0] = m00; this.data[0][1] = m01; this.data[0][2] = m02; this.data[0][3] = m03;
-        this.data[1][0] = m10; this.data[1][1] = m11; this.data[1][2] = m12; this.data[1][3] = m13;
-        this.data[2][0] = m20; this.data[2][1] = m21; this.data[2][2] = m22; this.data[2][3] = m23;
-        this.data[3][0] = m30; this.data[3][1] = m31; this.data[3][2] = m32; this.data[3][3] = m33;
+        multiplyInto(this, m1, this);
     }
 
     public static Matrix4f multiply(Matrix4f m0, Matrix4f m1){
-      float  m00, m01, m02, m03,
-             m10, m11, m12, m13,
-             m20, m21, m22, m23,
-             m30, m31, m32, m33; 
-
-      m00 = m0.data[0][0]*m1.data[0][0] + m0.data[0][1]*m1.data[1][0] +
-            m0.data[0][2]*m1.data[2][0] + m0.data[0][3]*m1.data[3][0];
-      m01 = m0.data[0][0]*m1.data[0][1] + m0.data[0][1]*m1.data[1][1] +
-            m0.data[0][2]*m1.data[2][1] + m0.data[0][3]*m1.data[3][1];
-      m02 = m0.data[0][0]*m1.data[0][2] + m0.data[0][1]*m1.data[1][2] +
-            m0.data[0][2]*m1.data[2][2] + m0.data[0][3]*m1.data[3][2];
-      m03 = m0.data[0][0]*m1.data[0][3] + m0.data[0][1]*m1.data[1][3] +
-            m0.data[0][2]*m1.data[2][3] + m0.data[0][3]*m1.data[3][3];
-
-      m10 = m0.data[1][0]*m1.data[0][0] + m0.data[1][1]*m1.data[1][0] +
-            m0.data[1][2]*m1.data[2][0] + m0.data[1][3]*m1.data[3][0];
-      m11 = m0.data[1][0]*m1.data[0][1] + m0.data[1][1]*m1.data[1][1] +
-            m0.data[1][2]*m1.data[2][1] + m0.data[1][3]*m1.data[3][1];
-      m12 = m0.data[1][0]*m1.data[0][2] + m0.data[1][1]*m1.data[1][2] +
-            m0.data[1][2]*m1.data[2][2] + m0.data[1][3]*m1.data[3][2];
-      m13 = m0.data[1][0]*m1.data[0][3] + m0.data[1][1]*m1.data[1][3] +
-            m0.data[1][2]*m1.data[2][3] + m0.data[1][3]*m1.data[3][3];
-
-      m20 = m0.data[2][0]*m1.data[0][0] + m0.data[2][1]*m1.data[1][0] +
-            m0.data[2][2]*m1.data[2][0] + m0.data[2][3]*m1.data[3][0];
-      m21 = m0.data[2][0]*m1.data[0][1] + m0.data[2][1]*m1.data[1][1] +
-            m0.data[2][2]*m1.data[2][1] + m0.data[2][3]*m1.data[3][1];
-      m22 = m0.data[2][0]*m1.data[0][2] + m0.data[2][1]*m1.data[1][2] +
-            m0.data[2][2]*m1.data[2][2] + m0.data[2][3]*m1.data[3][2];
-      m23 = m0.data[2][0]*m1.data[0][3] + m0.data[2][1]*m1.data[1][3] +
-            m0.data[2][2]*m1.data[2][3] + m0.data[2][3]*m1.data[3][3];
-
-      m30 = m0.data[3][0]*m1.data[0][0] + m0.data[3][1]*m1.data[1][0] +
-            m0.data[3][2]*m1.data[2][0] + m0.data[3][3]*m1.data[3][0];
-      m31 = m0.data[3][0]*m1.data[0][1] + m0.data[3][1]*m1.data[1][1] +
-            m0.data[3][2]*m1.data[2][1] + m0.data[3][3]*m1.data[3][1];
-      m32 = m0.data[3][0]*m1.data[0][2] + m0.data[3][1]*m1.data[1][2] +
-            m0.data[3][2]*m1.data[2][2] + m0.data[3][3]*m1.data[3][2];
-      m33 = m0.data[3][0]*m1.data[0][3] + m0.data[3][1]*m1.data[1][3] +
-            m0.data[3][2]*m1.data[2][3] + m0.data[3][3]*m1.data[3][3];
-
-      return new Matrix4f(m00, m01, m02, m03, m10, m11, m12, m13, m20, m21, m22, m23, m30, m31, m32, m33);
-  }
+        return multiplyInto(m0, m1, new Matrix4f());
+    }
+
+    // dest = m0 * m1; dest może być tym samym obiektem co m0 albo m1
+    public static Matrix4f multiplyInto(Matrix4f m0, Matrix4f m1, Matrix4f dest){
+        float[] a = m0.data, b = m1.data;
+        float m00 = a[0]*b[0] + a[1]*b[4] + a[2]*b[8] + a[3]*b[12];
+        float m01 = a[0]*b[1] + a[1]*b[5] + a[2]*b[9] + a[3]*b[13];
+        float m02 = a[0]*b[2] + a[1]*b[6] + a[2]*b[10] + a[3]*b[14];
+        float m03 = a[0]*b[3] + a[1]*b[7] + a[2]*b[11] + a[3]*b[15];
+
+        float m10 = a[4]*b[0] + a[5]*b[4] + a[6]*b[8] + a[7]*b[12];
+        float m11 = a[4]*b[1] + a[5]*b[5] + a[6]*b[9] + a[7]*b[13];
+        float m12 = a[4]*b[2] + a[5]*b[6] + a[6]*b[10] + a[7]*b[14];
+        float m13 = a[4]*b[3] + a[5]*b[7] + a[6]*b[11] + a[7]*b[15];
+
+        float m20 = a[8]*b[0] + a[9]*b[4] + a[10]*b[8] + a[11]*b[12];
+        float m21 = a[8]*b[1] + a[9]*b[5] + a[10]*b[9] + a[11]*b[13];
+        float m22 = a[8]*b[2] + a[9]*b[6] + a[10]*b[10] + a[11]*b[14];
+        float m23 = a[8]*b[3] + a[9]*b[7] + a[10]*b[11] + a[11]*b[15];
+
+        float m30 = a[12]*b[0] + a[13]*b[4] + a[14]*b[8] + a[15]*b[12];
+        float m31 = a[12]*b[1] + a[13]*b[5] + a[14]*b[9] + a[15]*b[13];
+        float m32 = a[12]*b[2] + a[13]*b[6] + a[14]*b[10] + a[15]*b[14];
+        float m33 = a[12]*b[3] + a[13]*b[7] + a[14]*b[11] + a[15]*b[15];
+
+        return dest.set(m00, m01, m02, m03, m10, m11, m12, m13, m20, m21, m22, m23, m30, m31, m32, m33);
+    }
+
+    public Matrix4f transpose() {
+        return transposeInto(this);
+    }
+
+    public Matrix4f transposeInto(Matrix4f dest) {
+        float[] d = this.data;
+        return dest.set(d[0], d[4], d[8],  d[12],
+                        d[1], d[5], d[9],  d[13],
+                        d[2], d[6], d[10], d[14],
+                        d[3], d[7], d[11], d[15]);
+    }
+
+    public float determinant() {
+        float[] d = this.data;
+        // minory 2x2 z dwóch górnych i dwóch dolnych wierszy (rozwinięcie Laplace'a)
+        float s0 = d[0] * d[5] - d[4] * d[1], s1 = d[0] * d[6] - d[4] * d[2], s2 = d[0] * d[7] - d[4] * d[3];
+        float s3 = d[1] * d[6] - d[5] * d[2], s4 = d[1] * d[7] - d[5] * d[3], s5 = d[2] * d[7] - d[6] * d[3];
+        float c5 = d[10] * d[15] - d[14] * d[11], c4 = d[9] * d[15] - d[13] * d[11], c3 = d[9] * d[14] - d[13] * d[10];
+        float c2 = d[8] * d[15] - d[12] * d[11], c1 = d[8] * d[14] - d[12] * d[10], c0 = d[8] * d[13] - d[12] * d[9];
+        return s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+    }
+
+    // Odwraca macierz w miejscu. Zwraca false (i nie zmienia macierzy), jeśli jest osobliwa.
+    public boolean invert() {
+        return invertInto(this);
+    }
+
+    // dest = this^-1. Zwraca false (i nie zmienia dest), jeśli macierz jest osobliwa.
+    public boolean invertInto(Matrix4f dest) {
+        float[] d = this.data;
+        float s0 = d[0] * d[5] - d[4] * d[1], s1 = d[0] * d[6] - d[4] * d[2], s2 = d[0] * d[7] - d[4] * d[3];
+        float s3 = d[1] * d[6] - d[5] * d[2], s4 = d[1] * d[7] - d[5] * d[3], s5 = d[2] * d[7] - d[6] * d[3];
+        float c5 = d[10] * d[15] - d[14] * d[11], c4 = d[9] * d[15] - d[13] * d[11], c3 = d[9] * d[14] - d[13] * d[10];
+        float c2 = d[8] * d[15] - d[12] * d[11], c1 = d[8] * d[14] - d[12] * d[10], c0 = d[8] * d[13] - d[12] * d[9];
+
+        float det = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+        if (det == 0 || !Float.isFinite(det)) return false;
+        float inv = 1 / det;
+
+        dest.set(( d[5] * c5 - d[6] * c4 + d[7] * c3) * inv,
+                 (-d[1] * c5 + d[2] * c4 - d[3] * c3) * inv,
+                 ( d[13] * s5 - d[14] * s4 + d[15] * s3) * inv,
+                 (-d[9] * s5 + d[10] * s4 - d[11] * s3) * inv,
+
+                 (-d[4] * c5 + d[6] * c2 - d[7] * c1) * inv,
+                 ( d[0] * c5 - d[2] * c2 + d[3] * c1) * inv,
+                 (-d[12] * s5 + d[14] * s2 - d[15] * s1) * inv,
+                 ( d[8] * s5 - d[10] * s2 + d[11] * s1) * inv,
+
+                 ( d[4] * c4 - d[5] * c2 + d[7] * c0) * inv,
+                 (-d[0] * c4 + d[1] * c2 - d[3] * c0) * inv,
+                 ( d[12] * s4 - d[13] * s2 + d[15] * s0) * inv,
+                 (-d[8] * s4 + d[9] * s2 - d[11] * s0) * inv,
+
+                 (-d[4] * c3 + d[5] * c1 - d[6] * c0) * inv,
+                 ( d[0] * c3 - d[1] * c1 + d[2] * c0) * inv,
+                 (-d[12] * s3 + d[13] * s1 - d[14] * s0) * inv,
+                 ( d[8] * s3 - d[9] * s1 + d[10] * s0) * inv);
+        return true;
+    }
+
+    // Macierz normalnych: (M^-1)^T dla części 3x3 macierzy M (bez przesunięcia i rzutowania),
+    // czyli to, czym trzeba mnożyć wektory normalne, żeby zostały prostopadłe do powierzchni
+    // także przy skalowaniu niejednorodnym. Wynik ma ostatni wiersz i kolumnę jak macierz jednostkowa.
+    public boolean normalMatrixInto(Matrix4f dest) {
+        float[] d = this.data;
+        float a = d[0], b = d[1], c = d[2];
+        float e = d[4], f = d[5], g = d[6];
+        float h = d[8], i = d[9], j = d[10];
+
+        // dopełnienia algebraiczne 3x3; (M^-1)^T = cof(M) / det(M)
+        float A = f * j - g * i, B = g * h - e * j, C = e * i - f * h;
+        float D = c * i - b * j, E = a * j - c * h, F = b * h - a * i;
+        float G = b * g - c * f, H = c * e - a * g, I = a * f - b * e;
+
+        float det = a * A + b * B + c * C;
+        if (det == 0 || !Float.isFinite(det)) return false;
+        float inv = 1 / det;
+
+        dest.set(A * inv, B * inv, C * inv, 0,
+                 D * inv, E * inv, F * inv, 0,
+                 G * inv, H * inv, I * inv, 0,
+                 0, 0, 0, 1);
+        return true;
+    }
 
   @Override
   public String toString() {
-      return this.data[0][0] + " " + this.data[0][1] + " " + this.data[0][2] + " " + this.data[0][3] + "\n" + 
-             this.data[1][0] + " " + this.data[1][1] + " " + this.data[1][2] + " " + this.data[1][3] + "\n" + 
-             this.data[2][0] + " " + this.data[2][1] + " " + this.data[2][2] + " " + this.data[2][3] + "\n" + 
-             this.data[3][0] + " " + this.data[3][1] + " " + this.data[3][2] + " " + this.data[3][3];
-                 
+      return this.data[0] + " " + this.data[1] + " " + this.data[2] + " " + this.data[3] + "\n" +
+             this.data[4] + " " + this.data[5] + " " + this.data[6] + " " + this.data[7] + "\n" +
+             this.data[8] + " " + this.data[9] + " " + this.data[10] + " " + this.data[11] + "\n" +
+             this.data[12] + " " + this.data[13] + " " + this.data[14] + " " + this.data[15];
+
   }
 
 }
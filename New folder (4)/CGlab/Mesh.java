@@ -0,0 +1,99 @@
+package CGlab;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Niezmienna geometria: wczytana raz i współdzielona przez dowolnie wiele MeshInstance, z których każda
+// ma tylko własną macierz modelu. W przeciwieństwie do Model nie ma translate - położenie siatki w świecie
+// to sprawa instancji, a wierzchołki zostają w układzie modelu. Siatki z plików najlepiej brać przez
+// MeshLibrary, żeby ta sama ścieżka nie była wczytywana drugi raz.
+public final class Mesh implements Geometry {
+
+    private final String path;  // null dla siatek nie z pliku
+    private final float[] positions;
+    private final int[] indices;
+    private final int vertexCount;
+    private final int faceCount;
+    private final float[] bounds;
+    private volatile LodChain lods;
+
+    private Mesh(String path, Model model) {
+        this.path = path;
+        this.vertexCount = model.getVertexCount();
+        this.faceCount = model.getFaceCount();
+        // kopia przycięta do rozmiaru: późniejszy translate na modelu nie zmienia siatki,
+        // a zapas w tablicach ObjLoader nie zajmuje pamięci przez cały czas życia siatki
+        this.positions = Arrays.copyOf(model.getPositions(), 3 * vertexCount);
+        this.indices = Arrays.copyOf(model.getIndices(), 3 * faceCount);
+        this.bounds = model.getBounds().clone();
+    }
+
+    // Wczytuje OBJ (z binarnym cache, jak Model.readOBJ).
+    public static Mesh load(String path) throws IOException {
+        Model model = new Model();
+        model.readOBJ(path);
+        return new Mesh(path, model);
+    }
+
+    // Niezmienna kopia geometrii modelu, np. z MeshGenerator.
+    public static Mesh of(Model model) {
+        return new Mesh(null, model);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    @Override
+    public int getFaceCount() {
+        return faceCount;
+    }
+
+    @Override
+    public float[] getPositions() {
+        return positions;
+    }
+
+    @Override
+    public int[] getIndices() {
+        return indices;
+    }
+
+    @Override
+    public float[] getBounds() {
+        return bounds;
+    }
+
+    // Poziomy LOD liczone raz i współdzielone przez wszystkie instancje siatki; wywołane zaraz
+    // po load() liczy je przy wczytaniu.
+    @Override
+    public LodChain getLods() {
+        LodChain chain = lods;
+        if (chain == null) {
+            synchronized (this) {
+                chain = lods;
+                if (chain == null) lods = chain = LodChain.build(this);
+            }
+        }
+        return chain;
+    }
+
+    // pamięć zajmowana przez tablice geometrii, razem z poziomami LOD, jeśli już zostały policzone
+    // (wszystkie poziomy razem zajmują prawie tyle, co pełna siatka)
+    public long getSizeInBytes() {
+        long bytes = 4L * positions.length + 4L * indices.length;
+        LodChain chain = lods;
+        if (chain != null) {
+            for (int level = 1; level < chain.getLevelCount(); level++) {
+                Geometry simplified = chain.getLevel(level);
+                bytes += 4L * simplified.getPositions().length + 4L * simplified.getIndices().length;
+            }
+        }
+        return bytes;
+    }
+}
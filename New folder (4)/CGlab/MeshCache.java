@@ -0,0 +1,157 @@
+package CGlab;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+// Binarna kopia wczytanego OBJ zapisywana obok pliku źródłowego (model.obj -> model.obj.mesh),
+// żeby kolejne uruchomienia nie parsowały tekstu od nowa. Układ pliku (little-endian):
+//
+//   8 B  magic "CGMESH01"
+//   8 B  rozmiar pliku OBJ
+//   8 B  czas modyfikacji OBJ (ms)
+//   8 B  CRC32C zawartości OBJ
+//   4 B  liczba wierzchołków (razem ze sztucznym wierzchołkiem 0)
+//   4 B  liczba ścian
+//   ...  float x, y, z dla każdego wierzchołka
+//   ...  int a, b, c dla każdej ściany
+//
+// Cache jest aktualny, jeśli zgadza się rozmiar i czas modyfikacji OBJ. Gdy zmienił się tylko czas
+// (np. po skopiowaniu pliku), liczymy CRC32C źródła i porównujemy z zapisaną sumą; przy zgodności nowy
+// czas trafia do nagłówka, więc CRC liczymy tylko raz po każdej takiej zmianie. Sam cache nie ma sumy
+// kontrolnej, więc load sprawdza zakres indeksów: uszkodzony plik daje parsowanie OBJ, a nie indeksy
+// wskazujące poza tablicę pozycji (wyjątek, albo gorzej - śmieci na ekranie, w rendererze).
+public class MeshCache {
+
+    public static final String SUFFIX = ".mesh";
+
+    private static final byte[] MAGIC = {'C', 'G', 'M', 'E', 'S', 'H', '0', '1'};
+    private static final int HEADER_SIZE = 8 + 8 + 8 + 8 + 4 + 4;
+    private static final int MODIFIED_OFFSET = 16;
+
+    public static Path cachePath(String objPath) {
+        return Paths.get(objPath + SUFFIX);
+    }
+
+    // Wczytuje model z cache, jeśli istnieje i pasuje do źródła. Zwraca false, gdy trzeba parsować OBJ.
+    public static boolean load(String objPath, Model model) throws IOException {
+        Path source = Paths.get(objPath);
+        Path cache = cachePath(objPath);
+        if (!Files.isRegularFile(cache)) return false;
+
+        long sourceModified = Files.getLastModifiedTime(source).toMillis();
+        boolean touched;
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) return false;
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer buf = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            for (byte b : MAGIC) {
+                if (buf.get() != b) return false;
+            }
+            long size = buf.getLong();
+            long modified = buf.getLong();
+            long checksum = buf.getLong();
+            int vertexCount = buf.getInt();
+            int faceCount = buf.getInt();
+
+            if (size != Files.size(source)) return false;
+            touched = modified != sourceModified;
+            if (touched && checksum != checksum(source)) return false;
+            if (vertexCount < 1 || faceCount < 0
+                || channel.size() != HEADER_SIZE + 12L * vertexCount + 12L * faceCount) return false;
+
+            float[] positions = new float[3 * vertexCount];
+            int[] indices = new int[3 * faceCount];
+            buf.asFloatBuffer().get(positions);
+            buf.position(buf.position() + 12 * vertexCount);
+            buf.asIntBuffer().get(indices);
+            for (int index : indices) {
+                if (index <= 0 || index >= vertexCount) return false;
+            }
+            model.setGeometry(positions, vertexCount, indices, faceCount);
+        }
+        // źródło skopiowane albo tylko dotknięte: nowy czas do nagłówka, żeby następny start nie liczył
+        // CRC32C całego OBJ znowu
+        if (touched) storeModified(cache, sourceModified);
+        return true;
+    }
+
+    private static void storeModified(Path cache, long modified) {
+        ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, modified);
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) channel.write(buf, MODIFIED_OFFSET + buf.position());
+        } catch (IOException e) {
+            // cache dalej jest poprawny, tylko następny start znowu policzy CRC (np. katalog tylko do odczytu)
+            Logger.getLogger(MeshCache.class.getName()).log(Level.WARNING, "Cannot update mesh cache " + cache, e);
+        }
+    }
+
+    // Zapisuje geometrię modelu do cache. Najpierw do pliku tymczasowego, potem atomowa zamiana,
+    // żeby przerwany zapis nie zostawił uszkodzonego cache.
+    public static void store(String objPath, Model model) throws IOException {
+        Path source = Paths.get(objPath);
+        Path cache = cachePath(objPath);
+        Path temp = Paths.get(cache + ".tmp");
+
+        int vertexCount = model.getVertexCount();
+        int faceCount = model.getFaceCount();
+        float[] positions = model.getPositions();
+        int[] indices = model.getIndices();
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            buf.put(MAGIC);
+            buf.putLong(Files.size(source));
+            buf.putLong(Files.getLastModifiedTime(source).toMillis());
+            buf.putLong(checksum(source));
+            buf.putInt(vertexCount);
+            buf.putInt(faceCount);
+
+            for (int i = 0, n = 3 * vertexCount; i < n; ) {
+                if (buf.remaining() < 4) flush(channel, buf);
+                int count = Math.min(n - i, buf.remaining() / 4);
+                buf.asFloatBuffer().put(positions, i, count);
+                buf.position(buf.position() + 4 * count);
+                i += count;
+            }
+            for (int i = 0, n = 3 * faceCount; i < n; ) {
+                if (buf.remaining() < 4) flush(channel, buf);
+                int count = Math.min(n - i, buf.remaining() / 4);
+                buf.asIntBuffer().put(indices, i, count);
+                buf.position(buf.position() + 4 * count);
+                i += count;
+            }
+            flush(channel, buf);
+        }
+        Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+    }
+
+    private static long checksum(Path source) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += Integer.MAX_VALUE) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(Integer.MAX_VALUE, size - pos)));
+            }
+        }
+        return crc.getValue();
+    }
+}
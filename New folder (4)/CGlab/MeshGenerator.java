@@ -0,0 +1,141 @@
+package CGlab;
+
+import java.util.SplittableRandom;
+
+// Siatki generowane proceduralnie, do testów i benchmarków bez plików OBJ. Liczba trójkątów jest
+// dobierana jak najbliżej zadanej (sfera i teren mają liczby postaci 20 * n^2 i 2 * n^2).
+// Wszystkie modele leżą w okolicy (0, 1, -2), czyli przed domyślną kamerą FlatShadingRenderer,
+// a ściany sfery i terenu są zorientowane przeciwnie do wskazówek zegara patrząc z zewnątrz.
+public class MeshGenerator {
+
+    public static final String[] SHAPES = {"sphere", "terrain", "soup"};
+
+    public static Model generate(String shape, int triangles) {
+        switch (shape) {
+            case "sphere": return sphere(triangles);
+            case "terrain": return terrain(triangles);
+            case "soup": return soup(triangles, 42);
+            default: throw new IllegalArgumentException("Unknown mesh shape: " + shape);
+        }
+    }
+
+    // Sfera geodezyjna: każda ściana dwudziestościanu podzielona na n^2 trójkątów i zrzutowana na sferę.
+    // Wierzchołki na wspólnych krawędziach ścian są powielone, ale liczone z tych samych składników
+    // w tej samej arytmetyce, więc mają identyczne współrzędne i siatka nie ma szczelin.
+    public static Model sphere(int triangles) {
+        int n = Math.max(1, (int) Math.round(Math.sqrt(triangles / 20.0)));
+        float t = (float) ((1 + Math.sqrt(5)) / 2);
+        float[][] ico = {{-1, t, 0}, {1, t, 0}, {-1, -t, 0}, {1, -t, 0},
+                         {0, -1, t}, {0, 1, t}, {0, -1, -t}, {0, 1, -t},
+                         {t, 0, -1}, {t, 0, 1}, {-t, 0, -1}, {-t, 0, 1}};
+        int[][] icoFaces = {{0, 11, 5}, {0, 5, 1}, {0, 1, 7}, {0, 7, 10}, {0, 10, 11},
+                            {1, 5, 9}, {5, 11, 4}, {11, 10, 2}, {10, 7, 6}, {7, 1, 8},
+                            {3, 9, 4}, {3, 4, 2}, {3, 2, 6}, {3, 6, 8}, {3, 8, 9},
+                            {4, 9, 5}, {2, 4, 11}, {6, 2, 10}, {8, 6, 7}, {9, 8, 1}};
+
+        int perFace = (n + 1) * (n + 2) / 2;
+        int vertexCount = 1 + 20 * perFace;
+        int faceCount = 20 * n * n;
+        float[] positions = new float[3 * vertexCount];
+        int[] indices = new int[3 * faceCount];
+
+        int v = 1, f = 0;
+        for (int[] face : icoFaces) {
+            float[] a = ico[face[0]], b = ico[face[1]], c = ico[face[2]];
+            int base = v;
+            // punkt (i, j): i kroków od a w stronę b, j kroków w stronę c
+            for (int i = 0; i <= n; i++) {
+                for (int j = 0; i + j <= n; j++) {
+                    float wa = (float) (n - i - j) / n, wb = (float) i / n, wc = (float) j / n;
+                    float x = wa * a[0] + wb * b[0] + wc * c[0];
+                    float y = wa * a[1] + wb * b[1] + wc * c[1];
+                    float z = wa * a[2] + wb * b[2] + wc * c[2];
+                    float length = (float) Math.sqrt(x * x + y * y + z * z);
+                    positions[3 * v] = x / length;
+                    positions[3 * v + 1] = y / length + 1.0f;
+                    positions[3 * v + 2] = z / length - 2.0f;
+                    v++;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; i + j < n; j++) {
+                    int p = base + triangleIndex(n, i, j);
+                    int pi = base + triangleIndex(n, i + 1, j);
+                    int pj = base + triangleIndex(n, i, j + 1);
+                    indices[f++] = p; indices[f++] = pi; indices[f++] = pj;
+                    if (i + j + 1 < n) {
+                        int pij = base + triangleIndex(n, i + 1, j + 1);
+                        indices[f++] = pi; indices[f++] = pij; indices[f++] = pj;
+                    }
+                }
+            }
+        }
+        return build(positions, vertexCount, indices, faceCount);
+    }
+
+    // numer punktu (i, j) w trójkątnej siatce ściany, wiersz i ma n + 1 - i punktów
+    private static int triangleIndex(int n, int i, int j) {
+        return i * (n + 1) - i * (i - 1) / 2 + j;
+    }
+
+    // Teren: siatka n x n kwadratów w płaszczyźnie xz (4 x 4 jednostki) z wysokością z sumy sinusów.
+    public static Model terrain(int triangles) {
+        int n = Math.max(1, (int) Math.round(Math.sqrt(triangles / 2.0)));
+        int vertexCount = 1 + (n + 1) * (n + 1);
+        int faceCount = 2 * n * n;
+        float[] positions = new float[3 * vertexCount];
+        int[] indices = new int[3 * faceCount];
+
+        for (int row = 0; row <= n; row++) {
+            for (int col = 0; col <= n; col++) {
+                float x = -2 + 4.0f * col / n, z = -5 + 4.0f * row / n;
+                float y = 0.3f * (float) (Math.sin(3 * x) * Math.cos(2 * z) + 0.5 * Math.sin(7 * x + 3 * z));
+                int v = 1 + row * (n + 1) + col;
+                positions[3 * v] = x;
+                positions[3 * v + 1] = y;
+                positions[3 * v + 2] = z;
+            }
+        }
+        int f = 0;
+        for (int row = 0; row < n; row++) {
+            for (int col = 0; col < n; col++) {
+                int v = 1 + row * (n + 1) + col;
+                // kolejny wiersz leży dalej w +z; kolejność (v, +z, +x) daje normalną w górę
+                indices[f++] = v; indices[f++] = v + n + 1; indices[f++] = v + 1;
+                indices[f++] = v + 1; indices[f++] = v + n + 1; indices[f++] = v + n + 2;
+            }
+        }
+        return build(positions, vertexCount, indices, faceCount);
+    }
+
+    // Losowe, niepołączone trójkąty w prostopadłościanie przed kamerą. Rozmiar trójkątów maleje
+    // z ich liczbą, więc łączna pokryta powierzchnia (i overdraw) jest mniej więcej stała.
+    public static Model soup(int triangles, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int faceCount = Math.max(1, triangles);
+        int vertexCount = 1 + 3 * faceCount;
+        float[] positions = new float[3 * vertexCount];
+        int[] indices = new int[3 * faceCount];
+        float size = (float) (4.0 / Math.sqrt(faceCount));
+
+        for (int f = 0; f < faceCount; f++) {
+            float cx = (float) random.nextDouble(-1.5, 1.5);
+            float cy = (float) random.nextDouble(0.0, 2.0);
+            float cz = (float) random.nextDouble(-3.0, -1.0);
+            for (int k = 0; k < 3; k++) {
+                int v = 1 + 3 * f + k;
+                positions[3 * v] = cx + size * (float) random.nextDouble(-1, 1);
+                positions[3 * v + 1] = cy + size * (float) random.nextDouble(-1, 1);
+                positions[3 * v + 2] = cz + size * (float) random.nextDouble(-1, 1);
+                indices[3 * f + k] = v;
+            }
+        }
+        return build(positions, vertexCount, indices, faceCount);
+    }
+
+    private static Model build(float[] positions, int vertexCount, int[] indices, int faceCount) {
+        Model model = new Model();
+        model.setGeometry(positions, vertexCount, indices, faceCount);
+        return model;
+    }
+}
@@ -0,0 +1,77 @@
+package CGlab;
+
+// Lekki obiekt sceny: odwołanie do współdzielonej siatki i własna macierz modelu (model -> świat),
+// którą FlatShadingRenderer dokłada do macierzy widoku przy transformacji wierzchołków. Tysiące
+// instancji tej samej siatki kosztują tylko po jednej macierzy, a geometria jest w pamięci raz.
+//
+// translate, scale i rotateY działają w układzie świata i składają się w kolejności wywołań:
+// każda kolejna operacja jest wykonywana po poprzednich (transform = T * transform).
+public class MeshInstance {
+
+    private final Mesh mesh;
+    private final Matrix4f transform = new Matrix4f(Matrix4f.Matrix.Identity);
+
+    public MeshInstance(Mesh mesh) {
+        this.mesh = mesh;
+    }
+
+    public Mesh getMesh() {
+        return mesh;
+    }
+
+    // macierz modelu; można ją też ustawić bezpośrednio, zmiana obowiązuje od następnego render()
+    public Matrix4f getTransform() {
+        return transform;
+    }
+
+    public MeshInstance setIdentity() {
+        transform.setIdentity();
+        return this;
+    }
+
+    public MeshInstance translate(Vec3f vec) {
+        return apply(new Matrix4f(1, 0, 0, vec.x,
+                                  0, 1, 0, vec.y,
+                                  0, 0, 1, vec.z,
+                                  0, 0, 0, 1));
+    }
+
+    public MeshInstance scale(float s) {
+        return apply(new Matrix4f(s, 0, 0, 0,
+                                  0, s, 0, 0,
+                                  0, 0, s, 0,
+                                  0, 0, 0, 1));
+    }
+
+    // obrót wokół osi y świata, kąt w stopniach
+    public MeshInstance rotateY(float degrees) {
+        float c = (float) Math.cos(Math.toRadians(degrees)), s = (float) Math.sin(Math.toRadians(degrees));
+        return apply(new Matrix4f(c, 0, s, 0,
+                                  0, 1, 0, 0,
+                                  -s, 0, c, 0,
+                                  0, 0, 0, 1));
+    }
+
+    private MeshInstance apply(Matrix4f m) {
+        Matrix4f.multiplyInto(m, transform, transform);
+        return this;
+    }
+
+    // Osobny, modyfikowalny Model z wierzchołkami już w układzie świata (np. dla testów przyjmujących Model).
+    public Model toModel() {
+        int vertexCount = mesh.getVertexCount();
+        float[] source = mesh.getPositions();
+        float[] positions = new float[3 * vertexCount];
+        Vec3f p = new Vec3f();
+        for (int v = 1; v < vertexCount; v++) {
+            p.set(source[3 * v], source[3 * v + 1], source[3 * v + 2]);
+            Matrix4f.transformPointInto(transform, p, p);
+            positions[3 * v] = p.x;
+            positions[3 * v + 1] = p.y;
+            positions[3 * v + 2] = p.z;
+        }
+        Model model = new Model();
+        model.setGeometry(positions, vertexCount, mesh.getIndices().clone(), mesh.getFaceCount());
+        return model;
+    }
+}
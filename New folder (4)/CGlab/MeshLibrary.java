@@ -0,0 +1,114 @@
+package CGlab;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Siatki z plików wczytywane raz na ścieżkę i współdzielone. acquire zwiększa licznik odwołań
+// (przy pierwszym wczytuje plik przez Mesh.load), release go zmniejsza. Siatka bez odwołań nie jest
+// usuwana od razu: trafia na listę nieużywanych (od najdawniej zwolnionej), żeby ponowne acquire tej
+// samej ścieżki nie czytało pliku znowu, i jest z niej wyrzucana, gdy nieużywane siatki zajmują
+// więcej niż unusedBudget bajtów. Po wyrzuceniu siatka żyje dalej, dopóki ktoś trzyma do niej
+// referencję, ale biblioteka o niej zapomina, a następne acquire wczyta plik od nowa.
+//
+// Metody są synchronizowane; wczytywanie też odbywa się pod blokadą, więc dwa wątki proszące o ten sam
+// plik nie wczytają go dwa razy (kosztem tego, że różne pliki też wczytują się po kolei).
+public class MeshLibrary {
+
+    public static final long DEFAULT_UNUSED_BUDGET = 64L << 20;
+
+    private final long unusedBudget;
+    private final Map<Path, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<Path, Entry> unused = new LinkedHashMap<>();
+    private long unusedBytes;
+
+    public MeshLibrary() {
+        this(DEFAULT_UNUSED_BUDGET);
+    }
+
+    // unusedBudget = 0: siatka jest wyrzucana od razu, gdy zwolni ją ostatni użytkownik
+    public MeshLibrary(long unusedBudget) {
+        this.unusedBudget = unusedBudget;
+    }
+
+    public synchronized Mesh acquire(String path) throws IOException {
+        Path key = key(path);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(Mesh.load(path));
+            entries.put(key, entry);
+        } else if (entry.references == 0) {
+            unused.remove(key);
+            unusedBytes -= entry.unusedBytes;
+        }
+        entry.references++;
+        return entry.mesh;
+    }
+
+    public synchronized void release(Mesh mesh) {
+        Path key = mesh.getPath() == null ? null : key(mesh.getPath());
+        Entry entry = key == null ? null : entries.get(key);
+        if (entry == null || entry.mesh != mesh) {
+            throw new IllegalArgumentException("Mesh was not acquired from this library: " + mesh.getPath());
+        }
+        if (entry.references == 0) throw new IllegalStateException("Mesh released more times than acquired: " + key);
+        if (--entry.references == 0) {
+            unused.put(key, entry);
+            entry.unusedBytes = mesh.getSizeInBytes();
+            unusedBytes += entry.unusedBytes;
+            trim(unusedBudget);
+        }
+    }
+
+    // Wyrzuca wszystkie siatki, których nikt nie używa.
+    public synchronized void evictUnused() {
+        trim(0);
+    }
+
+    public synchronized int getReferenceCount(String path) {
+        Entry entry = entries.get(key(path));
+        return entry == null ? 0 : entry.references;
+    }
+
+    // liczba siatek w bibliotece, także nieużywanych, ale jeszcze nie wyrzuconych
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getResidentBytes() {
+        long bytes = 0;
+        for (Entry entry : entries.values()) bytes += entry.mesh.getSizeInBytes();
+        return bytes;
+    }
+
+    private void trim(long budget) {
+        Iterator<Map.Entry<Path, Entry>> oldest = unused.entrySet().iterator();
+        while (unusedBytes > budget && oldest.hasNext()) {
+            Map.Entry<Path, Entry> next = oldest.next();
+            oldest.remove();
+            entries.remove(next.getKey());
+            unusedBytes -= next.getValue().unusedBytes;
+        }
+    }
+
+    // ta sama ścieżka zapisana na różne sposoby (względna, z "..") to ta sama siatka
+    private static Path key(String path) {
+        return Paths.get(path).toAbsolutePath().normalize();
+    }
+
+    private static final class Entry {
+        final Mesh mesh;
+        int references;
+        // rozmiar doliczony do unusedBytes przy zwolnieniu; getSizeInBytes rośnie, gdy ktoś policzy
+        // poziomy LOD, więc odejmujemy to samo, co dodaliśmy
+        long unusedBytes;
+
+        Entry(Mesh mesh) {
+            this.mesh = mesh;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package CGlab;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// Przebieg porządkujący siatkę po wczytaniu (Model.optimize). Pliki OBJ często mają powielone wierzchołki
+// (każda ściana ze swoimi kopiami), ściany zdegenerowane i ściany w kolejności z eksportera, przez co
+// dostęp do VertexBuffer.screen w pętlach po ścianach jest praktycznie losowy. Kolejne kroki:
+//  1. sklejanie wierzchołków odległych o nie więcej niż epsilon (siatka komórek o boku epsilon,
+//     sprawdzamy 27 sąsiednich komórek; epsilon = 0 skleja tylko identyczne współrzędne),
+//  2. usuwanie ścian zdegenerowanych (powtórzony wierzchołek albo zerowe pole) i powtórzonych
+//     (te same trzy wierzchołki w tej samej orientacji; ściana odwrócona zostaje, bo to druga strona),
+//  3. nowa kolejność ścian: FORSYTH - algorytm Forsytha pod pamięć podręczną wierzchołków
+//     (trójkąty sąsiadujące w siatce idą po sobie), MORTON - według krzywej Z środków ścian,
+//  4. numeracja wierzchołków według pierwszego użycia w nowej kolejności ścian, więc kolejne ściany
+//     czytają sąsiednie elementy screen - jeśli to daje mniej chybień niż kolejność z pliku; nieużywane
+//     wierzchołki znikają w obu przypadkach.
+//
+// Raport porównuje dwie miary przed i po: ACMR (średnia liczba chybień na trójkąt w pamięci FIFO
+// ostatnich CACHE_SIZE wierzchołków, klasyczna miara dla GPU) i chybienia linii 64 B przy odczycie
+// wierzchołków (screen po 12 B na wierzchołek, pamięć podręczna 32 KB mapowana bezpośrednio).
+public final class MeshOptimizer {
+
+    public enum Ordering {
+        NONE,       // kolejność ścian z pliku, tylko sklejanie, czyszczenie i (jeśli pomaga) numeracja wierzchołków
+        FORSYTH,
+        MORTON
+    }
+
+    static final int CACHE_SIZE = 32;
+    private static final int FETCH_LINES = 512;   // 512 linii po 64 B = 32 KB
+
+    private MeshOptimizer() {
+    }
+
+    public static final class Report {
+        public int verticesBefore, verticesAfter;
+        public int facesBefore, facesAfter;
+        public int weldedVertices, degenerateFaces, duplicateFaces;
+        public double acmrBefore, acmrAfter;
+        public double fetchMissesBefore, fetchMissesAfter;   // chybienia linii na trójkąt
+        public double fetchMissesKept;   // po sklejeniu i nowej kolejności ścian, z numeracją z pliku
+        public boolean renumbered;       // numeracja według pierwszego użycia (false: zostaje ta z pliku)
+        public long nanos;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "vertices %d -> %d (%d welded), faces %d -> %d (%d degenerate, %d duplicate); "
+                    + "ACMR %.3f -> %.3f, vertex fetch line misses per triangle %.3f -> %.3f with file vertex "
+                    + "order -> %.3f (%s); %.1f ms",
+                    verticesBefore - 1, verticesAfter - 1, weldedVertices, facesBefore, facesAfter, degenerateFaces,
+                    duplicateFaces, acmrBefore, acmrAfter, fetchMissesBefore, fetchMissesKept, fetchMissesAfter,
+                    renumbered ? "renumbered by first use" : "file order kept", nanos / 1e6);
+        }
+    }
+
+    public static Report optimize(Model model, float epsilon, Ordering ordering) {
+        long start = System.nanoTime();
+        Report report = new Report();
+        int vertexCount = model.getVertexCount();
+        int faceCount = model.getFaceCount();
+        float[] positions = model.getPositions();
+        int[] indices = Arrays.copyOf(model.getIndices(), 3 * faceCount);
+        report.verticesBefore = vertexCount;
+        report.facesBefore = faceCount;
+        report.acmrBefore = acmr(indices, faceCount, vertexCount);
+        report.fetchMissesBefore = fetchMisses(indices, faceCount);
+
+        int[] remap = weldMap(positions, vertexCount, epsilon);
+        for (int v = 1; v < vertexCount; v++) if (remap[v] != v) report.weldedVertices++;
+        for (int i = 0; i < indices.length; i++) indices[i] = remap[indices[i]];
+
+        faceCount = removeDegenerate(positions, indices, faceCount, report);
+        faceCount = removeDuplicates(indices, faceCount, report);
+
+        if (ordering == Ordering.FORSYTH) {
+            indices = forsyth(indices, faceCount, vertexCount);
+        } else if (ordering == Ordering.MORTON) {
+            indices = morton(positions, indices, faceCount);
+        }
+
+        // numeracja wierzchołków według pierwszego użycia, chyba że daje więcej chybień niż numeracja z pliku
+        // (bez nieużywanych wierzchołków) - przy kolejności ścian z pliku (NONE) nie musi pomagać. Sklejanie
+        // przy NONE potrafi samo pogorszyć odczyt: ściany z własnymi wierzchołkami leżały w pamięci po kolei,
+        // a sklejone odwołują się do wierzchołków z całego pliku; to naprawia dopiero nowa kolejność ścian.
+        int[] order = numbering(indices, faceCount, vertexCount, true);
+        int[] renumbered = apply(order, indices, faceCount);
+        int[] kept = numbering(indices, faceCount, vertexCount, false);
+        int[] compacted = apply(kept, indices, faceCount);
+        report.fetchMissesKept = fetchMisses(compacted, faceCount);
+        report.renumbered = fetchMisses(renumbered, faceCount) <= report.fetchMissesKept;
+        if (!report.renumbered) {
+            order = kept;
+            renumbered = compacted;
+        }
+        indices = renumbered;
+        int used = 1;
+        for (int v = 1; v < vertexCount; v++) used = Math.max(used, order[v] + 1);
+        float[] newPositions = new float[3 * used];
+        for (int v = 1; v < vertexCount; v++) {
+            if (order[v] != 0) System.arraycopy(positions, 3 * v, newPositions, 3 * order[v], 3);
+        }
+        model.setGeometry(newPositions, used, indices, faceCount);
+
+        report.verticesAfter = used;
+        report.facesAfter = faceCount;
+        report.acmrAfter = acmr(indices, faceCount, used);
+        report.fetchMissesAfter = fetchMisses(indices, faceCount);
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    // Nowe numery wierzchołków (0 = nieużywany): według pierwszego użycia w indices albo, przy firstUse = false,
+    // w kolejności starych numerów.
+    private static int[] numbering(int[] indices, int faceCount, int vertexCount, boolean firstUse) {
+        int[] order = new int[vertexCount];
+        for (int i = 0; i < 3 * faceCount; i++) order[indices[i]] = -1;
+        int used = 1;
+        if (firstUse) {
+            for (int i = 0; i < 3 * faceCount; i++) if (order[indices[i]] < 0) order[indices[i]] = used++;
+        } else {
+            for (int v = 1; v < vertexCount; v++) if (order[v] < 0) order[v] = used++;
+        }
+        return order;
+    }
+
+    private static int[] apply(int[] order, int[] indices, int faceCount) {
+        int[] out = new int[3 * faceCount];
+        for (int i = 0; i < out.length; i++) out[i] = order[indices[i]];
+        return out;
+    }
+
+    // Mapa wierzchołek -> wierzchołek, który go zastępuje (pierwszy w kolejności w promieniu epsilon).
+    // Wierzchołek 0 (sztuczny) zostaje sobą.
+    static int[] weldMap(float[] positions, int vertexCount, float epsilon) {
+        int[] remap = new int[vertexCount];
+        int size = Integer.highestOneBit(Math.max(2, 2 * vertexCount)) << 1;
+        int[] heads = new int[size];            // komórka -> pierwszy reprezentant (0 = pusto)
+        int[] next = new int[vertexCount];      // kolejny reprezentant w tym samym kubełku
+        long[] cells = new long[3 * vertexCount];
+        boolean exact = !(epsilon > 0);
+        int reach = exact ? 0 : 1;
+        float epsilon2 = epsilon * epsilon;
+
+        for (int v = 1; v < vertexCount; v++) {
+            float x = positions[3 * v] + 0.0f, y = positions[3 * v + 1] + 0.0f, z = positions[3 * v + 2] + 0.0f;
+            long cx = exact ? Float.floatToIntBits(x) : (long) Math.floor(x / epsilon);
+            long cy = exact ? Float.floatToIntBits(y) : (long) Math.floor(y / epsilon);
+            long cz = exact ? Float.floatToIntBits(z) : (long) Math.floor(z / epsilon);
+            int found = 0;
+            for (int dx = -reach; dx <= reach && found == 0; dx++) {
+                for (int dy = -reach; dy <= reach && found == 0; dy++) {
+                    for (int dz = -reach; dz <= reach && found == 0; dz++) {
+                        for (int r = heads[cellSlot(cx + dx, cy + dy, cz + dz, size)]; r != 0; r = next[r]) {
+                            if (cells[3 * r] != cx + dx || cells[3 * r + 1] != cy + dy || cells[3 * r + 2] != cz + dz) continue;
+                            float ex = positions[3 * r] - x, ey = positions[3 * r + 1] - y, ez = positions[3 * r + 2] - z;
+                            if (exact ? ex == 0 && ey == 0 && ez == 0 : ex * ex + ey * ey + ez * ez <= epsilon2) {
+                                found = r;
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            if (found != 0) {
+                remap[v] = found;
+                continue;
+            }
+            remap[v] = v;
+            cells[3 * v] = cx; cells[3 * v + 1] = cy; cells[3 * v + 2] = cz;
+            int slot = cellSlot(cx, cy, cz, size);
+            next[v] = heads[slot];
+            heads[slot] = v;
+        }
+        return remap;
+    }
+
+    private static int cellSlot(long x, long y, long z, int size) {
+        long h = x * 73856093L ^ y * 19349663L ^ z * 83492791L;
+        return (int) (h ^ (h >>> 32)) & (size - 1);
+    }
+
+    private static int removeDegenerate(float[] p, int[] indices, int faceCount, Report report) {
+        int n = 0;
+        for (int f = 0; f < faceCount; f++) {
+            int a = indices[3 * f], b = indices[3 * f + 1], c = indices[3 * f + 2];
+            boolean degenerate = a == b || b == c || a == c;
+            if (!degenerate) {
+                float abx = p[3 * b] - p[3 * a], aby = p[3 * b + 1] - p[3 * a + 1], abz = p[3 * b + 2] - p[3 * a + 2];
+                float acx = p[3 * c] - p[3 * a], acy = p[3 * c + 1] - p[3 * a + 1], acz = p[3 * c + 2] - p[3 * a + 2];
+                float nx = aby * acz - abz * acy, ny = abz * acx - abx * acz, nz = abx * acy - aby * acx;
+                degenerate = nx == 0 && ny == 0 && nz == 0;
+            }
+            if (degenerate) {
+                report.degenerateFaces++;
+                continue;
+            }
+            indices[3 * n] = a; indices[3 * n + 1] = b; indices[3 * n + 2] = c;
+            n++;
+        }
+        return n;
+    }
+
+    // Ściany z obróconymi wierzchołkami tak, żeby najmniejszy był pierwszy (ta sama orientacja), jako
+    // klucze do sortowania; z każdej grupy identycznych zostaje pierwsza w kolejności z pliku.
+    private static int removeDuplicates(int[] indices, int faceCount, Report report) {
+        long[][] keys = new long[faceCount][];
+        Integer[] order = new Integer[faceCount];
+        for (int f = 0; f < faceCount; f++) {
+            int a = indices[3 * f], b = indices[3 * f + 1], c = indices[3 * f + 2];
+            int first = a, second = b, third = c;
+            if (b < a && b < c) { first = b; second = c; third = a; }
+            else if (c < a && c < b) { first = c; second = a; third = b; }
+            keys[f] = new long[] {((long) first << 32) | second, third};
+            order[f] = f;
+        }
+        Arrays.sort(order, (x, y) -> {
+            int cmp = Long.compare(keys[x][0], keys[y][0]);
+            if (cmp == 0) cmp = Long.compare(keys[x][1], keys[y][1]);
+            return cmp != 0 ? cmp : Integer.compare(x, y);
+        });
+        boolean[] duplicate = new boolean[faceCount];
+        for (int k = 1; k < faceCount; k++) {
+            int f = order[k], g = order[k - 1];
+            if (keys[f][0] == keys[g][0] && keys[f][1] == keys[g][1]) duplicate[f] = true;
+        }
+        int n = 0;
+        for (int f = 0; f < faceCount; f++) {
+            if (duplicate[f]) {
+                report.duplicateFaces++;
+                continue;
+            }
+            System.arraycopy(indices, 3 * f, indices, 3 * n, 3);
+            n++;
+        }
+        return n;
+    }
+
+    // Algorytm Forsytha ("Linear-Speed Vertex Cache Optimisation"): zachłannie bierzemy trójkąt o największej
+    // sumie ocen wierzchołków. Ocena rośnie, gdy wierzchołek jest świeżo w pamięci podręcznej (LRU o rozmiarze
+    // CACHE_SIZE), i gdy zostało mu mało nienarysowanych trójkątów (żeby nie zostawiać pojedynczych ścian).
+    // Kandydaci to trójkąty wierzchołków z pamięci; gdy ich brak, bierzemy następny nienarysowany z kolejności.
+    private static int[] forsyth(int[] indices, int faceCount, int vertexCount) {
+        int[] remaining = new int[vertexCount];
+        for (int i = 0; i < 3 * faceCount; i++) remaining[indices[i]]++;
+        int[] offsets = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) offsets[v + 1] = offsets[v] + remaining[v];
+        int[] vertexFaces = new int[3 * faceCount];
+        int[] fill = Arrays.copyOf(offsets, vertexCount);
+        for (int f = 0; f < faceCount; f++) {
+            for (int j = 0; j < 3; j++) vertexFaces[fill[indices[3 * f + j]]++] = f;
+        }
+
+        int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) vertexScore[v] = vertexScore(-1, remaining[v]);
+        float[] faceScore = new float[faceCount];
+        for (int f = 0; f < faceCount; f++) {
+            faceScore[f] = vertexScore[indices[3 * f]] + vertexScore[indices[3 * f + 1]] + vertexScore[indices[3 * f + 2]];
+        }
+        boolean[] emitted = new boolean[faceCount];
+
+        int[] cache = new int[CACHE_SIZE + 3];
+        int[] newCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] result = new int[3 * faceCount];
+        int nextUnemitted = 0;
+        int best = -1;
+        for (int out = 0; out < faceCount; out++) {
+            if (best < 0) {
+                while (emitted[nextUnemitted]) nextUnemitted++;
+                best = nextUnemitted;
+            }
+            emitted[best] = true;
+            System.arraycopy(indices, 3 * best, result, 3 * out, 3);
+
+            // nowa zawartość pamięci: wierzchołki trójkąta na początek, reszta przesunięta
+            int newCount = 0;
+            for (int j = 0; j < 3; j++) {
+                int v = indices[3 * best + j];
+                newCache[newCount++] = v;
+                remaining[v]--;
+                // usuwamy trójkąt z listy wierzchołka (zamiana z ostatnim nienarysowanym)
+                for (int k = offsets[v]; k < offsets[v] + remaining[v] + 1; k++) {
+                    if (vertexFaces[k] == best) {
+                        vertexFaces[k] = vertexFaces[offsets[v] + remaining[v]];
+                        break;
+                    }
+                }
+            }
+            for (int k = 0; k < cacheCount; k++) {
+                int v = cache[k];
+                if (v != indices[3 * best] && v != indices[3 * best + 1] && v != indices[3 * best + 2]) {
+                    newCache[newCount++] = v;
+                }
+            }
+            int[] swap = cache; cache = newCache; newCache = swap;
+            cacheCount = newCount;
+
+            // przeliczenie ocen wierzchołków w pamięci (i wypadających z niej) oraz ich trójkątów
+            best = -1;
+            float bestScore = -1;
+            for (int k = 0; k < cacheCount; k++) {
+                int v = cache[k];
+                int position = k < CACHE_SIZE ? k : -1;
+                cachePosition[v] = position;
+                float score = vertexScore(position, remaining[v]);
+                float delta = score - vertexScore[v];
+                vertexScore[v] = score;
+                for (int i = offsets[v], end = offsets[v] + remaining[v]; i < end; i++) {
+                    int f = vertexFaces[i];
+                    faceScore[f] += delta;
+                    if (faceScore[f] > bestScore) {
+                        bestScore = faceScore[f];
+                        best = f;
+                    }
+                }
+            }
+            if (cacheCount > CACHE_SIZE) cacheCount = CACHE_SIZE;
+        }
+        return result;
+    }
+
+    private static float vertexScore(int cachePosition, int remaining) {
+        if (remaining == 0) return -1.0f;
+        float score = 0;
+        if (cachePosition >= 0) {
+            if (cachePosition < 3) {
+                score = 0.75f;   // wierzchołki ostatniego trójkąta: lekko w dół, żeby nie robić wachlarzy
+            } else {
+                float scale = 1.0f / (CACHE_SIZE - 3);
+                score = (float) Math.pow(1.0f - (cachePosition - 3) * scale, 1.5f);
+            }
+        }
+        return score + 2.0f * (float) Math.pow(remaining, -0.5f);
+    }
+
+    // Kolejność ścian według kodu Mortona (krzywa Z) środka ściany w prostopadłościanie siatki,
+    // po 21 bitów na oś.
+    private static int[] morton(float[] p, int[] indices, int faceCount) {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < 3 * faceCount; i++) {
+            int v = 3 * indices[i];
+            minX = Math.min(minX, p[v]); maxX = Math.max(maxX, p[v]);
+            minY = Math.min(minY, p[v + 1]); maxY = Math.max(maxY, p[v + 1]);
+            minZ = Math.min(minZ, p[v + 2]); maxZ = Math.max(maxZ, p[v + 2]);
+        }
+        float extent = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+        float scale = extent > 0 ? ((1 << 21) - 1) / extent : 0;
+
+        // klucz: 63 bity kodu Mortona nie zmieszczą się obok numeru ściany, więc sortujemy pary (kod, ściana)
+        long[] codes = new long[faceCount];
+        Integer[] order = new Integer[faceCount];
+        for (int f = 0; f < faceCount; f++) {
+            int a = 3 * indices[3 * f], b = 3 * indices[3 * f + 1], c = 3 * indices[3 * f + 2];
+            long x = (long) (((p[a] + p[b] + p[c]) / 3 - minX) * scale);
+            long y = (long) (((p[a + 1] + p[b + 1] + p[c + 1]) / 3 - minY) * scale);
+            long z = (long) (((p[a + 2] + p[b + 2] + p[c + 2]) / 3 - minZ) * scale);
+            codes[f] = spread(x) | (spread(y) << 1) | (spread(z) << 2);
+            order[f] = f;
+        }
+        Arrays.sort(order, (f, g) -> codes[f] != codes[g] ? Long.compare(codes[f], codes[g]) : Integer.compare(f, g));
+        int[] result = new int[3 * faceCount];
+        for (int k = 0; k < faceCount; k++) System.arraycopy(indices, 3 * order[k], result, 3 * k, 3);
+        return result;
+    }
+
+    // bity x rozsunięte co trzy pozycje (21 bitów -> 63)
+    private static long spread(long x) {
+        x &= 0x1fffffL;
+        x = (x | x << 32) & 0x1f00000000ffffL;
+        x = (x | x << 16) & 0x1f0000ff0000ffL;
+        x = (x | x << 8) & 0x100f00f00f00f00fL;
+        x = (x | x << 4) & 0x10c30c30c30c30c3L;
+        x = (x | x << 2) & 0x1249249249249249L;
+        return x;
+    }
+
+    // Średnia liczba chybień na trójkąt w pamięci FIFO ostatnich CACHE_SIZE wierzchołków (0.5 to ideał
+    // dla dużej siatki, 3 to brak jakiejkolwiek lokalności).
+    public static double acmr(int[] indices, int faceCount, int vertexCount) {
+        if (faceCount == 0) return 0;
+        int[] insertedAt = new int[vertexCount];
+        Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+        int time = 0;
+        long misses = 0;
+        for (int i = 0; i < 3 * faceCount; i++) {
+            int v = indices[i];
+            if (time - insertedAt[v] >= CACHE_SIZE) {
+                insertedAt[v] = time++;
+                misses++;
+            }
+        }
+        return (double) misses / faceCount;
+    }
+
+    // Chybienia linii 64 B na trójkąt przy czytaniu wierzchołków (12 B każdy) przez pamięć podręczną
+    // FETCH_LINES linii mapowaną bezpośrednio.
+    public static double fetchMisses(int[] indices, int faceCount) {
+        if (faceCount == 0) return 0;
+        long[] tags = new long[FETCH_LINES];
+        Arrays.fill(tags, -1);
+        long misses = 0;
+        for (int i = 0; i < 3 * faceCount; i++) {
+            long line = 12L * indices[i] / 64;
+            for (long l = line, last = (12L * indices[i] + 11) / 64; l <= last; l++) {
+                int slot = (int) (l & (FETCH_LINES - 1));
+                if (tags[slot] != l) {
+                    tags[slot] = l;
+                    misses++;
+                }
+            }
+        }
+        return (double) misses / faceCount;
+    }
+}
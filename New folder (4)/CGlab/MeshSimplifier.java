@@ -0,0 +1,424 @@
+package CGlab;
+
+import java.util.Arrays;
+
+// Upraszczanie siatki przez zwijanie krawędzi z miarą błędu kwadryk (Garland, Heckbert 1997).
+// Każdy wierzchołek ma kwadrykę Q (symetryczna macierz 4x4, 10 liczb) - sumę kwadratów odległości od
+// płaszczyzn ścian, do których należy, więc v^T Q v mówi, jak daleko punkt v odszedł od pierwotnej
+// powierzchni w okolicy wierzchołka. Zwinięcie krawędzi (a, b) do punktu p kosztuje p^T (Qa + Qb) p,
+// gdzie p minimalizuje ten koszt; krawędzie zwijamy od najtańszych (kopiec), a zwinięty wierzchołek
+// dostaje kwadrykę Qa + Qb, czyli błąd jest liczony zawsze względem siatki wejściowej.
+//
+// simplify można wołać wielokrotnie z malejącym celem: kolejne poziomy LOD powstają z jednego przebiegu,
+// a getError() to największy dotąd koszt, pierwiastkowany - w jednostkach długości modelu.
+//
+// Szczegóły:
+//  - wierzchołki o identycznych współrzędnych są na początku sklejane (np. powielone krawędzie sfery
+//    z MeshGenerator), inaczej siatka rozeszłaby się na szwach,
+//  - krawędzie brzegowe (jedna ściana) dostają dodatkową płaszczyznę prostopadłą do ściany z wagą
+//    BOUNDARY_WEIGHT, żeby brzeg (np. teren) nie kurczył się do środka,
+//  - zwinięcie jest odrzucane, jeśli odwróciłoby którąś ze ścian albo skleiło dwie warstwy siatki
+//    (warunek łącza: wspólnych sąsiadów a i b ma być tyle, ile wspólnych ścian).
+public final class MeshSimplifier {
+
+    private static final double BOUNDARY_WEIGHT = 10.0;
+    private static final double MIN_NORMAL_COS = 0.2;
+
+    private final int vertexCount;
+    private final float[] positions;
+    private final int[] indices;
+    private final double[] quadrics;
+    private final boolean[] faceDead;
+    private int liveFaces;
+
+    // ściany każdego wierzchołka; listy rosną przy zwijaniu i są czyszczone z martwych ścian
+    private final int[][] vertexFaces;
+    private final int[] vertexFaceCount;
+    private final int[] version;     // zwiększana przy każdej zmianie wierzchołka, -1 = wierzchołek usunięty
+    private final int[] mark;
+    private int markStamp;
+
+    // kopiec kandydatów: klucz = (bity kosztu << 32) | numer kandydata, jak w CommandBuffer
+    private long[] heap = new long[64];
+    private int heapSize;
+    private int[] candidateA = new int[64], candidateB = new int[64];
+    private int[] candidateVersionA = new int[64], candidateVersionB = new int[64];
+    private float[] candidatePoint = new float[3 * 64];
+    private int candidateCount;
+
+    private double maxCost;
+    private final double[] scratch = new double[4];
+
+    public MeshSimplifier(Geometry geometry) {
+        vertexCount = geometry.getVertexCount();
+        positions = Arrays.copyOf(geometry.getPositions(), 3 * vertexCount);
+        int faceCount = geometry.getFaceCount();
+        indices = Arrays.copyOf(geometry.getIndices(), 3 * faceCount);
+        quadrics = new double[10 * vertexCount];
+        faceDead = new boolean[faceCount];
+        version = new int[vertexCount];
+        mark = new int[vertexCount];
+
+        weldIdentical();
+        liveFaces = 0;
+        vertexFaceCount = new int[vertexCount];
+        for (int f = 0; f < faceCount; f++) {
+            int a = indices[3 * f], b = indices[3 * f + 1], c = indices[3 * f + 2];
+            if (a == b || b == c || a == c) {
+                faceDead[f] = true;
+                continue;
+            }
+            liveFaces++;
+            vertexFaceCount[a]++; vertexFaceCount[b]++; vertexFaceCount[c]++;
+        }
+        vertexFaces = new int[vertexCount][];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexFaces[v] = new int[Math.max(4, vertexFaceCount[v])];
+            vertexFaceCount[v] = 0;
+        }
+        for (int f = 0; f < faceCount; f++) {
+            if (faceDead[f]) continue;
+            for (int j = 0; j < 3; j++) {
+                int v = indices[3 * f + j];
+                vertexFaces[v][vertexFaceCount[v]++] = f;
+            }
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            if (vertexFaceCount[v] == 0) version[v] = -1;
+        }
+
+        addFaceQuadrics();
+        addCandidates();
+    }
+
+    public int getFaceCount() {
+        return liveFaces;
+    }
+
+    // największy koszt zwinięcia dotąd, jako odległość w jednostkach modelu
+    public float getError() {
+        return (float) Math.sqrt(maxCost);
+    }
+
+    // Zwija krawędzie, aż zostanie co najwyżej targetFaces ścian albo nie da się już nic zwinąć.
+    public void simplify(int targetFaces) {
+        while (liveFaces > targetFaces && heapSize > 0) {
+            long key = popMin();
+            int candidate = (int) key;
+            int a = candidateA[candidate], b = candidateB[candidate];
+            if (version[a] != candidateVersionA[candidate] || version[b] != candidateVersionB[candidate]) continue;
+            float px = candidatePoint[3 * candidate];
+            float py = candidatePoint[3 * candidate + 1];
+            float pz = candidatePoint[3 * candidate + 2];
+            if (!linkCondition(a, b) || flips(a, b, px, py, pz) || flips(b, a, px, py, pz)) continue;
+            maxCost = Math.max(maxCost, Float.intBitsToFloat((int) (key >>> 32)));
+            collapse(a, b, px, py, pz);
+        }
+    }
+
+    // Bieżący stan jako niezmienna siatka: tylko żywe wierzchołki (renumerowane, wierzchołek 0 sztuczny)
+    // i żywe ściany w pierwotnej kolejności.
+    public Mesh toMesh() {
+        int[] remap = new int[vertexCount];
+        int used = 1;
+        for (int v = 1; v < vertexCount; v++) {
+            if (version[v] >= 0 && vertexFaceCount[v] > 0) remap[v] = used++;
+        }
+        float[] outPositions = new float[3 * used];
+        for (int v = 1; v < vertexCount; v++) {
+            if (remap[v] == 0) continue;
+            System.arraycopy(positions, 3 * v, outPositions, 3 * remap[v], 3);
+        }
+        int[] outIndices = new int[3 * liveFaces];
+        int n = 0;
+        for (int f = 0; f < faceDead.length; f++) {
+            if (faceDead[f]) continue;
+            outIndices[n++] = remap[indices[3 * f]];
+            outIndices[n++] = remap[indices[3 * f + 1]];
+            outIndices[n++] = remap[indices[3 * f + 2]];
+        }
+        Model model = new Model();
+        model.setGeometry(outPositions, used, outIndices, liveFaces);
+        return Mesh.of(model);
+    }
+
+    // Skleja wierzchołki o identycznych współrzędnych (jak MeshOptimizer z epsilon = 0).
+    private void weldIdentical() {
+        int[] remap = MeshOptimizer.weldMap(positions, vertexCount, 0.0f);
+        for (int i = 0; i < indices.length; i++) indices[i] = remap[indices[i]];
+    }
+
+    private void addFaceQuadrics() {
+        double[] n = scratch;
+        for (int f = 0; f < faceDead.length; f++) {
+            if (faceDead[f]) continue;
+            int a = indices[3 * f], b = indices[3 * f + 1], c = indices[3 * f + 2];
+            if (!faceNormal(a, b, c, n)) continue;
+            double d = -(n[0] * positions[3 * a] + n[1] * positions[3 * a + 1] + n[2] * positions[3 * a + 2]);
+            addPlane(a, n[0], n[1], n[2], d, 1.0);
+            addPlane(b, n[0], n[1], n[2], d, 1.0);
+            addPlane(c, n[0], n[1], n[2], d, 1.0);
+        }
+
+        // krawędzie brzegowe: klucze (min << 32 | max) wszystkich krawędzi, posortowane; krawędź,
+        // której klucz występuje raz, należy do jednej ściany
+        long[] edges = edgeKeys();
+        for (int f = 0; f < faceDead.length; f++) {
+            if (faceDead[f]) continue;
+            for (int j = 0; j < 3; j++) {
+                int a = indices[3 * f + j], b = indices[3 * f + (j + 1) % 3];
+                long key = edgeKey(a, b);
+                int at = Arrays.binarySearch(edges, key);
+                if ((at > 0 && edges[at - 1] == key) || (at + 1 < edges.length && edges[at + 1] == key)) continue;
+                if (!faceNormal(indices[3 * f], indices[3 * f + 1], indices[3 * f + 2], n)) continue;
+                // płaszczyzna przez krawędź, prostopadła do ściany
+                double ex = positions[3 * b] - positions[3 * a];
+                double ey = positions[3 * b + 1] - positions[3 * a + 1];
+                double ez = positions[3 * b + 2] - positions[3 * a + 2];
+                double bx = ey * n[2] - ez * n[1], by = ez * n[0] - ex * n[2], bz = ex * n[1] - ey * n[0];
+                double length = Math.sqrt(bx * bx + by * by + bz * bz);
+                if (length == 0) continue;
+                bx /= length; by /= length; bz /= length;
+                double d = -(bx * positions[3 * a] + by * positions[3 * a + 1] + bz * positions[3 * a + 2]);
+                addPlane(a, bx, by, bz, d, BOUNDARY_WEIGHT);
+                addPlane(b, bx, by, bz, d, BOUNDARY_WEIGHT);
+            }
+        }
+    }
+
+    private void addCandidates() {
+        long[] edges = edgeKeys();
+        for (int i = 0; i < edges.length; i++) {
+            if (i > 0 && edges[i] == edges[i - 1]) continue;
+            pushCandidate((int) (edges[i] >>> 32), (int) edges[i]);
+        }
+    }
+
+    private long[] edgeKeys() {
+        long[] edges = new long[3 * liveFaces];
+        int n = 0;
+        for (int f = 0; f < faceDead.length; f++) {
+            if (faceDead[f]) continue;
+            for (int j = 0; j < 3; j++) edges[n++] = edgeKey(indices[3 * f + j], indices[3 * f + (j + 1) % 3]);
+        }
+        Arrays.sort(edges);
+        return edges;
+    }
+
+    private static long edgeKey(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    // jednostkowa normalna ściany do n[0..2]; false dla ściany o zerowym polu
+    private boolean faceNormal(int a, int b, int c, double[] n) {
+        double abx = positions[3 * b] - positions[3 * a];
+        double aby = positions[3 * b + 1] - positions[3 * a + 1];
+        double abz = positions[3 * b + 2] - positions[3 * a + 2];
+        double acx = positions[3 * c] - positions[3 * a];
+        double acy = positions[3 * c + 1] - positions[3 * a + 1];
+        double acz = positions[3 * c + 2] - positions[3 * a + 2];
+        double nx = aby * acz - abz * acy, ny = abz * acx - abx * acz, nz = abx * acy - aby * acx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) return false;
+        n[0] = nx / length; n[1] = ny / length; n[2] = nz / length;
+        return true;
+    }
+
+    // Q += w * p p^T dla płaszczyzny p = (a, b, c, d); 10 elementów górnego trójkąta
+    private void addPlane(int v, double a, double b, double c, double d, double w) {
+        int o = 10 * v;
+        double[] q = quadrics;
+        q[o] += w * a * a;     q[o + 1] += w * a * b; q[o + 2] += w * a * c; q[o + 3] += w * a * d;
+        q[o + 4] += w * b * b; q[o + 5] += w * b * c; q[o + 6] += w * b * d;
+        q[o + 7] += w * c * c; q[o + 8] += w * c * d;
+        q[o + 9] += w * d * d;
+    }
+
+    // Kandydat na zwinięcie (a, b): punkt minimalizujący p^T (Qa + Qb) p, a gdy macierz jest osobliwa
+    // (np. płaski fragment) - najlepszy z a, b i środka krawędzi.
+    private void pushCandidate(int a, int b) {
+        double[] q = quadrics;
+        int oa = 10 * a, ob = 10 * b;
+        double q00 = q[oa] + q[ob], q01 = q[oa + 1] + q[ob + 1], q02 = q[oa + 2] + q[ob + 2], q03 = q[oa + 3] + q[ob + 3];
+        double q11 = q[oa + 4] + q[ob + 4], q12 = q[oa + 5] + q[ob + 5], q13 = q[oa + 6] + q[ob + 6];
+        double q22 = q[oa + 7] + q[ob + 7], q23 = q[oa + 8] + q[ob + 8];
+        double q33 = q[oa + 9] + q[ob + 9];
+
+        double c00 = q11 * q22 - q12 * q12, c01 = q02 * q12 - q01 * q22, c02 = q01 * q12 - q02 * q11;
+        double det = q00 * c00 + q01 * c01 + q02 * c02;
+        double x, y, z;
+        double scale = q00 + q11 + q22;
+        if (Math.abs(det) > 1e-9 * scale * scale * scale) {
+            // Cramer dla [q00 q01 q02; q01 q11 q12; q02 q12 q22] p = -(q03, q13, q23)
+            double c11 = q00 * q22 - q02 * q02, c12 = q01 * q02 - q00 * q12, c22 = q00 * q11 - q01 * q01;
+            x = -(c00 * q03 + c01 * q13 + c02 * q23) / det;
+            y = -(c01 * q03 + c11 * q13 + c12 * q23) / det;
+            z = -(c02 * q03 + c12 * q13 + c22 * q23) / det;
+        } else {
+            double best = Double.POSITIVE_INFINITY;
+            x = y = z = 0;
+            for (int k = 0; k < 3; k++) {
+                double t = k * 0.5;
+                double cx = positions[3 * a] + t * (positions[3 * b] - positions[3 * a]);
+                double cy = positions[3 * a + 1] + t * (positions[3 * b + 1] - positions[3 * a + 1]);
+                double cz = positions[3 * a + 2] + t * (positions[3 * b + 2] - positions[3 * a + 2]);
+                double cost = cost(q00, q01, q02, q03, q11, q12, q13, q22, q23, q33, cx, cy, cz);
+                if (cost < best) {
+                    best = cost;
+                    x = cx; y = cy; z = cz;
+                }
+            }
+        }
+        double cost = Math.max(0.0, cost(q00, q01, q02, q03, q11, q12, q13, q22, q23, q33, x, y, z));
+        if (!(cost < Double.POSITIVE_INFINITY)) return;
+
+        int i = candidateCount++;
+        if (i == candidateA.length) {
+            candidateA = Arrays.copyOf(candidateA, 2 * i);
+            candidateB = Arrays.copyOf(candidateB, 2 * i);
+            candidateVersionA = Arrays.copyOf(candidateVersionA, 2 * i);
+            candidateVersionB = Arrays.copyOf(candidateVersionB, 2 * i);
+            candidatePoint = Arrays.copyOf(candidatePoint, 6 * i);
+        }
+        candidateA[i] = a; candidateB[i] = b;
+        candidateVersionA[i] = version[a]; candidateVersionB[i] = version[b];
+        candidatePoint[3 * i] = (float) x; candidatePoint[3 * i + 1] = (float) y; candidatePoint[3 * i + 2] = (float) z;
+        push(((long) Float.floatToIntBits((float) cost) << 32) | i);
+    }
+
+    private static double cost(double q00, double q01, double q02, double q03, double q11, double q12, double q13,
+                               double q22, double q23, double q33, double x, double y, double z) {
+        return q00 * x * x + 2 * q01 * x * y + 2 * q02 * x * z + 2 * q03 * x
+               + q11 * y * y + 2 * q12 * y * z + 2 * q13 * y
+               + q22 * z * z + 2 * q23 * z + q33;
+    }
+
+    // Czy przesunięcie v do p (przy zwijaniu krawędzi v - other) obróciłoby albo zdegenerowało którąś
+    // ze ścian v, które zostaną (te z other znikają).
+    private boolean flips(int v, int other, float px, float py, float pz) {
+        double[] n = scratch;
+        int[] faces = vertexFaces[v];
+        for (int k = 0; k < vertexFaceCount[v]; k++) {
+            int f = faces[k];
+            if (faceDead[f]) continue;
+            int a = indices[3 * f], b = indices[3 * f + 1], c = indices[3 * f + 2];
+            if (a == other || b == other || c == other) continue;
+            if (!faceNormal(a, b, c, n)) continue;
+            double ox = n[0], oy = n[1], oz = n[2];
+            float sx = positions[3 * v], sy = positions[3 * v + 1], sz = positions[3 * v + 2];
+            positions[3 * v] = px; positions[3 * v + 1] = py; positions[3 * v + 2] = pz;
+            boolean valid = faceNormal(a, b, c, n);
+            positions[3 * v] = sx; positions[3 * v + 1] = sy; positions[3 * v + 2] = sz;
+            if (!valid || ox * n[0] + oy * n[1] + oz * n[2] < MIN_NORMAL_COS) return true;
+        }
+        return false;
+    }
+
+    // Warunek łącza: wspólni sąsiedzi a i b to tylko trzecie wierzchołki ścian zawierających krawędź.
+    private boolean linkCondition(int a, int b) {
+        int stamp = ++markStamp;
+        int shared = 0;
+        int[] faces = vertexFaces[a];
+        for (int k = 0; k < vertexFaceCount[a]; k++) {
+            int f = faces[k];
+            if (faceDead[f]) continue;
+            boolean hasB = false;
+            for (int j = 0; j < 3; j++) {
+                int w = indices[3 * f + j];
+                if (w == b) hasB = true;
+                mark[w] = stamp;
+            }
+            if (hasB) shared++;
+        }
+        int common = 0;
+        int commonStamp = ++markStamp;
+        faces = vertexFaces[b];
+        for (int k = 0; k < vertexFaceCount[b]; k++) {
+            int f = faces[k];
+            if (faceDead[f]) continue;
+            for (int j = 0; j < 3; j++) {
+                int w = indices[3 * f + j];
+                if (w != a && w != b && mark[w] == stamp) {
+                    mark[w] = commonStamp;
+                    common++;
+                }
+            }
+        }
+        return common <= shared;
+    }
+
+    private void collapse(int a, int b, float px, float py, float pz) {
+        positions[3 * a] = px; positions[3 * a + 1] = py; positions[3 * a + 2] = pz;
+        for (int k = 0; k < 10; k++) quadrics[10 * a + k] += quadrics[10 * b + k];
+
+        int[] faces = vertexFaces[b];
+        for (int k = 0; k < vertexFaceCount[b]; k++) {
+            int f = faces[k];
+            if (faceDead[f]) continue;
+            int o = 3 * f;
+            if (indices[o] == a || indices[o + 1] == a || indices[o + 2] == a) {
+                faceDead[f] = true;
+                liveFaces--;
+                continue;
+            }
+            for (int j = 0; j < 3; j++) if (indices[o + j] == b) indices[o + j] = a;
+            addFace(a, f);
+        }
+        vertexFaceCount[b] = 0;
+        version[b] = -1;
+        version[a]++;
+
+        // usuwamy martwe ściany z listy a i wystawiamy od nowa krawędzie do wszystkich sąsiadów
+        faces = vertexFaces[a];
+        int n = 0;
+        for (int k = 0; k < vertexFaceCount[a]; k++) {
+            if (!faceDead[faces[k]]) faces[n++] = faces[k];
+        }
+        vertexFaceCount[a] = n;
+        int stamp = ++markStamp;
+        mark[a] = stamp;
+        for (int k = 0; k < n; k++) {
+            for (int j = 0; j < 3; j++) {
+                int w = indices[3 * faces[k] + j];
+                if (mark[w] == stamp) continue;
+                mark[w] = stamp;
+                pushCandidate(a, w);
+            }
+        }
+    }
+
+    private void addFace(int v, int f) {
+        if (vertexFaceCount[v] == vertexFaces[v].length) {
+            vertexFaces[v] = Arrays.copyOf(vertexFaces[v], 2 * vertexFaceCount[v]);
+        }
+        vertexFaces[v][vertexFaceCount[v]++] = f;
+    }
+
+    private void push(long key) {
+        if (heapSize == heap.length) heap = Arrays.copyOf(heap, 2 * heapSize);
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+    }
+
+    private long popMin() {
+        long min = heap[0];
+        long last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) child++;
+            if (last <= heap[child]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (heapSize > 0) heap[i] = last;
+        return min;
+    }
+}
@@ -1,58 +1,165 @@
 package CGlab;
 
-import java.io.*;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Geometria trzymana jako struktura tablic: positions = {x0, y0, z0, x1, y1, z1, ...} oraz
+// indices = {a0, b0, c0, a1, b1, c1, ...}. Żadnych obiektów na wierzchołek ani na ścianę.
+// Wierzchołek 0 jest sztuczny (0, 0, 0), bo indeksy w OBJ zaczynają się od 1.
+// Model jest modyfikowalny (translate przesuwa wierzchołki); do wielu kopii tej samej siatki
+// w różnych miejscach służą Mesh i MeshInstance.
+public class Model implements Geometry {
+    private float[] positions = new float[0];
+    private int[] indices = new int[0];
+    private int vertexCount;
+    private int faceCount;
+
+    // prostopadłościan otaczający (AABB): {minX, minY, minZ, maxX, maxY, maxZ}, liczony przy wczytaniu
+    // i przesuwany przez translate; pusty model ma min > max
+    private final float[] bounds = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                                    Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+
+    // poziomy LOD, liczone leniwie; zmiana geometrii (translate, setGeometry) je unieważnia
+    private volatile LodChain lods;
 
-public class Model {
-    private ArrayList < Vec3f > vertexList;
-    private ArrayList < Vec3i > faceList;
     public Model() {}
 
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getFaceCount() {
+        return faceCount;
+    }
+
+    // surowe tablice dla gorących pętli; wierzchołek i zajmuje positions[3*i .. 3*i+2],
+    // ściana f zajmuje indices[3*f .. 3*f+2]
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    // {minX, minY, minZ, maxX, maxY, maxZ}, bez sztucznego wierzchołka 0; tylko do odczytu
+    public float[] getBounds() {
+        return bounds;
+    }
+
+    public boolean isEmpty() {
+        return !(bounds[0] <= bounds[3]);
+    }
+
+    // Uproszczone wersje modelu (LodChain). Wywołane zaraz po readOBJ liczy je przy wczytaniu,
+    // inaczej przy pierwszym renderze z włączonym LOD.
+    public LodChain getLods() {
+        LodChain chain = lods;
+        if (chain == null) {
+            synchronized (this) {
+                chain = lods;
+                if (chain == null) lods = chain = LodChain.build(this);
+            }
+        }
+        return chain;
+    }
+
+    // Widok zgodności wstecznej: kolejne ściany jako Vec3i tworzone na żądanie.
     public List < Vec3i > getFaceList() {
-        return faceList;
+        return new AbstractList < Vec3i > () {
+            @Override
+            public Vec3i get(int f) {
+                return new Vec3i(indices[3 * f], indices[3 * f + 1], indices[3 * f + 2]);
+            }
+
+            @Override
+            public int size() {
+                return faceCount;
+            }
+        };
     }
+
+    // Zwraca kopię wierzchołka - zmiana zwróconego Vec3f nie zmienia modelu (do tego służy translate).
     public Vec3f getVertex(int index) {
-        return vertexList.get(index);
+        return new Vec3f(positions[3 * index], positions[3 * index + 1], positions[3 * index + 2]);
     }
 
     public void readOBJ(String path) throws IOException {
-        vertexList = new ArrayList < > ();
-        faceList = new ArrayList < > ();
-        InputStream objInputStream = new FileInputStream(path);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(objInputStream));
-        vertexList.add(new Vec3f(0, 0, 0));
-        while (reader.ready()) {
-            String line = reader.readLine();
-            if (isVertex(line)) vertexList.add(parseVertexFromOBJ(line));
-            else if (isFace(line)) faceList.add(parseFaceFromOBJ(line));
+        readOBJ(path, true);
+    }
+
+    // Z useCache = true model jest brany z binarnego cache obok pliku (patrz MeshCache), a jeśli go
+    // nie ma albo jest nieaktualny - parsowany z OBJ i cache jest zapisywany na następny raz.
+    public void readOBJ(String path, boolean useCache) throws IOException {
+        long start = RenderMetrics.start();
+        if (useCache && MeshCache.load(path, this)) {
+            RenderMetrics.end(RenderMetrics.Stage.PARSE, start, faceCount);
+            return;
+        }
+        ObjLoader.read(path, this);
+        RenderMetrics.end(RenderMetrics.Stage.PARSE, start, faceCount);
+        if (useCache) {
+            try {
+                MeshCache.store(path, this);
+            } catch (IOException e) {
+                // brak cache to tylko wolniejszy start, np. gdy katalog z modelem jest tylko do odczytu
+                Logger.getLogger(Model.class.getName()).log(Level.WARNING, "Cannot write mesh cache for " + path, e);
+            }
         }
     }
 
-    private boolean isVertex(String line) {
-        return line.charAt(0) == 'v' && line.charAt(1) == ' ';
+    // Opcjonalny przebieg po wczytaniu (MeshOptimizer): sklejenie wierzchołków bliższych niż epsilon,
+    // usunięcie ścian zdegenerowanych i powtórzonych, kolejność ścian i wierzchołków pod pamięć podręczną.
+    public MeshOptimizer.Report optimize() {
+        return optimize(0.0f, MeshOptimizer.Ordering.FORSYTH);
     }
 
-    private boolean isFace(String line) {
-        return line.charAt(0) == 'f' && line.charAt(1) == ' ';
+    public MeshOptimizer.Report optimize(float epsilon, MeshOptimizer.Ordering ordering) {
+        return MeshOptimizer.optimize(this, epsilon, ordering);
     }
-    
-    private Vec3f parseVertexFromOBJ(String line) {
-        String[] splitted = line.split(" "); // will be {"v", xcord, ycord, zcord} return new Vec3f( Float.parseFloat(splitted[1]), Float.parseFloat(splitted[2]),
-        Float.parseFloat(splitted[3]);
-        return new Vec3f( Float.parseFloat(splitted[1]), Float.parseFloat(splitted[2]), Float.parseFloat(splitted[3]));
+
+    // Zwarta kopia do trzymania w pamięci (QuantizedMesh): pozycje 16-bitowe, indeksy kodem topologicznym w blokach.
+    // Renderer rysuje ją bezpośrednio; najkrótsza po optimize().
+    public QuantizedMesh quantize() {
+        return QuantizedMesh.of(this);
     }
 
-    private Vec3i parseFaceFromOBJ(String line) {
-        String[] splitted = line.split(" "); // "f" will be first, than 3 x vertex_index/texture_index/normal_index
+    // positions musi zawierać sztuczny wierzchołek 0, długości tablic mogą być większe niż potrzeba
+    void setGeometry(float[] positions, int vertexCount, int[] indices, int faceCount) {
+        this.positions = positions;
+        this.vertexCount = vertexCount;
+        this.indices = indices;
+        this.faceCount = faceCount;
+        this.lods = null;
+        computeBounds();
+    }
 
-        return new Vec3i(Integer.parseInt(splitted[1].split("/")[0]), Integer.parseInt(splitted[2].split("/")[0]),
-                Integer.parseInt(splitted[3].split("/")[0])); // we need to split based on "/" to get vertex_index
+    private void computeBounds() {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = 3, n = 3 * vertexCount; i < n; i += 3) {
+            minX = Math.min(minX, positions[i]);
+            minY = Math.min(minY, positions[i + 1]);
+            minZ = Math.min(minZ, positions[i + 2]);
+            maxX = Math.max(maxX, positions[i]);
+            maxY = Math.max(maxY, positions[i + 1]);
+            maxZ = Math.max(maxZ, positions[i + 2]);
+        }
+        bounds[0] = minX; bounds[1] = minY; bounds[2] = minZ;
+        bounds[3] = maxX; bounds[4] = maxY; bounds[5] = maxZ;
     }
 
     public void translate(Vec3f vec) {
-        for(Vec3f vertex : vertexList) {
-            vertex.add(vec);
+        float dx = vec.x, dy = vec.y, dz = vec.z;
+        for (int i = 0, n = 3 * vertexCount; i < n; i += 3) {
+            positions[i] += dx;
+            positions[i + 1] += dy;
+            positions[i + 2] += dz;
         }
+        computeBounds(); // przesunięcie floatów zaokrągla, więc liczymy od nowa zamiast przesuwać bounds
+        lods = null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,61 @@
+package CGlab;
+
+// Obcinanie trójkątów płaszczyzną bliską metodą Sutherlanda-Hodgmana, w przestrzeni obcinania,
+// czyli przed dzieleniem perspektywicznym. Wierzchołek za kamerą ma w <= 0 i po dzieleniu przez w
+// trafia na drugą stronę ekranu, więc trójkąt przecinający płaszczyznę bliską dawałby ogromny albo
+// odwrócony bounding box. Po obcięciu zostaje wielokąt (3 albo 4 wierzchołki) leżący w całości
+// przed płaszczyzną w = wNear, który dzielimy na trójkąty wachlarzem.
+//
+// x, y, z i w są w przestrzeni obcinania liniowe, więc interpolacja wzdłuż krawędzi daje dokładnie
+// punkt przecięcia, a z w nowym wierzchołku jest tym samym z, które dostałby rasteryzer.
+public final class NearPlaneClipper {
+
+    private NearPlaneClipper() {
+    }
+
+    // in: count wierzchołków po 4 floaty (x, y, z, w), out: miejsce na count + 1 wierzchołków.
+    // Zwraca liczbę wierzchołków wielokąta po obcięciu (0, jeśli cały leży za płaszczyzną).
+    public static int clip(float[] in, int count, float wNear, float[] out) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int a = 4 * i, b = 4 * ((i + 1) % count);
+            float da = in[a + 3] - wNear, db = in[b + 3] - wNear;
+            boolean aInside = da >= 0, bInside = db >= 0;
+            if (aInside) {
+                System.arraycopy(in, a, out, 4 * n++, 4);
+            }
+            if (aInside != bInside) {
+                // punkt na krawędzi a -> b, w którym w = wNear
+                float t = da / (da - db);
+                int o = 4 * n++;
+                for (int k = 0; k < 4; k++) {
+                    out[o + k] = in[a + k] + t * (in[b + k] - in[a + k]);
+                }
+                out[o + 3] = wNear; // bez błędu zaokrąglenia, żeby dzielenie dało dokładnie płaszczyznę
+            }
+        }
+        return n;
+    }
+
+    // Obcina trójkąt (12 floatów w clip) i zapisuje wynikowe trójkąty we współrzędnych ekranu
+    // (9 floatów na trójkąt, jak VertexBuffer.screen) do screen od pozycji offset.
+    // scratch musi mieć co najmniej 16 elementów. Zwraca liczbę trójkątów (0, 1 albo 2).
+    public static int clipTriangle(float[] clip, float wNear, float[] scratch, float[] screen, int offset) {
+        int n = clip(clip, 3, wNear, scratch);
+        for (int k = 0; k + 2 < n; k++) {
+            int o = offset + 9 * k;
+            toScreen(scratch, 0, screen, o);
+            toScreen(scratch, k + 1, screen, o + 3);
+            toScreen(scratch, k + 2, screen, o + 6);
+        }
+        return Math.max(0, n - 2);
+    }
+
+    private static void toScreen(float[] polygon, int vertex, float[] screen, int o) {
+        int p = 4 * vertex;
+        float w = polygon[p + 3];
+        screen[o] = polygon[p] / w;
+        screen[o + 1] = polygon[p + 1] / w;
+        screen[o + 2] = polygon[p + 2];
+    }
+}
@@ -0,0 +1,335 @@
+package CGlab;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Szybki loader plików OBJ. Plik jest mapowany do pamięci (FileChannel.map) i dzielony na kawałki
+// zakończone pełną linią, które są parsowane równolegle prosto z bajtów - bez String na linię,
+// bez split(), bez Float.parseFloat. Obsługiwane są:
+//   v x y z [w]          - pozostałe składowe (w, kolory) są pomijane
+//   f a b c ...          - także a/t, a/t/n i a//n; wielokąty dzielone wachlarzem (a, b, c), (a, c, d), ...
+//   indeksy ujemne       - względem ostatnio wczytanego wierzchołka, jak w specyfikacji OBJ
+//   # komentarze, puste linie, \r\n i wszystkie inne polecenia (vt, vn, g, o, s, usemtl...) są pomijane
+public class ObjLoader {
+
+    private static final long MIN_CHUNK = 1 << 20;
+    private static final long MAX_CHUNK = 1 << 28;
+    private static final long STREAM_WINDOW = 1 << 26;
+
+    // Odbiorca tego, co parser znalazł w pliku. Indeksy ścian są surowe, jak w pliku (ujemne = względne),
+    // bo tylko odbiorca wie, ile wierzchołków było wcześniej.
+    interface Sink {
+        void vertex(float x, float y, float z) throws IOException;
+
+        void triangle(int a, int b, int c) throws IOException;
+    }
+
+    public static void read(String path, Model model) throws IOException {
+        Path file = Paths.get(path);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = splitIntoChunks(channel);
+            int chunkCount = bounds.length - 1;
+
+            Chunk[] chunks = new Chunk[chunkCount];
+            IOException[] error = new IOException[1];
+            IntStream.range(0, chunkCount).parallel().forEach(c -> {
+                try {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, bounds[c], bounds[c + 1] - bounds[c]);
+                    chunks[c] = parseChunk(buffer);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) throw error[0];
+
+            // numer pierwszego wierzchołka każdego kawałka w całym pliku (wierzchołek 0 jest sztuczny)
+            int[] vertexBase = new int[chunkCount + 1];
+            int[] indexBase = new int[chunkCount + 1];
+            vertexBase[0] = 1;
+            for (int c = 0; c < chunkCount; c++) {
+                vertexBase[c + 1] = vertexBase[c] + chunks[c].positions.size / 3;
+                indexBase[c + 1] = indexBase[c] + chunks[c].indices.size;
+            }
+
+            float[] positions = new float[3 * vertexBase[chunkCount]];
+            int[] indices = new int[indexBase[chunkCount]];
+            IntStream.range(0, chunkCount).parallel().forEach(c -> {
+                Chunk chunk = chunks[c];
+                System.arraycopy(chunk.positions.data, 0, positions, 3 * vertexBase[c], chunk.positions.size);
+                System.arraycopy(chunk.indices.data, 0, indices, indexBase[c], chunk.indices.size);
+                // indeksy ujemne zostały zapisane względem początku kawałka, teraz znamy już jego przesunięcie
+                for (int k = 0; k < chunk.relative.size; k++) {
+                    indices[indexBase[c] + chunk.relative.data[k]] += vertexBase[c] - 1;
+                }
+            });
+
+            int vertexCount = vertexBase[chunkCount];
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] <= 0 || indices[i] >= vertexCount) {
+                    throw new IOException(path + ": face references vertex " + indices[i]
+                                          + " but the file has " + (vertexCount - 1) + " vertices");
+                }
+            }
+            model.setGeometry(positions, vertexCount, indices, indices.length / 3);
+        }
+    }
+
+    // Parsowanie po kolei, okno po oknie (STREAM_WINDOW bajtów do końca linii), bez zbierania geometrii:
+    // wszystko od razu trafia do sink. Pamięć parsera nie zależy od rozmiaru pliku - zmapowane okna to
+    // pamięć podręczna systemu plików, nie sterta.
+    static void stream(String path, Sink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long[] bounds = splitIntoChunks(channel, STREAM_WINDOW);
+            int[] polygon = new int[16];
+            for (int w = 0; w + 1 < bounds.length; w++) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, bounds[w], bounds[w + 1] - bounds[w]);
+                polygon = parse(buffer, sink, polygon);
+            }
+        }
+    }
+
+    // Granice kawałków: każda (poza ostatnią) leży tuż za znakiem nowej linii.
+    private static long[] splitIntoChunks(FileChannel channel) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        return splitIntoChunks(channel, Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, channel.size() / (4L * parallelism) + 1)));
+    }
+
+    private static long[] splitIntoChunks(FileChannel channel, long chunkSize) throws IOException {
+        long size = channel.size();
+
+        long[] bounds = new long[(int) (size / chunkSize) + 2];
+        int count = 0;
+        bounds[count++] = 0;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = chunkSize;
+        while (pos < size) {
+            long lineEnd = -1;
+            for (long p = pos; p < size && lineEnd < 0; p += probe.capacity()) {
+                probe.clear();
+                int n = channel.read(probe, p);
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        lineEnd = p + i + 1;
+                        break;
+                    }
+                }
+            }
+            if (lineEnd < 0 || lineEnd >= size) break;
+            bounds[count++] = lineEnd;
+            pos = lineEnd + chunkSize;
+        }
+        bounds[count++] = size;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    private static Chunk parseChunk(ByteBuffer buf) throws IOException {
+        Chunk chunk = new Chunk();
+        parse(buf, chunk, new int[16]);
+        return chunk;
+    }
+
+    // Zwraca tablicę na wierzchołki wielokąta (mogła urosnąć), żeby kolejne wywołania jej nie alokowały.
+    private static int[] parse(ByteBuffer buf, Sink sink, int[] polygon) throws IOException {
+        Cursor cur = new Cursor(buf);
+        while (cur.pos < cur.end) {
+            cur.skipBlanks();
+            if (cur.pos >= cur.end) break;
+            byte c0 = buf.get(cur.pos);
+            byte c1 = cur.pos + 1 < cur.end ? buf.get(cur.pos + 1) : (byte) '\n';
+
+            if (c0 == 'v' && (c1 == ' ' || c1 == '\t')) {
+                cur.pos += 2;
+                float x = cur.parseFloat();
+                float y = cur.parseFloat();
+                float z = cur.parseFloat();
+                sink.vertex(x, y, z);
+            } else if (c0 == 'f' && (c1 == ' ' || c1 == '\t')) {
+                cur.pos += 2;
+                int n = 0;
+                while (true) {
+                    cur.skipBlanks();
+                    if (cur.atLineEnd()) break;
+                    if (n == polygon.length) polygon = Arrays.copyOf(polygon, n * 2);
+                    polygon[n++] = cur.parseInt();
+                    cur.skipToken(); // /t/n
+                }
+                if (n < 3) throw new IOException("face with fewer than 3 vertices");
+                for (int k = 1; k + 1 < n; k++) {
+                    sink.triangle(polygon[0], polygon[k], polygon[k + 1]);
+                }
+            }
+            cur.skipLine();
+        }
+        return polygon;
+    }
+
+    private static class Chunk implements Sink {
+        final FloatArray positions = new FloatArray();
+        final IntArray indices = new IntArray();
+        final IntArray relative = new IntArray(); // pozycje w indices, które trzeba jeszcze przesunąć
+
+        @Override
+        public void vertex(float x, float y, float z) {
+            positions.add(x);
+            positions.add(y);
+            positions.add(z);
+        }
+
+        @Override
+        public void triangle(int a, int b, int c) {
+            add(a);
+            add(b);
+            add(c);
+        }
+
+        // indeks ujemny: -1 to ostatni wczytany wierzchołek; na razie liczony względem początku
+        // kawałka (może wyjść <= 0), a w read() przesuwany o wierzchołki z poprzednich kawałków
+        private void add(int index) {
+            if (index < 0) {
+                relative.add(indices.size);
+                index += positions.size / 3 + 1;
+            }
+            indices.add(index);
+        }
+    }
+
+    private static class Cursor {
+        final ByteBuffer buf;
+        final int end;
+        int pos;
+
+        Cursor(ByteBuffer buf) {
+            this.buf = buf;
+            this.end = buf.limit();
+        }
+
+        void skipBlanks() {
+            while (pos < end) {
+                byte b = buf.get(pos);
+                if (b != ' ' && b != '\t') break;
+                pos++;
+            }
+        }
+
+        boolean atLineEnd() {
+            if (pos >= end) return true;
+            byte b = buf.get(pos);
+            return b == '\n' || b == '\r' || b == '#';
+        }
+
+        void skipLine() {
+            while (pos < end && buf.get(pos) != '\n') pos++;
+            pos++;
+        }
+
+        void skipToken() {
+            while (pos < end) {
+                byte b = buf.get(pos);
+                if (b == ' ' || b == '\t' || b == '\n' || b == '\r') break;
+                pos++;
+            }
+        }
+
+        // Liczba spoza int nie może się "przekręcić" (f 1 2 4294967299 dawało indeks 3): wartość zatrzymuje się
+        // na Integer.MAX_VALUE, więc indeks odpada na sprawdzeniu zakresu wierzchołków jak każdy inny zły indeks.
+        int parseInt() throws IOException {
+            skipBlanks();
+            boolean negative = false;
+            if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) negative = buf.get(pos++) == '-';
+            int start = pos;
+            int value = 0;
+            while (pos < end) {
+                int d = buf.get(pos) - '0';
+                if (d < 0 || d > 9) break;
+                value = value > (Integer.MAX_VALUE - d) / 10 ? Integer.MAX_VALUE : value * 10 + d;
+                pos++;
+            }
+            if (pos == start) throw new IOException("expected an integer at byte " + pos);
+            return negative ? -value : value;
+        }
+
+        float parseFloat() throws IOException {
+            skipBlanks();
+            int start = pos;
+            boolean negative = false;
+            if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) negative = buf.get(pos++) == '-';
+
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean any = false;
+            while (pos < end) {
+                int d = buf.get(pos) - '0';
+                if (d < 0 || d > 9) break;
+                if (digits < 18) { mantissa = mantissa * 10 + d; if (mantissa != 0) digits++; }
+                else exponent++;
+                any = true;
+                pos++;
+            }
+            if (pos < end && buf.get(pos) == '.') {
+                pos++;
+                while (pos < end) {
+                    int d = buf.get(pos) - '0';
+                    if (d < 0 || d > 9) break;
+                    if (digits < 18) { mantissa = mantissa * 10 + d; if (mantissa != 0) digits++; exponent--; }
+                    any = true;
+                    pos++;
+                }
+            }
+            if (any && pos < end && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+                pos++;
+                // obcięty wykładnik i tak daje nieskończoność albo zero, a suma nie może się przekręcić
+                exponent = (int) Math.max(-1000, Math.min(1000, (long) exponent + parseInt()));
+            }
+            if (!any) {
+                // nan, inf i inne nietypowe zapisy - rzadkie, więc oddajemy je Float.parseFloat
+                skipToken();
+                byte[] token = new byte[pos - start];
+                for (int i = 0; i < token.length; i++) token[i] = buf.get(start + i);
+                try {
+                    return Float.parseFloat(new String(token, StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    throw new IOException("expected a number at byte " + start);
+                }
+            }
+            double value = mantissa;
+            if (exponent < 0) value = exponent >= -22 ? value / POW10[-exponent] : value * Math.pow(10, exponent);
+            else if (exponent > 0) value = exponent <= 22 ? value * POW10[exponent] : value * Math.pow(10, exponent);
+            return (float) (negative ? -value : value);
+        }
+    }
+
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+    }
+
+    private static class FloatArray {
+        float[] data = new float[3 * 1024];
+        int size;
+
+        void add(float v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+    }
+
+    private static class IntArray {
+        int[] data = new int[16];
+        int size;
+
+        void add(int v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package CGlab;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Renderowanie pliku OBJ bez wczytywania go w całości (skany z większą liczbą ścian, niż mieści sterta).
+// Parser (ObjLoader.stream) działa w osobnym wątku i oddaje ściany partiami po batchFaces przez kolejkę
+// o pojemności queueDepth; renderer rysuje partię, gdy parser czyta następne. Pełna kolejka zatrzymuje
+// parser (backpressure), a partie krążą między wątkami w stałej puli (queueDepth + 2), więc pamięć
+// poza pozycjami wierzchołków nie zależy od liczby ścian.
+//
+// W pamięci zostają tylko pozycje wierzchołków (12 B na wierzchołek, bo ściana może odwołać się do
+// dowolnego wcześniejszego). Partia to osobna mała geometria: jej wierzchołki są kopiowane z pozycji
+// globalnych i numerowane od nowa, więc renderer przetwarza ją jak zwykły model (bryła widzenia i Hi-Z
+// na partię, transformacja tylko wierzchołków partii). Wierzchołek używany przez kilka partii jest
+// transformowany kilka razy - przy ścianach w kolejności z pliku zwykle niewiele.
+//
+// Ograniczenia: ściana może odwoływać się tylko do wierzchołków wcześniej w pliku (tak zapisują eksportery),
+// LOD nie jest używany (partie nie mają poziomów), a bufor widoczności nie jest obsługiwany, bo trzyma
+// geometrię do resolve(), a partie są używane ponownie.
+public final class ObjStream {
+
+    public static final int DEFAULT_BATCH_FACES = 16384;
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+    private ObjStream() {
+    }
+
+    public static final class Stats {
+        public long vertices, faces, batches;
+        public long residentBytes;       // pozycje wierzchołków
+        public long batchBytes;          // pula partii
+        public long producerWaitNanos;   // parser czekał na wolną partię (renderer nie nadążał)
+        public long consumerWaitNanos;   // renderer czekał na partię (parser nie nadążał)
+        public long nanos;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d vertices, %d faces in %d batches; resident %.1f MB positions + %.1f MB batches; "
+                    + "parser waited %.1f ms, renderer waited %.1f ms; %.1f ms total",
+                    vertices, faces, batches, residentBytes / 1e6, batchBytes / 1e6,
+                    producerWaitNanos / 1e6, consumerWaitNanos / 1e6, nanos / 1e6);
+        }
+    }
+
+    public static Stats render(String path, FlatShadingRenderer renderer) throws IOException {
+        return render(path, renderer, DEFAULT_BATCH_FACES, DEFAULT_QUEUE_DEPTH);
+    }
+
+    public static Stats render(String path, FlatShadingRenderer renderer, int batchFaces, int queueDepth)
+            throws IOException {
+        if (renderer.visibility != null) {
+            throw new IllegalStateException("Streaming render does not support the visibility buffer");
+        }
+        long start = System.nanoTime();
+        Stats stats = new Stats();
+        BlockingQueue<Batch> full = new ArrayBlockingQueue<>(queueDepth + 1);  // + znacznik końca
+        BlockingQueue<Batch> free = new ArrayBlockingQueue<>(queueDepth + 2);
+        for (int i = 0; i < queueDepth + 2; i++) free.add(new Batch(batchFaces));
+        stats.batchBytes = (queueDepth + 2L) * Batch.bytes(batchFaces);
+
+        Producer producer = new Producer(path, full, free, batchFaces);
+        Thread thread = new Thread(producer, "ObjStream " + path);
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            while (true) {
+                long wait = System.nanoTime();
+                Batch batch = full.take();
+                stats.consumerWaitNanos += System.nanoTime() - wait;
+                if (batch == Batch.END) break;
+                renderer.render(batch, null);
+                stats.batches++;
+                free.put(batch);
+            }
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while streaming " + path, e);
+        } finally {
+            // wyjątek renderera albo przerwanie: parser nie może zostać zablokowany na pełnej kolejce
+            thread.interrupt();
+        }
+        Throwable error = producer.error;
+        if (error instanceof IOException) throw (IOException) error;
+        if (error != null) throw new IOException("Streaming of " + path + " failed", error);
+
+        stats.vertices = producer.vertexCount - 1;
+        stats.faces = producer.faceCount;
+        stats.residentBytes = 4L * producer.positions.length;
+        stats.producerWaitNanos = producer.waitNanos;
+        stats.nanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    // Wątek parsera: wierzchołki do pozycji globalnych, trójkąty do bieżącej partii z numeracją lokalną
+    // (mała tablica haszująca globalny -> lokalny, czyszczona co partię).
+    private static final class Producer implements Runnable, ObjLoader.Sink {
+        final String path;
+        final BlockingQueue<Batch> full, free;
+        final int batchFaces;
+
+        float[] positions = new float[3 * 1024];
+        int vertexCount = 1;   // wierzchołek 0 sztuczny
+        long faceCount;
+        long waitNanos;
+        volatile Throwable error;   // cokolwiek zatrzymało parser (też OutOfMemoryError), rzucane w render()
+
+        Batch batch;
+        final int[] keys, values;
+
+        Producer(String path, BlockingQueue<Batch> full, BlockingQueue<Batch> free, int batchFaces) {
+            this.path = path;
+            this.full = full;
+            this.free = free;
+            this.batchFaces = batchFaces;
+            int size = Integer.highestOneBit(6 * batchFaces) << 1;
+            this.keys = new int[size];
+            this.values = new int[size];
+        }
+
+        // END trafia do kolejki zawsze, także po błędzie, bo inaczej renderer czekałby w take() bez końca
+        @Override
+        public void run() {
+            long start = RenderMetrics.start();
+            try {
+                batch = take();
+                ObjLoader.stream(path, this);
+                if (batch.faceCount > 0) flush();
+                RenderMetrics.end(RenderMetrics.Stage.PARSE, start, faceCount);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();  // renderer przerwał strumień, nikt już nie czeka na END
+            } catch (UncheckedIOException e) {
+                error = e.getCause();
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                if (!Thread.currentThread().isInterrupted()) end();
+            }
+        }
+
+        private void end() {
+            // kolejka ma miejsce na END ponad queueDepth partii, ale wszystkie pełne partie mogą już w niej być
+            try {
+                full.put(Batch.END);
+            } catch (InterruptedException e) {
+                // renderer już nie czeka
+            }
+        }
+
+        @Override
+        public void vertex(float x, float y, float z) {
+            if (3 * vertexCount + 3 > positions.length) positions = Arrays.copyOf(positions, 2 * positions.length);
+            positions[3 * vertexCount] = x;
+            positions[3 * vertexCount + 1] = y;
+            positions[3 * vertexCount + 2] = z;
+            vertexCount++;
+        }
+
+        @Override
+        public void triangle(int a, int b, int c) throws IOException {
+            Batch batch = this.batch;
+            int o = 3 * batch.faceCount;
+            batch.indices[o] = local(resolve(a));
+            batch.indices[o + 1] = local(resolve(b));
+            batch.indices[o + 2] = local(resolve(c));
+            batch.faceCount++;
+            faceCount++;
+            if (batch.faceCount == batchFaces) {
+                try {
+                    flush();
+                    this.batch = take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Streaming of " + path + " was cancelled", e);
+                }
+            }
+        }
+
+        private int resolve(int index) throws IOException {
+            int global = index < 0 ? vertexCount + index : index;
+            if (global <= 0 || global >= vertexCount) {
+                throw new IOException(path + ": face references vertex " + index + " but only " + (vertexCount - 1)
+                                      + " vertices were read so far (streaming needs vertices before faces)");
+            }
+            return global;
+        }
+
+        private int local(int global) {
+            int mask = keys.length - 1;
+            int slot = (global * 0x9e3779b9) >>> 1 & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == global) return values[slot];
+                slot = (slot + 1) & mask;
+            }
+            int local = batch.vertexCount++;
+            keys[slot] = global;
+            values[slot] = local;
+            System.arraycopy(positions, 3 * global, batch.positions, 3 * local, 3);
+            return local;
+        }
+
+        private void flush() throws InterruptedException {
+            batch.computeBounds();
+            Arrays.fill(keys, 0);
+            long wait = System.nanoTime();
+            full.put(batch);
+            waitNanos += System.nanoTime() - wait;
+        }
+
+        private Batch take() throws InterruptedException {
+            long wait = System.nanoTime();
+            Batch batch = free.take();
+            waitNanos += System.nanoTime() - wait;
+            batch.vertexCount = 1;
+            batch.faceCount = 0;
+            return batch;
+        }
+    }
+
+    // Partia ścian jako samodzielna geometria z lokalną numeracją wierzchołków.
+    private static final class Batch implements Geometry {
+        static final Batch END = new Batch(0);
+
+        final float[] positions;
+        final int[] indices;
+        final float[] bounds = new float[6];
+        final LodChain lods = LodChain.single(this);
+        int vertexCount = 1;
+        int faceCount;
+
+        Batch(int faces) {
+            positions = new float[3 * (3 * faces + 1)];
+            indices = new int[3 * faces];
+        }
+
+        static long bytes(int faces) {
+            return 4L * 3 * (3 * faces + 1) + 4L * 3 * faces;
+        }
+
+        void computeBounds() {
+            float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+            for (int i = 3, n = 3 * vertexCount; i < n; i += 3) {
+                minX = Math.min(minX, positions[i]);
+                minY = Math.min(minY, positions[i + 1]);
+                minZ = Math.min(minZ, positions[i + 2]);
+                maxX = Math.max(maxX, positions[i]);
+                maxY = Math.max(maxY, positions[i + 1]);
+                maxZ = Math.max(maxZ, positions[i + 2]);
+            }
+            bounds[0] = minX; bounds[1] = minY; bounds[2] = minZ;
+            bounds[3] = maxX; bounds[4] = maxY; bounds[5] = maxZ;
+        }
+
+        @Override
+        public int getVertexCount() {
+            return vertexCount;
+        }
+
+        @Override
+        public int getFaceCount() {
+            return faceCount;
+        }
+
+        @Override
+        public float[] getPositions() {
+            return positions;
+        }
+
+        @Override
+        public int[] getIndices() {
+            return indices;
+        }
+
+        @Override
+        public float[] getBounds() {
+            return bounds;
+        }
+
+        @Override
+        public LodChain getLods() {
+            return lods;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package CGlab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Koder PNG wiersz po wierszu: obraz nie musi istnieć w całości, wystarczy podawać kolejne wiersze od góry
+// (writeRow), np. prosto z frameBuffer w odwrotnej kolejności wierszy zamiast kopii odwróconej przez
+// verticalFlip, albo pasami z StripRenderer.
+//
+// Format jak ImageIO dla TYPE_INT_ARGB: 8 bitów na kanał, RGBA. Filtr wybierany dla każdego wiersza
+// osobno (z pięciu filtrów PNG ten o najmniejszej sumie modułów bajtów, jak w libpng).
+//
+// Kompresja jak w pigz: przefiltrowane wiersze są zbierane w bloki po ok. BLOCK_BYTES, a każdy blok jest
+// kompresowany osobnym Deflater w puli wątków. Blok kończy się SYNC_FLUSH (wyrównanie do bajtu, bez
+// BFINAL), tylko ostatni jest zamykany finish(), więc sklejone bloki to jeden poprawny strumień deflate;
+// nagłówek zlib i sumę Adler-32 (łączoną z sum bloków) dopisujemy sami. Słownikiem bloku jest ostatnie
+// 32 KB poprzedniego, więc kompresja jest prawie taka jak jednym strumieniem. Bloki są zapisywane
+// w kolejności, a w toku jest ich najwyżej 2 na wątek - pamięć nie zależy od wysokości obrazu.
+public final class PngWriter implements Closeable {
+
+    static final int BLOCK_BYTES = 1 << 17;
+    private static final int WINDOW = 1 << 15;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+
+    // wątki tylko do kompresji bloków; daemon, bo czekający na nie zapis i tak trzyma JVM przy życiu
+    private static final class Pool {
+        static final int THREADS = Runtime.getRuntime().availableProcessors();
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(THREADS, task -> {
+            Thread thread = new Thread(task, "PngWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final OutputStream out;
+    private final int width, height;
+    private final boolean parallel;
+    private final CRC32 crc = new CRC32();
+
+    private byte[] row, previous;      // bajty RGBA bieżącego i poprzedniego wiersza
+    private int rows;
+    private boolean closed;
+
+    private final int blockRows;
+    private byte[] block;              // przefiltrowane wiersze bieżącego bloku
+    private int blockFill;
+    private byte[] dictionary;         // poprzedni blok
+    private int dictionaryLength;
+    private final ArrayDeque<Future<Compressed>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private long adler = 1;
+
+    public PngWriter(OutputStream out, int width, int height) throws IOException {
+        this(out, width, height, true);
+    }
+
+    // parallel = false: bloki kompresowane w wątku wywołującym (ten sam strumień bajtów co równolegle)
+    public PngWriter(OutputStream out, int width, int height, boolean parallel) throws IOException {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Empty image " + width + "x" + height);
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.parallel = parallel;
+        this.maxPending = parallel ? 2 * Pool.THREADS : 0;
+        int stride = 4 * width;
+        row = new byte[stride];
+        previous = new byte[stride];  // wiersz nad pierwszym to zera
+        blockRows = Math.max(1, BLOCK_BYTES / (1 + stride));
+        block = new byte[blockRows * (1 + stride)];
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;  // bitów na kanał
+        header[9] = 6;  // RGBA
+        writeChunk("IHDR", header, header.length);
+        writeChunk("IDAT", ZLIB_HEADER, ZLIB_HEADER.length);
+    }
+
+    // Kolejny wiersz (od góry obrazu): width pikseli ARGB z argb[offset..].
+    public void writeRow(int[] argb, int offset) throws IOException {
+        if (rows == height) throw new IllegalStateException("All " + height + " rows were already written");
+        byte[] row = this.row;
+        for (int x = 0, o = 0; x < width; x++, o += 4) {
+            int c = argb[offset + x];
+            row[o] = (byte) (c >> 16);
+            row[o + 1] = (byte) (c >> 8);
+            row[o + 2] = (byte) c;
+            row[o + 3] = (byte) (c >>> 24);
+        }
+        blockFill = filter(row, previous, block, blockFill);
+        this.row = previous;
+        this.previous = row;
+        rows++;
+        if (rows == height || blockFill == block.length) submit();
+    }
+
+    // Kończy strumień (suma Adler-32, IEND) i zamyka out. Błąd, jeśli nie podano wszystkich wierszy.
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (rows != height) throw new IOException("PNG has " + height + " rows, but " + rows + " were written");
+            while (!pending.isEmpty()) writeNext();
+            byte[] trailer = new byte[4];
+            putInt(trailer, 0, (int) adler);
+            writeChunk("IDAT", trailer, 4);
+            writeChunk("IEND", trailer, 0);
+        } finally {
+            for (Future<Compressed> future : pending) future.cancel(true);
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        byte[] data = block, dict = dictionary;
+        int length = blockFill, dictLength = dictionaryLength;
+        boolean last = rows == height;
+        Callable<Compressed> task = () -> compress(data, length, dict, dictLength, last);
+        if (parallel) {
+            pending.add(Pool.INSTANCE.submit(task));
+        } else {
+            try {
+                pending.add(CompletableFuture.completedFuture(task.call()));
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        dictionary = data;
+        dictionaryLength = length;
+        block = last ? null : new byte[block.length];
+        blockFill = 0;
+        while (pending.size() > maxPending) writeNext();
+    }
+
+    private void writeNext() throws IOException {
+        Compressed compressed;
+        try {
+            compressed = pending.peek().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing PNG");
+        } catch (ExecutionException e) {
+            throw new IOException("PNG compression failed", e.getCause());
+        }
+        pending.poll();
+        writeChunk("IDAT", compressed.data, compressed.length);
+        adler = combineAdler(adler, compressed.adler, compressed.inputLength);
+    }
+
+    private static final class Compressed {
+        final byte[] data;
+        final int length;
+        final long adler;
+        final int inputLength;
+
+        Compressed(byte[] data, int length, long adler, int inputLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.inputLength = inputLength;
+        }
+    }
+
+    private static Compressed compress(byte[] data, int length, byte[] dict, int dictLength, boolean last) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dict != null) {
+                int size = Math.min(WINDOW, dictLength);
+                deflater.setDictionary(dict, dictLength - size, size);
+            }
+            deflater.setInput(data, 0, length);
+            if (last) deflater.finish();
+            byte[] out = new byte[length / 4 + 64];
+            int n = 0;
+            while (true) {
+                if (n == out.length) out = Arrays.copyOf(out, 2 * out.length);
+                int space = out.length - n;
+                int produced = last ? deflater.deflate(out, n, space)
+                                    : deflater.deflate(out, n, space, Deflater.SYNC_FLUSH);
+                n += produced;
+                // SYNC_FLUSH skończony, gdy nie zapełnił bufora; finish - gdy finished()
+                if (last ? deflater.finished() : produced < space) break;
+            }
+            Adler32 adler = new Adler32();
+            adler.update(data, 0, length);
+            return new Compressed(out, n, adler.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Adler-32 sklejenia dwóch ciągów z sum każdego z nich (adler32_combine z zlib).
+    static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = rem * sum1 % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    // Filtr o najmniejszej sumie |bajt| (bajty jako liczby ze znakiem) z pięciu; bajt filtra i przefiltrowany
+    // wiersz trafiają do out[offset..]. Zwraca offset za wierszem.
+    private static int filter(byte[] row, byte[] up, byte[] out, int offset) {
+        long sNone = 0, sSub = 0, sUp = 0, sAvg = 0, sPaeth = 0;
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= 4 ? row[i - 4] & 0xff : 0;
+            int b = up[i] & 0xff;
+            int c = i >= 4 ? up[i - 4] & 0xff : 0;
+            sNone += Math.abs((byte) x);
+            sSub += Math.abs((byte) (x - a));
+            sUp += Math.abs((byte) (x - b));
+            sAvg += Math.abs((byte) (x - ((a + b) >> 1)));
+            sPaeth += Math.abs((byte) (x - paeth(a, b, c)));
+        }
+        int type = 0;
+        long min = sNone;
+        if (sSub < min) { type = 1; min = sSub; }
+        if (sUp < min) { type = 2; min = sUp; }
+        if (sAvg < min) { type = 3; min = sAvg; }
+        if (sPaeth < min) type = 4;
+
+        out[offset++] = (byte) type;
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= 4 ? row[i - 4] & 0xff : 0;
+            int b = up[i] & 0xff;
+            int c = i >= 4 ? up[i - 4] & 0xff : 0;
+            int predictor = type == 0 ? 0 : type == 1 ? a : type == 2 ? b : type == 3 ? (a + b) >> 1 : paeth(a, b, c);
+            out[offset++] = (byte) (x - predictor);
+        }
+        return offset;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] head = new byte[8];
+        putInt(head, 0, length);
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(name, 0, head, 4, 4);
+        crc.reset();
+        crc.update(name);
+        crc.update(data, 0, length);
+        byte[] tail = new byte[4];
+        putInt(tail, 0, (int) crc.getValue());
+        out.write(head);
+        out.write(data, 0, length);
+        out.write(tail);
+    }
+
+    private static void putInt(byte[] b, int o, int v) {
+        b[o] = (byte) (v >>> 24);
+        b[o + 1] = (byte) (v >>> 16);
+        b[o + 2] = (byte) (v >>> 8);
+        b[o + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,454 @@
+package CGlab;
+
+import java.util.Arrays;
+
+// Zwarta, niezmienna postać siatki do trzymania w pamięci wielu dużych modeli naraz.
+//
+// Pozycje: 16 bitów na współrzędną zamiast 32, jako ułamek prostopadłościanu otaczającego siatki
+// (65535 kroków na osi, błąd najwyżej pół kroku, czyli 1/131070 rozmiaru modelu - dużo poniżej piksela).
+// Indeksy: kod topologiczny w blokach po BLOCK_FACES ścian. Koder pamięta ostatnie krawędzie (EDGE_FIFO)
+// i wierzchołki (VERTEX_FIFO); ściana, która ma wspólną krawędź z niedawną ścianą (po MeshOptimizer prawie
+// każda), to jeden bajt: numer krawędzi w kolejce, jej miejsce w ścianie (kolejność wierzchołków ściany
+// zostaje jak w źródle) i rodzaj trzeciego wierzchołka - "następny nowy" (1 + największy dotąd indeks),
+// wierzchołek z kolejki (+1 bajt) albo dowolny (+varint różnicy względem ostatniego takiego, po zigzag).
+// Ściana bez wspólnej krawędzi to bajt znacznika i trzy varinty. Wychodzi ok. 1.5 bajta na ścianę zamiast
+// dwunastu. Bloki zaczynają z pustymi kolejkami i zapisanym "następnym nowym", więc dekodują się
+// niezależnie (równolegle).
+// Normalne: renderer liczy normalną ściany z jej wierzchołków, a po kwantyzacji małej ściany (gęsta siatka
+// w dużym prostopadłościanie) może ona odjechać, aż do zera przy ścianie zgniecionej w punkt. Dlatego przy
+// kodowaniu normalna każdej ściany jest liczona też z pozycji float, a ściany, którym kwantyzacja zmieniła ją
+// o więcej niż jeden odcień (1/255), dostają zapisaną normalną (oct 12+12 bitów i długość 8 bitów;
+// FlatShadingRenderer bierze wtedy ją). Na typowej siatce takich ścian jest mało albo wcale.
+//
+// Renderer nigdy nie rozpakowuje całej siatki: VertexBuffer.transform dekoduje pozycje partiami po
+// BATCH wierzchołków tuż przed ich transformacją, a FlatShadingRenderer dekoduje indeksy oknami po kilka
+// bloków do jednego bufora roboczego i raz na okno pozycje wierzchołków, których okno używa. W pamięci
+// na stałe zostaje postać zwarta, a pamięć robocza nie zależy od wielkości modelu.
+//
+// getPositions() i getIndices() (dla narzędzi: upraszczanie, optymalizacja) zwracają za każdym razem
+// nowe, rozpakowane tablice. Poziomy LOD są budowane z rozpakowanej geometrii i są zwykłymi Mesh.
+public final class QuantizedMesh implements Geometry {
+
+    static final int BLOCK_FACES = 1024;
+    private static final int EDGE_FIFO = 16;
+    private static final int VERTEX_FIFO = 16;
+    // bajt ściany: krawędź z kolejki << 4 | miejsce krawędzi w ścianie << 2 | rodzaj trzeciego wierzchołka
+    private static final int NEXT = 0, CACHED = 1, EXPLICIT = 2;
+    private static final int NO_EDGE = 3 << 2;   // miejsce 3: ściana bez wspólnej krawędzi, dalej 3 varinty
+    private static final float NORMAL_TOLERANCE = 1 / 255f;
+
+    private final int vertexCount;
+    private final int faceCount;
+    private final float[] bounds;
+    private final float[] offset = new float[3];
+    private final float[] step = new float[3];
+    private final short[] positions;   // bez znaku: & 0xffff
+    private final byte[] indexData;
+    private final int[] blockOffset;   // początek bloku w indexData
+    private final int[] blockNext;     // "następny nowy" wierzchołek na początku bloku
+    private final int[] normalFaces;   // rosnąco ściany z zapisaną normalną
+    private final int[] normals;       // ich normalne: oct x << 20 | oct y << 8 | długość
+    private volatile LodChain lods;
+
+    private QuantizedMesh(Geometry source) {
+        vertexCount = source.getVertexCount();
+        faceCount = source.getFaceCount();
+        bounds = source.getBounds().clone();
+        float[] p = source.getPositions();
+        int[] indices = source.getIndices();
+
+        positions = new short[3 * vertexCount];
+        for (int k = 0; k < 3; k++) {
+            float min = bounds[k], range = bounds[k + 3] - bounds[k];
+            offset[k] = source.isEmpty() ? 0 : min;
+            step[k] = range > 0 ? range / 65535 : 0;
+            if (!(range > 0)) continue;
+            for (int v = 1; v < vertexCount; v++) {
+                int q = Math.round((p[3 * v + k] - min) / step[k]);
+                positions[3 * v + k] = (short) Math.max(0, Math.min(65535, q));
+            }
+        }
+
+        int blocks = (faceCount + BLOCK_FACES - 1) / BLOCK_FACES;
+        blockOffset = new int[blocks + 1];
+        blockNext = new int[blocks];
+        ByteSink out = new ByteSink(2 * faceCount + 16);
+        int next = 1;
+        for (int b = 0; b < blocks; b++) {
+            blockOffset[b] = out.size;
+            blockNext[b] = next;
+            next = encodeBlock(indices, faceCount, b, next, out);
+        }
+        blockOffset[blocks] = out.size;
+        indexData = Arrays.copyOf(out.data, out.size);
+
+        // normalne ścian, którym kwantyzacja zmieniła normalną o więcej niż NORMAL_TOLERANCE
+        float[] q = new float[3 * vertexCount];
+        decodePositions(q, 0, vertexCount);
+        Vec3f exact = new Vec3f(), quantized = new Vec3f(), ab = new Vec3f(), ac = new Vec3f();
+        int[] faces = new int[16], packed = new int[16];
+        int count = 0;
+        for (int f = 0; f < faceCount; f++) {
+            int a = indices[3 * f], b = indices[3 * f + 1], c = indices[3 * f + 2];
+            faceNormal(p, a, b, c, ab, ac, exact);
+            if (!(Float.isFinite(exact.x) && Float.isFinite(exact.y) && Float.isFinite(exact.z))) continue;
+            faceNormal(q, a, b, c, ab, ac, quantized);
+            float dx = quantized.x - exact.x, dy = quantized.y - exact.y, dz = quantized.z - exact.z;
+            if (dx * dx + dy * dy + dz * dz <= NORMAL_TOLERANCE * NORMAL_TOLERANCE) continue;
+            if (count == faces.length) {
+                faces = Arrays.copyOf(faces, 2 * count);
+                packed = Arrays.copyOf(packed, 2 * count);
+            }
+            faces[count] = f;
+            packed[count++] = encodeNormal(exact);
+        }
+        normalFaces = Arrays.copyOf(faces, count);
+        normals = Arrays.copyOf(packed, count);
+    }
+
+    // Normalna ściany tak, jak liczy ją FlatShadingRenderer.faceGeometry: iloczyn znormalizowanych krawędzi
+    // AB i AC (długość to sinus kąta przy A).
+    private static void faceNormal(float[] p, int a, int b, int c, Vec3f ab, Vec3f ac, Vec3f out) {
+        ab.set(p[3 * b] - p[3 * a], p[3 * b + 1] - p[3 * a + 1], p[3 * b + 2] - p[3 * a + 2]);
+        ac.set(p[3 * c] - p[3 * a], p[3 * c + 1] - p[3 * a + 1], p[3 * c + 2] - p[3 * a + 2]);
+        ab.normalize();
+        ac.normalize();
+        ab.crossInto(ac, out);
+    }
+
+    // Kierunek jako oct (ośmiościan rozłożony na kwadrat, 12 bitów na oś), długość (<= 1) na 8 bitach.
+    private static int encodeNormal(Vec3f n) {
+        float length = (float) Math.sqrt(n.x * n.x + n.y * n.y + n.z * n.z);
+        float sum = Math.abs(n.x) + Math.abs(n.y) + Math.abs(n.z);
+        float u = sum > 0 ? n.x / sum : 0, v = sum > 0 ? n.y / sum : 0;
+        if (n.z < 0) {
+            float pu = u;
+            u = (1 - Math.abs(v)) * (pu >= 0 ? 1 : -1);
+            v = (1 - Math.abs(pu)) * (v >= 0 ? 1 : -1);
+        }
+        int ou = Math.round((u * 0.5f + 0.5f) * 4095), ov = Math.round((v * 0.5f + 0.5f) * 4095);
+        int l = Math.max(0, Math.min(255, Math.round(length * 255)));
+        return ou << 20 | ov << 8 | l;
+    }
+
+    // Indeksy ścian bloku b do out; zwraca "następny nowy" wierzchołek po bloku. Kolejki są pierścieniami:
+    // miejsce s w kolejce (0 = najnowsze) to element (head - 1 - s) % rozmiar.
+    private static int encodeBlock(int[] indices, int faceCount, int b, int next, ByteSink out) {
+        int[] edges = new int[2 * EDGE_FIFO], vertices = new int[VERTEX_FIFO];
+        Arrays.fill(edges, -1);
+        Arrays.fill(vertices, -1);
+        int edgeHead = 0, vertexHead = 0, last = next - 1;
+        int[] t = new int[3];
+        for (int f = b * BLOCK_FACES, end = Math.min(faceCount, (b + 1) * BLOCK_FACES); f < end; f++) {
+            t[0] = indices[3 * f];
+            t[1] = indices[3 * f + 1];
+            t[2] = indices[3 * f + 2];
+
+            // wspólna krawędź: krawędź ściany (x, y) to odwrócona krawędź (y, x) jednej z poprzednich ścian
+            int slot = -1, position = 0;
+            for (int k = 0; k < 3 && slot < 0; k++) {
+                int x = t[k], y = t[(k + 1) % 3];
+                for (int s = 0; s < EDGE_FIFO; s++) {
+                    int e = 2 * ((edgeHead - 1 - s) & (EDGE_FIFO - 1));
+                    if (edges[e] == y && edges[e + 1] == x) {
+                        slot = s;
+                        position = k;
+                        break;
+                    }
+                }
+            }
+
+            if (slot >= 0) {
+                int x = t[position], y = t[(position + 1) % 3], z = t[(position + 2) % 3];
+                int cached = findVertex(vertices, vertexHead, z);
+                int kind = z == next ? NEXT : cached >= 0 ? CACHED : EXPLICIT;
+                out.write(slot << 4 | position << 2 | kind);
+                if (kind == CACHED) {
+                    out.write(cached);
+                } else {
+                    if (kind == EXPLICIT) {
+                        out.writeVarint(zigzag(z - last - 1));
+                        last = z;
+                    }
+                    vertices[vertexHead++ & (VERTEX_FIFO - 1)] = z;
+                }
+                if (z >= next) next = z + 1;
+                edgeHead = pushEdge(edges, edgeHead, y, z);
+                edgeHead = pushEdge(edges, edgeHead, z, x);
+            } else {
+                out.write(NO_EDGE);
+                for (int k = 0; k < 3; k++) {
+                    int v = t[k];
+                    int cached = findVertex(vertices, vertexHead, v);
+                    if (v == next) {
+                        out.writeVarint(0);
+                    } else if (cached >= 0) {
+                        out.writeVarint(1 + cached);
+                    } else {
+                        out.writeVarint(1 + VERTEX_FIFO + zigzag(v - last - 1));
+                        last = v;
+                    }
+                    if (cached < 0) vertices[vertexHead++ & (VERTEX_FIFO - 1)] = v;
+                    if (v >= next) next = v + 1;
+                }
+                edgeHead = pushEdge(edges, edgeHead, t[0], t[1]);
+                edgeHead = pushEdge(edges, edgeHead, t[1], t[2]);
+                edgeHead = pushEdge(edges, edgeHead, t[2], t[0]);
+            }
+        }
+        return next;
+    }
+
+    private static int findVertex(int[] vertices, int head, int v) {
+        for (int s = 0; s < VERTEX_FIFO; s++) {
+            if (vertices[(head - 1 - s) & (VERTEX_FIFO - 1)] == v) return s;
+        }
+        return -1;
+    }
+
+    private static int pushEdge(int[] edges, int head, int a, int b) {
+        int e = 2 * (head & (EDGE_FIFO - 1));
+        edges[e] = a;
+        edges[e + 1] = b;
+        return head + 1;
+    }
+
+    private static int zigzag(int d) {
+        return (d << 1) ^ (d >> 31);
+    }
+
+    // rosnący bufor bajtów kodera
+    private static final class ByteSink {
+        byte[] data;
+        int size;
+
+        ByteSink(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void write(int value) {
+            if (size == data.length) data = Arrays.copyOf(data, 2 * data.length);
+            data[size++] = (byte) value;
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write(value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+    }
+
+    // Zwarta kopia geometrii (Model, Mesh). Najlepiej po MeshOptimizer - indeksy kodują się wtedy najkrócej.
+    public static QuantizedMesh of(Geometry geometry) {
+        return new QuantizedMesh(geometry);
+    }
+
+    @Override
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    @Override
+    public int getFaceCount() {
+        return faceCount;
+    }
+
+    @Override
+    public float[] getBounds() {
+        return bounds;
+    }
+
+    // nowa, rozpakowana tablica przy każdym wywołaniu
+    @Override
+    public float[] getPositions() {
+        float[] out = new float[3 * vertexCount];
+        decodePositions(out, 0, vertexCount);
+        return out;
+    }
+
+    // nowa, rozpakowana tablica przy każdym wywołaniu
+    @Override
+    public int[] getIndices() {
+        int[] out = new int[3 * faceCount];
+        for (int b = 0; b < getBlockCount(); b++) decodeBlock(b, out, 3 * b * BLOCK_FACES);
+        return out;
+    }
+
+    @Override
+    public LodChain getLods() {
+        LodChain chain = lods;
+        if (chain == null) {
+            synchronized (this) {
+                chain = lods;
+                if (chain == null) lods = chain = LodChain.build(this);
+            }
+        }
+        return chain;
+    }
+
+    // Rozpakowana kopia jako Model (np. dla bufora widoczności, który trzyma geometrię do resolve()).
+    public Model decode() {
+        Model model = new Model();
+        model.setGeometry(getPositions(), vertexCount, getIndices(), faceCount);
+        return model;
+    }
+
+    // pamięć zajmowana przez zwartą geometrię
+    public long getSizeInBytes() {
+        return 2L * positions.length + indexData.length + 4L * blockOffset.length + 4L * blockNext.length
+               + 4L * normalFaces.length + 4L * normals.length;
+    }
+
+    // tyle samo geometrii jako float/int (jak Mesh.getSizeInBytes)
+    public long getUncompressedSizeInBytes() {
+        return 4L * 3 * vertexCount + 4L * 3 * faceCount;
+    }
+
+    // największy błąd pozycji na osi k (pół kroku kwantyzacji)
+    public float getMaxError(int axis) {
+        return step[axis] / 2;
+    }
+
+    int getBlockCount() {
+        return blockNext.length;
+    }
+
+    // liczba ścian z zapisaną normalną
+    public int getStoredNormalCount() {
+        return normalFaces.length;
+    }
+
+    boolean hasStoredNormals() {
+        return normalFaces.length > 0;
+    }
+
+    // Zapisana normalna ściany face (w układzie modelu, długości jak z faceGeometry) do out; false, jeśli
+    // ściana jej nie ma i normalną liczy się z wierzchołków.
+    boolean getStoredNormal(int face, Vec3f out) {
+        int k = Arrays.binarySearch(normalFaces, face);
+        if (k < 0) return false;
+        int n = normals[k];
+        float u = (n >>> 20) / 4095f * 2 - 1, v = (n >>> 8 & 0xfff) / 4095f * 2 - 1;
+        float w = 1 - Math.abs(u) - Math.abs(v);
+        if (w < 0) {
+            float pu = u;
+            u = (1 - Math.abs(v)) * (pu >= 0 ? 1 : -1);
+            v = (1 - Math.abs(pu)) * (v >= 0 ? 1 : -1);
+        }
+        float scale = (n & 0xff) / 255f / (float) Math.sqrt(u * u + v * v + w * w);
+        out.set(u * scale, v * scale, w * scale);
+        return true;
+    }
+
+    // Pozycje wierzchołków [from, to) do out[0 ..] (wierzchołek from pod out[0]); sztuczny wierzchołek 0 to zera.
+    // Ten sam wzór co getPosition, więc rozpakowana kopia daje ten sam obraz co renderowanie zwartej siatki.
+    void decodePositions(float[] out, int from, int to) {
+        float ox = offset[0], oy = offset[1], oz = offset[2];
+        float sx = step[0], sy = step[1], sz = step[2];
+        int o = 0;
+        if (from == 0) {
+            out[0] = out[1] = out[2] = 0;
+            from = 1;
+            o = 3;
+        }
+        short[] q = positions;
+        for (int i = 3 * from, end = 3 * to; i < end; i += 3, o += 3) {
+            out[o] = ox + sx * (q[i] & 0xffff);
+            out[o + 1] = oy + sy * (q[i + 1] & 0xffff);
+            out[o + 2] = oz + sz * (q[i + 2] & 0xffff);
+        }
+    }
+
+    // Pozycja jednego wierzchołka (v > 0) do out.
+    void getPosition(int v, Vec3f out) {
+        out.set(offset[0] + step[0] * (positions[3 * v] & 0xffff),
+                offset[1] + step[1] * (positions[3 * v + 1] & 0xffff),
+                offset[2] + step[2] * (positions[3 * v + 2] & 0xffff));
+    }
+
+    // Indeksy ścian bloku b do out[offset ..]; odwrotność encodeBlock.
+    void decodeBlock(int b, int[] out, int offset) {
+        byte[] data = indexData;
+        int[] edges = new int[2 * EDGE_FIFO], vertices = new int[VERTEX_FIFO];
+        int edgeHead = 0, vertexHead = 0;
+        int pos = blockOffset[b], next = blockNext[b], last = next - 1;
+        int count = 3 * (Math.min(faceCount, (b + 1) * BLOCK_FACES) - b * BLOCK_FACES);
+        for (int i = offset, end = offset + count; i < end; i += 3) {
+            int code = data[pos++] & 0xff;
+            if (code == NO_EDGE) {
+                for (int k = 0; k < 3; k++) {
+                    int value = 0, shift = 0, x;
+                    do {
+                        x = data[pos++];
+                        value |= (x & 0x7f) << shift;
+                        shift += 7;
+                    } while (x < 0);
+                    int v;
+                    if (value == 0) {
+                        v = next;
+                        vertices[vertexHead++ & (VERTEX_FIFO - 1)] = v;
+                    } else if (value <= VERTEX_FIFO) {
+                        v = vertices[(vertexHead - value) & (VERTEX_FIFO - 1)];
+                    } else {
+                        value -= 1 + VERTEX_FIFO;
+                        v = last = last + 1 + ((value >>> 1) ^ -(value & 1));
+                        vertices[vertexHead++ & (VERTEX_FIFO - 1)] = v;
+                    }
+                    out[i + k] = v;
+                    if (v >= next) next = v + 1;
+                }
+                edgeHead = pushEdge(edges, edgeHead, out[i], out[i + 1]);
+                edgeHead = pushEdge(edges, edgeHead, out[i + 1], out[i + 2]);
+                edgeHead = pushEdge(edges, edgeHead, out[i + 2], out[i]);
+                continue;
+            }
+
+            int e = 2 * ((edgeHead - 1 - (code >>> 4)) & (EDGE_FIFO - 1));
+            int y = edges[e], x = edges[e + 1]; // krawędź poprzedniej ściany (y, x) to (x, y) tej ściany
+            int position = code >>> 2 & 3, z;
+            switch (code & 3) {
+                case NEXT:
+                    z = next;
+                    vertices[vertexHead++ & (VERTEX_FIFO - 1)] = z;
+                    break;
+                case CACHED:
+                    z = vertices[(vertexHead - 1 - data[pos++]) & (VERTEX_FIFO - 1)];
+                    break;
+                default: {
+                    int value = 0, shift = 0, v;
+                    do {
+                        v = data[pos++];
+                        value |= (v & 0x7f) << shift;
+                        shift += 7;
+                    } while (v < 0);
+                    z = last = last + 1 + ((value >>> 1) ^ -(value & 1));
+                    vertices[vertexHead++ & (VERTEX_FIFO - 1)] = z;
+                }
+            }
+            if (z >= next) next = z + 1;
+            // ściana (x, y, z) obrócona z powrotem tak, żeby x był na miejscu position, jak w źródle
+            if (position == 0) {
+                out[i] = x;
+                out[i + 1] = y;
+                out[i + 2] = z;
+            } else if (position == 1) {
+                out[i] = z;
+                out[i + 1] = x;
+                out[i + 2] = y;
+            } else {
+                out[i] = y;
+                out[i + 1] = z;
+                out[i + 2] = x;
+            }
+            edgeHead = pushEdge(edges, edgeHead, y, z);
+            edgeHead = pushEdge(edges, edgeHead, z, x);
+        }
+    }
+
+    // Indeksy ścian [first, first + count) do out[0 ..]; first to początek bloku.
+    void decodeFaces(int first, int count, int[] out) {
+        for (int b = first / BLOCK_FACES, o = 0; o < 3 * count; b++, o += 3 * BLOCK_FACES) decodeBlock(b, out, o);
+    }
+}
@@ -0,0 +1,276 @@
+package CGlab;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Pomiary potoku renderowania: czasy etapów i liczniki trójkątów/pikseli, wspólne dla całego procesu
+// (etapy wczytywania i kodowania nie należą do żadnego renderera). Dane można odczytywać na dwa sposoby,
+// włączane niezależnie:
+//  - snapshot() - niezmienna kopia liczników od ostatniego reset(); liczniki działają tylko po enable(),
+//  - zdarzenia JFR CGlab.RenderStage i CGlab.Render - wystarczy nagranie (np. java -XX:StartFlightRecording ...),
+//    bez enable(); o tym, czy zdarzenie jest nagrywane, decyduje samo JFR (isEnabled() / shouldCommit()).
+// Gdy oba są wyłączone, punkt pomiarowy to sprawdzenie flag (enabled, FlightRecorder.isInitialized()),
+// bez System.nanoTime(), bez alokacji i bez zapisu do liczników. Piksele zdarzenia CGlab.Render pochodzą
+// z liczników samego renderera (Renderer.pixelsTested / pixelsWritten), nie stąd.
+//
+// Liczniki to LongAdder, bo rasteryzacja kafelkowa dopisuje do nich z wielu wątków naraz.
+public class RenderMetrics {
+
+    public enum Stage {
+        PARSE,          // Model.readOBJ (parsowanie OBJ albo wczytanie z MeshCache)
+        SIMPLIFY,       // LodChain.build (upraszczanie siatki na poziomy LOD)
+        TRANSFORM,      // VertexBuffer.transform
+        SETUP,          // odrzucanie ścian (bryła widzenia, backface), cieniowanie i obcinanie płaszczyzną bliską
+        RASTERIZATION,  // rasteryzacja z testem głębokości
+        SHADING,        // cieniowanie z bufora widoczności (FlatShadingRenderer.resolve i relight)
+        ENCODE          // Renderer.save (PNG)
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    static volatile boolean enabled;
+
+    // Czy JFR nagrywa dane zdarzenie: isEnabled() na jednym wspólnym obiekcie, który nigdy nie jest
+    // zatwierdzany (new Event().isEnabled() w każdym punkcie pomiarowym alokował - JIT go nie usuwał).
+    // Pierwsze zdarzenie ładuje i instrumentuje klasy JFR (ok. 0.25 s), więc dopóki JFR nie jest
+    // uruchomiony (FlightRecorder.isInitialized(), też nagranie włączone później przez jcmd),
+    // do klasy Probes w ogóle nie sięgamy.
+    private static final class Probes {
+        static final StageEvent STAGE = new StageEvent();
+        static final RenderEvent RENDER = new RenderEvent();
+    }
+
+    private static final LongAdder[] stageNanos = adders(STAGES.length);
+    private static final LongAdder[] stageCalls = adders(STAGES.length);
+    private static final LongAdder[] stageItems = adders(STAGES.length);
+
+    static final LongAdder trianglesSubmitted = new LongAdder();
+    static final LongAdder trianglesCulled = new LongAdder();      // poza bryłą widzenia (outcode albo cały model)
+    static final LongAdder trianglesBackfacing = new LongAdder();  // tyłem do kamery (backface culling)
+    static final LongAdder trianglesClipped = new LongAdder();     // przycięte płaszczyzną bliską
+    static final LongAdder trianglesOccluded = new LongAdder();    // odrzucone przez Hi-Z (w trybie kafelkowym raz, zob. niżej)
+    static final LongAdder trianglesRasterized = new LongAdder();  // przekazane do rasteryzera przez render()
+    static final LongAdder trianglesSavedByLod = new LongAdder();  // ściany pełnej siatki minus ściany wybranego LOD
+    static final LongAdder modelsCulled = new LongAdder();         // całe modele poza bryłą widzenia (AABB)
+    static final LongAdder modelsOccluded = new LongAdder();       // całe modele odrzucone przez Hi-Z
+    static final LongAdder pixelsTested = new LongAdder();         // piksele wewnątrz trójkątów (test głębokości)
+    static final LongAdder pixelsWritten = new LongAdder();        // piksele, które test przeszły i zostały zapisane
+    static final LongAdder pixelsCovered = new LongAdder();        // piksele z-bufora zapisane po raz pierwszy
+    static final LongAdder pixelsOccluded = new LongAdder();       // pole bounding boxów pominiętych przez Hi-Z
+
+    public static void enable() {enabled = true;}
+    public static void disable() {enabled = false;}
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void reset() {
+        for (int s = 0; s < STAGES.length; s++) {
+            stageNanos[s].reset();
+            stageCalls[s].reset();
+            stageItems[s].reset();
+        }
+        trianglesSubmitted.reset();
+        trianglesCulled.reset();
+        trianglesBackfacing.reset();
+        trianglesClipped.reset();
+        trianglesOccluded.reset();
+        trianglesRasterized.reset();
+        trianglesSavedByLod.reset();
+        modelsCulled.reset();
+        modelsOccluded.reset();
+        pixelsTested.reset();
+        pixelsWritten.reset();
+        pixelsCovered.reset();
+        pixelsOccluded.reset();
+    }
+
+    // Początek etapu: czas startu, albo 0 gdy ani liczniki, ani nagranie JFR etapów nie są włączone.
+    static long start() {
+        return enabled || recordingStages() ? System.nanoTime() : 0;
+    }
+
+    // Koniec etapu rozpoczętego przez start(); items to liczba przetworzonych elementów
+    // (wierzchołków, ścian, pikseli), z której liczymy przepustowość etapu.
+    static void end(Stage stage, long start, long items) {
+        if (start == 0) return;
+        long nanos = System.nanoTime() - start;
+        if (enabled) {
+            int s = stage.ordinal();
+            stageNanos[s].add(nanos);
+            stageCalls[s].increment();
+            stageItems[s].add(items);
+        }
+
+        if (!recordingStages()) return;
+        StageEvent event = new StageEvent();
+        if (event.shouldCommit()) {
+            event.stage = stage.name();
+            event.elapsed = nanos;
+            event.items = items;
+            event.commit();
+        }
+    }
+
+    // Piksele trójkąta albo partii trójkątów (Renderer.addPixels); wywoływane tylko przy włączonych pomiarach.
+    static void rasterized(long tested, long written) {
+        pixelsTested.add(tested);
+        pixelsWritten.add(written);
+    }
+
+    private static boolean recordingStages() {
+        return FlightRecorder.isInitialized() && Probes.STAGE.isEnabled();
+    }
+
+    // Czy JFR nagrywa CGlab.Render (FlatShadingRenderer tworzy wtedy zdarzenie dla każdego render()).
+    static boolean recordingRenders() {
+        return FlightRecorder.isInitialized() && Probes.RENDER.isEnabled();
+    }
+
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] result = new LongAdder[n];
+        for (int i = 0; i < n; i++) result[i] = new LongAdder();
+        return result;
+    }
+
+    // Kopia wszystkich liczników z chwili wywołania snapshot().
+    public static final class Snapshot {
+        private final long[] nanos = new long[STAGES.length];
+        private final long[] calls = new long[STAGES.length];
+        private final long[] items = new long[STAGES.length];
+
+        public final long trianglesSubmitted = RenderMetrics.trianglesSubmitted.sum();
+        public final long trianglesCulled = RenderMetrics.trianglesCulled.sum();
+        public final long trianglesBackfacing = RenderMetrics.trianglesBackfacing.sum();
+        public final long trianglesClipped = RenderMetrics.trianglesClipped.sum();
+        public final long trianglesOccluded = RenderMetrics.trianglesOccluded.sum();
+        public final long trianglesRasterized = RenderMetrics.trianglesRasterized.sum();
+        public final long trianglesSavedByLod = RenderMetrics.trianglesSavedByLod.sum();
+        public final long modelsCulled = RenderMetrics.modelsCulled.sum();
+        public final long modelsOccluded = RenderMetrics.modelsOccluded.sum();
+        public final long pixelsTested = RenderMetrics.pixelsTested.sum();
+        public final long pixelsWritten = RenderMetrics.pixelsWritten.sum();
+        public final long pixelsCovered = RenderMetrics.pixelsCovered.sum();
+        public final long pixelsOccluded = RenderMetrics.pixelsOccluded.sum();
+
+        private Snapshot() {
+            for (int s = 0; s < STAGES.length; s++) {
+                nanos[s] = stageNanos[s].sum();
+                calls[s] = stageCalls[s].sum();
+                items[s] = stageItems[s].sum();
+            }
+        }
+
+        public long nanos(Stage stage) {
+            return nanos[stage.ordinal()];
+        }
+
+        public long calls(Stage stage) {
+            return calls[stage.ordinal()];
+        }
+
+        public long items(Stage stage) {
+            return items[stage.ordinal()];
+        }
+
+        // elementy na sekundę w danym etapie (0, jeśli etap nie był mierzony)
+        public double throughput(Stage stage) {
+            long n = nanos(stage);
+            return n == 0 ? 0 : items(stage) * 1e9 / n;
+        }
+
+        // jaka część testowanych pikseli nie przeszła testu głębokości
+        public double zFailRatio() {
+            return pixelsTested == 0 ? 0 : (double) (pixelsTested - pixelsWritten) / pixelsTested;
+        }
+
+        // ile razy średnio zapisano każdy pokryty piksel (1 = bez nadpisywania)
+        public double overdrawRatio() {
+            return pixelsCovered == 0 ? 0 : (double) pixelsWritten / pixelsCovered;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Stage stage : STAGES) {
+                if (calls(stage) == 0) continue;
+                sb.append(String.format(Locale.ROOT, "%-14s %9.2f ms in %d calls, %.2f M items/s%n",
+                                        stage, nanos(stage) / 1e6, calls(stage), throughput(stage) / 1e6));
+            }
+            sb.append(String.format(Locale.ROOT,
+                    "triangles: %d submitted, %d culled, %d backfacing, %d clipped, %d occluded, %d rasterized, "
+                    + "%d saved by LOD; models: %d culled, %d occluded%n",
+                    trianglesSubmitted, trianglesCulled, trianglesBackfacing, trianglesClipped, trianglesOccluded,
+                    trianglesRasterized, trianglesSavedByLod, modelsCulled, modelsOccluded));
+            sb.append(String.format(Locale.ROOT,
+                    "pixels: %d tested, %d written, %d covered, %d skipped by Hi-Z; z-fail %.1f%%, overdraw %.2f",
+                    pixelsTested, pixelsWritten, pixelsCovered, pixelsOccluded, 100 * zFailRatio(), overdrawRatio()));
+            return sb.toString();
+        }
+    }
+
+    @Name("CGlab.RenderStage")
+    @Label("Render Stage")
+    @Category("CGlab")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        // pole "duration" ma już samo Event, dlatego inna nazwa
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+
+        @Label("Items")
+        long items;
+    }
+
+    @Name("CGlab.Render")
+    @Label("Render")
+    @Category("CGlab")
+    static class RenderEvent extends Event {
+        @Label("Triangles Submitted")
+        long trianglesSubmitted;
+
+        @Label("Triangles Culled")
+        long trianglesCulled;
+
+        @Label("Triangles Backfacing")
+        long trianglesBackfacing;
+
+        @Label("Triangles Clipped")
+        long trianglesClipped;
+
+        @Label("LOD Level")
+        int lodLevel;
+
+        @Label("Triangles Saved By LOD")
+        long trianglesSavedByLod;
+
+        @Label("Pixels Tested")
+        long pixelsTested;
+
+        @Label("Pixels Written")
+        long pixelsWritten;
+
+        @Label("Pixels Covered")
+        long pixelsCovered;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+    }
+}
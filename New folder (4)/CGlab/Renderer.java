@@ -2,9 +2,20 @@ package CGlab;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 public class Renderer {
 
@@ -13,48 +24,130 @@ public class Renderer {
     public final int defaultHeight = 200;
     public final int defaultWidth = 200;
 
-    protected BufferedImage render;
+    // precyzja podpikselowa rasteryzera: 4 bity, czyli wierzchołki zaokrąglone do 1/16 piksela
+    protected static final int SUBPIXEL_BITS = 4;
+    protected static final int SUBPIXEL_ONE = 1 << SUBPIXEL_BITS;
+
+    // bok kwadratowego kafelka przy rasteryzacji wielowątkowej; musi być wielokrotnością DepthBuffer.TILE,
+    // żeby każdy kafelek Hi-Z należał do dokładnie jednego wątku
+    public static final int TILE_SIZE = 64;
+
+    // liczba trójkątów w jednym zadaniu drawTrianglesConcurrent
+    public static final int CONCURRENT_BATCH = 1024;
+
+    protected FrameBuffer frameBuffer;
+    protected BufferedImage render; // obraz, na którym opiera się frameBuffer
+    // tablica, do której rasteryzer zapisuje "kolor" trójkąta - zwykle frameBuffer.pixels, a w czasie
+    // przebiegu geometrii z buforem widoczności VisibilityBuffer.ids (wtedy kolor to numer trójkąta)
+    protected int[] rasterTarget;
     protected String filename;
+    protected ImageFormat format;     // z rozszerzenia filename, zmiana przez setImageFormat
     protected LineAlgo lineAlgo = LineAlgo.BRESENHAM;
 
-    protected float[][] zbuffer;
+    protected DepthBuffer zbuffer;
     protected boolean zbufferTest = true;
+    // Wiersz klatki, od którego zaczyna się obraz (StripRenderer: pas klatki). Wierzchołki są we współrzędnych
+    // całej klatki, a rasteryzer odejmuje przesunięcie już po zaokrągleniu do podpikseli, więc pas ma
+    // dokładnie te same krawędzie i głębokości co cała klatka narysowana naraz.
+    protected int frameOffsetY;
+    // Piksele narysowane przez ten renderer (wewnątrz trójkątów / zapisane), zawsze liczone: rasteryzer zwraca
+    // je z każdego trójkąta, a tu trafiają sumy z wątku wywołującego, więc renderery w osobnych wątkach
+    // (ConcurrentFrameBuffer) nie mieszają sobie liczników. FlatShadingRenderer bierze z nich zdarzenie JFR.
+    protected long pixelsTested, pixelsWritten;
+    private long[] taskPixels = new long[0];  // sumy pikseli kafelków / partii przy rysowaniu równoległym
+    protected boolean simd = VectorKernels.PREFERRED; // tylko gdy jest moduł jdk.incubator.vector
+
+    // Tryb współbieżny: trójkąty trafiają do ConcurrentFrameBuffer (może być wspólny dla kilku rendererów),
+    // a frameBuffer i zbuffer dostają wynik dopiero w resolve(). null = zwykłe rysowanie.
+    protected ConcurrentFrameBuffer concurrentTarget;
+
+    // Tablice binowania drawTrianglesTiled z poprzedniej klatki - tylko rosną, więc kolejne klatki nic nie alokują.
+    private int[] tileRect = new int[0];
+    private int[] tileStart = new int[0];
+    private int[] tileFill = new int[0];
+    private int[] tileBins = new int[0];
 
     public Renderer(String filename) {
-        render = new BufferedImage(defaultWidth, defaultHeight, BufferedImage.TYPE_INT_ARGB);
+        frameBuffer = new FrameBuffer(defaultWidth, defaultHeight);
+        render = frameBuffer.getImage();
+        rasterTarget = frameBuffer.pixels;
         this.filename = filename;
+        this.format = ImageFormat.forPath(filename);
         initZBuffer(defaultWidth, defaultHeight);
     }
 
     public Renderer(String filename, int width, int height) {
-        render = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        frameBuffer = new FrameBuffer(width, height);
+        render = frameBuffer.getImage();
+        rasterTarget = frameBuffer.pixels;
         this.filename = filename;
+        this.format = ImageFormat.forPath(filename);
         initZBuffer(width, height);
     }
 
     public Renderer(String filename, int width, int height, LineAlgo lineAlgo) {
-        render = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        frameBuffer = new FrameBuffer(width, height);
+        render = frameBuffer.getImage();
+        rasterTarget = frameBuffer.pixels;
         this.filename = filename;
+        this.format = ImageFormat.forPath(filename);
         this.lineAlgo = lineAlgo;
         initZBuffer(width, height);
     }
 
     protected void initZBuffer(int w, int h) {
-        zbuffer = new float[h][w];
-        for (int i = 0; i < h; i++) {
-            for (int j = 0; j < w; j++) {
-                zbuffer[i][j] = Float.POSITIVE_INFINITY;
-            }
-        }
+        zbuffer = new DepthBuffer(w, h);
+    }
+
+    public void simdOn() {this.simd = VectorKernels.INSTANCE != null;}
+    public void simdOff() {this.simd = false;}
+
+    public boolean isSimdAvailable() {
+        return VectorKernels.INSTANCE != null;
+    }
+
+    // Włącza tryb współbieżny z własnym buforem, do którego przepisujemy to, co już narysowano.
+    public void concurrentFrameBufferOn() {
+        if (concurrentTarget != null) return;
+        ConcurrentFrameBuffer target = new ConcurrentFrameBuffer(frameBuffer.width, frameBuffer.height);
+        target.load(frameBuffer, zbuffer);
+        concurrentTarget = target;
+    }
+
+    // Włącza tryb współbieżny ze wspólnym buforem - kilka rendererów (np. po jednym na model) może wtedy
+    // rysować do niego z osobnych wątków. Obecna zawartość frameBuffer nie jest przepisywana.
+    public void concurrentFrameBufferOn(ConcurrentFrameBuffer shared) {
+        shared.checkSize(frameBuffer.width, frameBuffer.height);
+        concurrentTarget = shared;
+    }
+
+    // Kończy tryb współbieżny, przenosząc wynik do frameBuffer i zbuffer.
+    public void concurrentFrameBufferOff() {
+        resolve();
+        concurrentTarget = null;
+    }
+
+    public ConcurrentFrameBuffer getConcurrentFrameBuffer() {
+        return concurrentTarget;
+    }
+
+    // W trybie współbieżnym kopiuje wynik do frameBuffer i zbuffer (save() robi to sam). Linie i punkty
+    // są zawsze rysowane bezpośrednio do frameBuffer, więc resolve() je nadpisuje.
+    public void resolve() {
+        if (concurrentTarget != null) concurrentTarget.resolve(frameBuffer, zbuffer);
+    }
+
+    public DepthBuffer getZBuffer() {
+        return zbuffer;
     }
 
     public void drawPoint(int x, int y) {
         int white = 255 | (255 << 8) | (255 << 16) | (255 << 24);
-        render.setRGB(x, y, white);
+        frameBuffer.setPixel(x, y, white);
     }
 
     public void drawPoint(int x, int y, int color) {
-        render.setRGB(x, y, color);
+        frameBuffer.setPixel(x, y, color);
     }
 
     public void drawLine(int x0, int y0, int x1, int y1) {
@@ -85,7 +178,7 @@ public class Renderer {
         // zakładamy przy tym, że można podać współrzędne y w dowolnej kolejności, niekoniecznie y0 < y1
         if(x0 == x1) {
             for(int y = Math.min(y0, y1); y <= Math.max(y0, y1); y++) {
-                render.setRGB(x0, y, color);
+                frameBuffer.setPixel(x0, y, color);
             }
         }
         else {
@@ -112,7 +205,7 @@ public class Renderer {
 
             for(float x = x0; x <= x1; x = x + step) {           
                 y = y + m * step;
-                render.setRGB(Math.round(x), Math.round(y), color);
+                frameBuffer.setPixel(Math.round(x), Math.round(y), color);
             }
         }
     }
@@ -145,7 +238,7 @@ public class Renderer {
             int y = y0;
 
             for (int x=x0; x<=x1; x++) {
-                render.setRGB(x, y, color);
+                frameBuffer.setPixel(x, y, color);
                 err += derr;
                 if (err > 0.5) {
                     y += (y1 > y0 ? 1 : -1);
@@ -174,7 +267,7 @@ public class Renderer {
             int x = x0;
 
             for (int y=y0; y<=y1; y++) {
-                render.setRGB(x, y, color);
+                frameBuffer.setPixel(x, y, color);
                 err += derr;
                 if (err > 0.5) {
                     x += (x1 > x0 ? 1 : -1);
@@ -212,7 +305,7 @@ public class Renderer {
              int y = y0;
  
              for (int x=x0; x<=x1; x++) {
-                 render.setRGB(x, y, color);
+                 frameBuffer.setPixel(x, y, color);
                  err += derr;
                  if (err > dx) {
                      y += (y1 > y0 ? 1 : -1);
@@ -241,7 +334,7 @@ public class Renderer {
              int x = x0;
  
              for (int y=y0; y<=y1; y++) {
-                 render.setRGB(x, y, color);
+                 frameBuffer.setPixel(x, y, color);
                  err += derr;
                  if (err > dy) {
                      x += (x1 > x0 ? 1 : -1);
@@ -265,86 +358,445 @@ public class Renderer {
 
 
    public void drawTriangle(Vec3f A, Vec3f B, Vec3f C, int color) {
+        addPixels(rasterizeTriangle(A.x, A.y, A.z, B.x, B.y, B.z, C.x, C.y, C.z, color, zbufferTest,
+                                    0, 0, render.getWidth(), render.getHeight()));
+    }
 
-        Vec2f A2d = new Vec2f(A.x, A.y);
-        Vec2f B2d = new Vec2f(B.x, B.y);
-        Vec2f C2d = new Vec2f(C.x, C.y);
-
-        float minX = Math.min(A.x, Math.min(B.x, C.x));
-        float minY = Math.min(A.y, Math.min(B.y, C.y));
-        float maxX = Math.max(A.x, Math.max(B.x, C.x));
-        float maxY = Math.max(A.y, Math.max(B.y, C.y));
-
-        maxX = Math.min(maxX, this.render.getWidth() - 1);
-        maxY = Math.min(maxY, this.render.getHeight() - 1);
-
-        minX = Math.max(minX, 0);
-        minY = Math.max(minY, 0);
-
-        for(int y = (int)minY; y < maxY; y++) {
-            for (int x = (int)minX; x < maxX; x++) {
-                Vec2f P = new Vec2f(x, y);
-                Vec3f barycentric = barycentric(A2d, B2d, C2d, P);
-                if(barycentric.x >= 0 && barycentric.x <= 1 &&
-                barycentric.y >= 0 && barycentric.y <= 1 &&
-                barycentric.z >= 0 && barycentric.z <= 1) {
-
-                    float Pz = A.z * barycentric.x + B.z * barycentric.y + C.z * barycentric.z;
-                    if(zbufferTest == false) {      // jeśli nie testujemy z-bufora to po prostu rysuj
-                        render.setRGB(x, y, color);
-                        continue;
-                    }
-                    if( Pz < zbuffer[y][x]) {
-                        render.setRGB(x, y, color);
-                        zbuffer[y][x] = Pz;
+
+    public void drawTriangle(Vec2f A, Vec2f B, Vec2f C, int color) {
+        addPixels(rasterizeTriangle(A.x, A.y, 0.0f, B.x, B.y, 0.0f, C.x, C.y, 0.0f, color, false,
+                                    0, 0, render.getWidth(), render.getHeight()));
+    }
+
+    // Dopisuje liczniki (tested << 32 | written) z rasterizeTriangle albo ich sumę do pixelsTested/Written
+    // i, przy włączonych pomiarach, do RenderMetrics. Tylko z wątku, który wywołał rysowanie.
+    void addPixels(long counts) {
+        addPixels(counts >>> 32, counts & 0xffffffffL);
+    }
+
+    void addPixels(long tested, long written) {
+        pixelsTested += tested;
+        pixelsWritten += written;
+        if (RenderMetrics.enabled) RenderMetrics.rasterized(tested, written);
+    }
+
+    // Rasteryzacja trójkąta funkcjami krawędziowymi (edge functions) w arytmetyce stałoprzecinkowej.
+    // Wierzchołki zaokrąglamy do 1/SUBPIXEL_ONE piksela, funkcje krawędziowe liczymy raz dla
+    // narożnika bounding boxa, a potem tylko dodajemy stałe kroki przy przejściu o piksel w x i w y.
+    // Nie ma tu żadnej alokacji ani dzielenia na piksel (w przeciwieństwie do barycentric()).
+    // Piksel (x, y) jest próbkowany w punkcie (x, y), tak jak wcześniej.
+    // Prostokąt [clipMinX, clipMaxX) x [clipMinY, clipMaxY) ogranicza obszar zapisu. Zwraca
+    // (liczba pikseli wewnątrz trójkąta << 32) | liczba zapisanych pikseli, jak VectorKernels.rasterize;
+    // metoda może działać w wielu wątkach naraz, więc sumowanie zostawia wołającemu (addPixels).
+    protected long rasterizeTriangle(float ax, float ay, float az,
+                                     float bx, float by, float bz,
+                                     float cx, float cy, float cz,
+                                     int color, boolean depthTest,
+                                     int clipMinX, int clipMinY, int clipMaxX, int clipMaxY) {
+
+        long offset = (long) frameOffsetY * SUBPIXEL_ONE;
+        long x0 = Math.round(ax * SUBPIXEL_ONE), y0 = Math.round(ay * SUBPIXEL_ONE) - offset;
+        long x1 = Math.round(bx * SUBPIXEL_ONE), y1 = Math.round(by * SUBPIXEL_ONE) - offset;
+        long x2 = Math.round(cx * SUBPIXEL_ONE), y2 = Math.round(cy * SUBPIXEL_ONE) - offset;
+
+        long area = (x1 - x0) * (y2 - y0) - (y1 - y0) * (x2 - x0);
+        if (area == 0) return 0; // trójkąt zdegenerowany
+        if (area < 0) {        // sprowadzamy do orientacji przeciwnej do ruchu wskazówek zegara
+            long t = x1; x1 = x2; x2 = t;
+            t = y1; y1 = y2; y2 = t;
+            float tz = bz; bz = cz; cz = tz;
+            area = -area;
+        }
+
+        // bounding box w pikselach, obustronnie domknięty (stare y < maxY gubiło ostatni wiersz i kolumnę)
+        int minX = (int) Math.max(clipMinX, ceilDiv(Math.min(x0, Math.min(x1, x2))));
+        int minY = (int) Math.max(clipMinY, ceilDiv(Math.min(y0, Math.min(y1, y2))));
+        int maxX = (int) Math.min(clipMaxX - 1, Math.floorDiv(Math.max(x0, Math.max(x1, x2)), SUBPIXEL_ONE));
+        int maxY = (int) Math.min(clipMaxY - 1, Math.floorDiv(Math.max(y0, Math.max(y1, y2)), SUBPIXEL_ONE));
+        if (minX > maxX || minY > maxY) return 0;
+
+        // w trybie współbieżnym z-bufor nie jest aktualny, więc Hi-Z i ścieżka SIMD są wyłączone
+        boolean concurrent = concurrentTarget != null;
+
+        // Hi-Z: jeśli najbliższy wierzchołek jest dalej niż wszystko, co już leży w z-buforze pod
+        // bounding boxem, to żaden piksel nie przejdzie testu głębokości
+        if (depthTest && !concurrent && zbuffer.occludes(minX, minY, maxX, maxY, Math.min(az, Math.min(bz, cz)))) {
+            if (RenderMetrics.enabled) {
+                // w trybie kafelkowym (i pasami) ten sam trójkąt trafia tu raz na kafelek: pominięte piksele
+                // to część bounding boxa w tym kafelku, ale sam trójkąt liczy tylko kafelek z narożnikiem
+                // (minX, minY) całego bounding boxa (przyciętego do klatki, nie do kafelka ani pasa)
+                RenderMetrics.pixelsOccluded.add((long) (maxX - minX + 1) * (maxY - minY + 1));
+                long originX = Math.max(0, ceilDiv(Math.min(x0, Math.min(x1, x2))));
+                long originY = Math.max(-frameOffsetY, ceilDiv(Math.min(y0, Math.min(y1, y2))));
+                if (minX == originX && minY == originY) RenderMetrics.trianglesOccluded.increment();
+            }
+            return 0;
+        }
+
+        // przyrosty funkcji krawędziowych przy kroku o jeden piksel
+        long w0dx = -(y2 - y1) * SUBPIXEL_ONE, w0dy = (x2 - x1) * SUBPIXEL_ONE; // krawędź B -> C
+        long w1dx = -(y0 - y2) * SUBPIXEL_ONE, w1dy = (x0 - x2) * SUBPIXEL_ONE; // krawędź C -> A
+        long w2dx = -(y1 - y0) * SUBPIXEL_ONE, w2dy = (x1 - x0) * SUBPIXEL_ONE; // krawędź A -> B
+
+        // reguła top-left: piksel leżący dokładnie na krawędzi należy tylko do trójkąta, dla którego
+        // jest to krawędź lewa lub górna, więc wspólna krawędź dwóch trójkątów jest rysowana raz
+        long bias0 = isTopLeft(x1, y1, x2, y2) ? 0 : -1;
+        long bias1 = isTopLeft(x2, y2, x0, y0) ? 0 : -1;
+        long bias2 = isTopLeft(x0, y0, x1, y1) ? 0 : -1;
+
+        long px = (long) minX * SUBPIXEL_ONE;
+        long py = (long) minY * SUBPIXEL_ONE;
+        long w0row = edgeFunction(x1, y1, x2, y2, px, py);
+        long w1row = edgeFunction(x2, y2, x0, y0, px, py);
+        long w2row = edgeFunction(x0, y0, x1, y1, px, py);
+
+        // głębokość jest liniowa w (x, y): z = z00 + x * zdx + y * zdy, więc zamiast wag barycentrycznych
+        // wystarczy przyrost na wiersz i na piksel. Zaczepiamy ją w pikselu (0, 0) klatki, a nie w rogu
+        // bounding boxa, żeby wynik nie zależał od prostokąta obcinania (kafelek daje te same bity co cały
+        // ekran, a pas te same co cała klatka); y w tym wzorze to wiersz klatki, czyli y + frameOffsetY.
+        double invArea = 1.0 / area;
+        double zdx = (az * (double) w0dx + bz * (double) w1dx + cz * (double) w2dx) * invArea;
+        double zdy = (az * (double) w0dy + bz * (double) w1dy + cz * (double) w2dy) * invArea;
+        double z00 = (az * (double) edgeFunction(x1, y1, x2, y2, 0, -offset)
+                    + bz * (double) edgeFunction(x2, y2, x0, y0, 0, -offset)
+                    + cz * (double) edgeFunction(x0, y0, x1, y1, 0, -offset)) * invArea;
+
+        if (concurrent) {
+            return rasterizeConcurrent(concurrentTarget, minX, minY, maxX, maxY, w0row, w1row, w2row,
+                                       w0dx, w1dx, w2dx, w0dy, w1dy, w2dy, bias0, bias1, bias2,
+                                       z00, zdx, zdy, frameOffsetY, color, depthTest);
+        }
+
+        int[] pixels = rasterTarget;
+        if (simd && VectorKernels.INSTANCE != null) {
+            return VectorKernels.INSTANCE.rasterize(pixels, zbuffer, frameBuffer.width, minX, minY, maxX, maxY,
+                                                    w0row, w1row, w2row, w0dx, w1dx, w2dx, w0dy, w1dy, w2dy,
+                                                    bias0, bias1, bias2, z00, zdx, zdy, frameOffsetY,
+                                                    color, depthTest);
+        }
+
+        // liczniki pikseli - zwykłe zmienne lokalne, zwracane raz na trójkąt
+        int tested = 0, written = 0;
+        float[] depth = zbuffer.depth;
+        for (int y = minY; y <= maxY; y++) {
+            long w0 = w0row, w1 = w1row, w2 = w2row;
+            double zRow = z00 + (y + frameOffsetY) * zdy;
+            int rowOffset = y * frameBuffer.width;
+            for (int x = minX; x <= maxX; x++) {
+                if (((w0 + bias0) | (w1 + bias1) | (w2 + bias2)) >= 0) {
+                    float Pz = (float) (zRow + x * zdx);
+                    tested++;
+                    if (!depthTest) {          // jeśli nie testujemy z-bufora to po prostu rysuj
+                        pixels[rowOffset + x] = color;
+                        written++;
+                    } else if (Pz < depth[rowOffset + x]) {
+                        pixels[rowOffset + x] = color;
+                        zbuffer.write(rowOffset + x, x, y, Pz);
+                        written++;
                     }
                 }
+                w0 += w0dx; w1 += w1dx; w2 += w2dx;
             }
+            w0row += w0dy; w1row += w1dy; w2row += w2dy;
         }
-    } 
+        return (long) tested << 32 | written;
+    }
 
+    // Ta sama pętla co w rasterizeTriangle, ale test głębokości i zapis to jeden CAS na pikselu
+    // ConcurrentFrameBuffer, więc wiele wątków może rysować naraz w ten sam obszar. Zwraca liczniki pikseli
+    // jak VectorKernels.rasterize.
+    private static long rasterizeConcurrent(ConcurrentFrameBuffer target, int minX, int minY, int maxX, int maxY,
+                                            long w0row, long w1row, long w2row,
+                                            long w0dx, long w1dx, long w2dx,
+                                            long w0dy, long w1dy, long w2dy,
+                                            long bias0, long bias1, long bias2,
+                                            double z00, double zdx, double zdy, int frameOffsetY,
+                                            int color, boolean depthTest) {
+        int tested = 0, written = 0;
+        for (int y = minY; y <= maxY; y++) {
+            long w0 = w0row, w1 = w1row, w2 = w2row;
+            double zRow = z00 + (y + frameOffsetY) * zdy;
+            int rowOffset = y * target.width;
+            for (int x = minX; x <= maxX; x++) {
+                if (((w0 + bias0) | (w1 + bias1) | (w2 + bias2)) >= 0) {
+                    tested++;
+                    if (!depthTest) {
+                        target.setColor(rowOffset + x, color);
+                        written++;
+                    } else if (target.testAndSet(rowOffset + x, (float) (zRow + x * zdx), color)) {
+                        written++;
+                    }
+                }
+                w0 += w0dx; w1 += w1dx; w2 += w2dx;
+            }
+            w0row += w0dy; w1row += w1dy; w2row += w2dy;
+        }
+        return (long) tested << 32 | written;
+    }
 
-    public void drawTriangle(Vec2f A, Vec2f B, Vec2f C, int color) {
+    // Rasteryzacja do ConcurrentFrameBuffer: partie po CONCURRENT_BATCH trójkątów rysowane równolegle,
+    // bez binowania do kafelków (ten sam układ argumentów co drawTrianglesTiled). Wymaga trybu współbieżnego.
+    public void drawTrianglesConcurrent(float[] vertices, int[] indices, int[] colors, int count) {
+        if (concurrentTarget == null) throw new IllegalStateException("Concurrent frame buffer is off");
+        int width = render.getWidth();
+        int height = render.getHeight();
+        int batches = (count + CONCURRENT_BATCH - 1) / CONCURRENT_BATCH;
+        if (taskPixels.length < 2 * batches) taskPixels = new long[2 * batches];
+        long[] pixels = taskPixels;
+        IntStream.range(0, batches).parallel().forEach(batch -> {
+            long tested = 0, written = 0;
+            for (int i = batch * CONCURRENT_BATCH, end = Math.min(count, i + CONCURRENT_BATCH); i < end; i++) {
+                if (colors[i] == 0) continue;
+                int a = 3 * indices[3 * i], b = 3 * indices[3 * i + 1], c = 3 * indices[3 * i + 2];
+                long counts = rasterizeTriangle(vertices[a], vertices[a + 1], vertices[a + 2],
+                                                vertices[b], vertices[b + 1], vertices[b + 2],
+                                                vertices[c], vertices[c + 1], vertices[c + 2],
+                                                colors[i], zbufferTest, 0, 0, width, height);
+                tested += counts >>> 32;
+                written += counts & 0xffffffffL;
+            }
+            pixels[2 * batch] = tested;
+            pixels[2 * batch + 1] = written;
+        });
+        addTaskPixels(batches);
+    }
 
-        float minX = Math.min(A.x, Math.min(B.x, C.x));
-        float minY = Math.min(A.y, Math.min(B.y, C.y));
-        float maxX = Math.max(A.x, Math.max(B.x, C.x));
-        float maxY = Math.max(A.y, Math.max(B.y, C.y));
+    // suma liczników pikseli zadań [0, tasks) z taskPixels
+    private void addTaskPixels(int tasks) {
+        long tested = 0, written = 0;
+        for (int t = 0; t < tasks; t++) {
+            tested += taskPixels[2 * t];
+            written += taskPixels[2 * t + 1];
+        }
+        addPixels(tested, written);
+    }
 
-        for(int y = (int)minY; y < maxY; y++) {
-            for (int x = (int)minX; x < maxX; x++) {
-                Vec2f P = new Vec2f(x, y);
-                Vec3f barycentric = barycentric(A, B, C, P);
-                if(barycentric.x >= 0 && barycentric.x <= 1 &&
-                   barycentric.y >= 0 && barycentric.y <= 1 &&
-                   barycentric.z >= 0 && barycentric.z <= 1) {
+    // Wielowątkowa rasteryzacja kafelkowa. vertices zawiera po 3 floaty (x, y, z) na wierzchołek, indices
+    // po 3 numery wierzchołków na trójkąt, colors kolor trójkąta (0 = pomiń). Najpierw trójkąty są przypisywane do kafelków
+    // TILE_SIZE x TILE_SIZE, potem kafelki rasteryzowane są równolegle na ForkJoinPool.commonPool().
+    // Każdy kafelek pisze tylko do swojego fragmentu obrazu i z-bufora, a w obrębie kafelka trójkąty
+    // idą w kolejności podania, więc wynik jest identyczny z rysowaniem jednowątkowym, bez blokad.
+    public void drawTrianglesTiled(float[] vertices, int[] indices, int[] colors, int count) {
+        int width = render.getWidth();
+        int height = render.getHeight();
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = tilesX * tilesY;
+
+        // binowanie w dwóch przebiegach: zliczenie trójkątów na kafelek, potem wpisanie ich numerów
+        // do jednej płaskiej tablicy (counting sort, kolejność trójkątów w kafelku zostaje zachowana)
+        if (tileRect.length < count * 4) tileRect = new int[count * 4];
+        if (tileStart.length != tileCount + 1) {
+            tileStart = new int[tileCount + 1];
+            tileFill = new int[tileCount];
+        }
+        int[] tileRect = this.tileRect, tileStart = this.tileStart, fill = this.tileFill;
+        Arrays.fill(tileStart, 0);
+        for (int i = 0; i < count; i++) {
+            int r = i * 4;
+            tileRect[r] = 1; tileRect[r + 2] = 0; // pusty zakres, jeśli trójkąt nie trafia w żaden kafelek
+            if (colors[i] == 0) continue;
+            int a = 3 * indices[3 * i], b = 3 * indices[3 * i + 1], c = 3 * indices[3 * i + 2];
+            float minX = Math.min(vertices[a], Math.min(vertices[b], vertices[c]));
+            float maxX = Math.max(vertices[a], Math.max(vertices[b], vertices[c]));
+            float minY = Math.min(vertices[a + 1], Math.min(vertices[b + 1], vertices[c + 1])) - frameOffsetY;
+            float maxY = Math.max(vertices[a + 1], Math.max(vertices[b + 1], vertices[c + 1])) - frameOffsetY;
+            // y z zapasem podpiksela jak w VertexBuffer.outcode (wiersz 0 pasa nie jest brzegiem klatki)
+            if (!(maxX >= 0 && maxY >= -1.0f / SUBPIXEL_ONE && minX < width && minY < height)) continue; // odrzuca też NaN
+            tileRect[r] = Math.max(0, (int) Math.floor(minX) / TILE_SIZE);
+            tileRect[r + 1] = Math.max(0, (int) Math.floor(minY) / TILE_SIZE);
+            tileRect[r + 2] = Math.min(tilesX - 1, (int) Math.ceil(maxX) / TILE_SIZE);
+            tileRect[r + 3] = Math.min(tilesY - 1, (int) Math.ceil(maxY) / TILE_SIZE);
+            for (int ty = tileRect[r + 1]; ty <= tileRect[r + 3]; ty++) {
+                for (int tx = tileRect[r]; tx <= tileRect[r + 2]; tx++) {
+                    tileStart[ty * tilesX + tx + 1]++;
+                }
+            }
+        }
+        for (int t = 0; t < tileCount; t++) tileStart[t + 1] += tileStart[t];
+
+        if (tileBins.length < tileStart[tileCount]) tileBins = new int[tileStart[tileCount]];
+        int[] bins = this.tileBins;
+        System.arraycopy(tileStart, 0, fill, 0, tileCount);
+        for (int i = 0; i < count; i++) {
+            int r = i * 4;
+            for (int ty = tileRect[r + 1]; ty <= tileRect[r + 3]; ty++) {
+                for (int tx = tileRect[r]; tx <= tileRect[r + 2]; tx++) {
+                    bins[fill[ty * tilesX + tx]++] = i;
+                }
+            }
+        }
 
-                    render.setRGB(x, y, color);
+        if (taskPixels.length < 2 * tileCount) taskPixels = new long[2 * tileCount];
+        long[] pixels = taskPixels;
+        IntStream.range(0, tileCount).parallel().forEach(t -> {
+            int clipMinX = (t % tilesX) * TILE_SIZE;
+            int clipMinY = (t / tilesX) * TILE_SIZE;
+            int clipMaxX = Math.min(width, clipMinX + TILE_SIZE);
+            int clipMaxY = Math.min(height, clipMinY + TILE_SIZE);
+            long tested = 0, written = 0;
+            for (int k = tileStart[t]; k < tileStart[t + 1]; k++) {
+                int i = bins[k];
+                int a = 3 * indices[3 * i], b = 3 * indices[3 * i + 1], c = 3 * indices[3 * i + 2];
+                long counts = rasterizeTriangle(vertices[a], vertices[a + 1], vertices[a + 2],
+                                                vertices[b], vertices[b + 1], vertices[b + 2],
+                                                vertices[c], vertices[c + 1], vertices[c + 2],
+                                                colors[i], zbufferTest, clipMinX, clipMinY, clipMaxX, clipMaxY);
+                tested += counts >>> 32;
+                written += counts & 0xffffffffL;
+            }
+            pixels[2 * t] = tested;
+            pixels[2 * t + 1] = written;
+        });
+        addTaskPixels(tileCount);
+    }
 
-                }
+    // Wykonuje polecenia zapisane w CommandBuffer: najpierw trójkąty nieprzezroczyste w kolejności
+    // commands.getOrder() (z testem głębokości jak drawTriangle), potem nakładkę. Przy parallel trójkąty
+    // idą przez drawTrianglesTiled albo, w trybie współbieżnym, drawTrianglesConcurrent.
+    // Bufor poleceń nie jest czyszczony - można go wykonać ponownie albo wyzerować przez reset().
+    public void submit(CommandBuffer commands, boolean parallel) {
+        commands.prepare(parallel);
+        float[] vertices = commands.sortedVertices;
+        int[] indices = commands.identityIndices;
+        int[] colors = commands.sortedColors;
+        int count = commands.getTriangleCount();
+        if (parallel && concurrentTarget != null) {
+            drawTrianglesConcurrent(vertices, indices, colors, count);
+        } else if (parallel) {
+            drawTrianglesTiled(vertices, indices, colors, count);
+        } else {
+            int width = render.getWidth(), height = render.getHeight();
+            long tested = 0, written = 0;
+            for (int i = 0; i < count; i++) {
+                int o = 9 * i;
+                long counts = rasterizeTriangle(vertices[o], vertices[o + 1], vertices[o + 2],
+                                                vertices[o + 3], vertices[o + 4], vertices[o + 5],
+                                                vertices[o + 6], vertices[o + 7], vertices[o + 8],
+                                                colors[i], zbufferTest, 0, 0, width, height);
+                tested += counts >>> 32;
+                written += counts & 0xffffffffL;
             }
+            addPixels(tested, written);
         }
-    } 
+        commands.drawOverlay(this);
+    }
+
+    protected static long edgeFunction(long ax, long ay, long bx, long by, long px, long py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    // Dla orientacji przeciwnej do wskazówek zegara (oś y w górę, jak po odwróceniu w save()):
+    // krawędź lewa idzie w dół, a górna pozioma idzie w lewo.
+    protected static boolean isTopLeft(long ax, long ay, long bx, long by) {
+        long dx = bx - ax;
+        long dy = by - ay;
+        return dy < 0 || (dy == 0 && dx < 0);
+    }
+
+    private static long ceilDiv(long v) {
+        return -Math.floorDiv(-v, SUBPIXEL_ONE);
+    }
 
     public void drawTriangle(Vec2i A, Vec2i B, Vec2i C, int color) {
         drawTriangle(new Vec2f(A.x, A.y), new Vec2f(B.x, B.y), new Vec2f(C.x, C.y), color);
     } 
 
+    public void setImageFormat(ImageFormat format) {
+        this.format = format;
+    }
+
+    public ImageFormat getImageFormat() {
+        return format;
+    }
+
     public void save() throws IOException {
-        File outputfile = new File(filename);
-        render = Renderer.verticalFlip(render);
-        ImageIO.write(render, "png", outputfile);
+        resolve();
+        writeImage(format, filename, frameBuffer.pixels, frameBuffer.width, frameBuffer.height);
     }
 
-    public void clear() {
-        for (int x = 0; x < render.getWidth(); x++) {
-            for (int y = 0; y < render.getHeight(); y++) {
-                int black = 0 | (0 << 8) | (0 << 16) | (255 << 24);
-                render.setRGB(x, y, black);
+    // Obraz w bieżącym formacie do out (zamykanego po zapisie).
+    public void save(OutputStream out) throws IOException {
+        resolve();
+        try (WritableByteChannel channel = Channels.newChannel(out)) {
+            writeImage(format, channel, frameBuffer.pixels, frameBuffer.width, frameBuffer.height);
+        }
+    }
+
+    // Zapisy w tle wszystkich rendererów: jeden wątek, więc klatki są zapisywane w kolejności saveAsync
+    // (także kolejne klatki do tego samego pliku), i najwyżej SLOTS klatek czekających albo w zapisie.
+    // Wątek nie jest daemonem, żeby JVM nie kończyła się w połowie pliku, i znika po sekundzie bezczynności.
+    private static final class SaveQueue {
+        static final int SLOTS = 2;
+        static final Semaphore FREE = new Semaphore(SLOTS);
+        static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> new Thread(task, "Renderer.saveAsync"));
+
+        static {
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    // Zapis w tle: klatka jest kopiowana (jedna tablica int[], bez odwracania), a kodowanie idzie w wątku
+    // SaveQueue, więc zaraz po powrocie można czyścić bufor i rysować następną klatkę. Gdy w kolejce jest
+    // już SaveQueue.SLOTS klatek, saveAsync czeka na zwolnienie miejsca przed kopią - rysowanie szybsze od
+    // kodowania zwalnia do tempa zapisu, zamiast mnożyć kopie klatek. Future kończy się po zamknięciu
+    // pliku albo z wyjątkiem zapisu.
+    public CompletableFuture<Void> saveAsync() {
+        resolve();
+        SaveQueue.FREE.acquireUninterruptibly();
+        int[] pixels;
+        try {
+            pixels = frameBuffer.pixels.clone();
+        } catch (Throwable e) {
+            SaveQueue.FREE.release();  // np. OutOfMemoryError - miejsce w kolejce nie może przepaść
+            throw e;
+        }
+        int width = frameBuffer.width, height = frameBuffer.height;
+        String filename = this.filename;
+        ImageFormat format = this.format;
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        SaveQueue.EXECUTOR.execute(() -> {
+            try {
+                writeImage(format, filename, pixels, width, height);
+                result.complete(null);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                SaveQueue.FREE.release();
             }
+        });
+        return result;
+    }
+
+    private static void writeImage(ImageFormat format, String filename, int[] pixels, int width, int height)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeImage(format, channel, pixels, width, height);
         }
     }
 
+    // Formaty piszą wiersze od ostatniego, więc obraz jest odwrócony bez kopii (verticalFlip).
+    private static void writeImage(ImageFormat format, WritableByteChannel channel, int[] pixels, int width,
+                                   int height) throws IOException {
+        long start = RenderMetrics.start();
+        format.write(pixels, width, height, channel);
+        RenderMetrics.end(RenderMetrics.Stage.ENCODE, start, (long) width * height);
+    }
+
+    // czyści jednocześnie kolor (na czarno) i z-bufor, tak żeby renderer nadawał się do kolejnej klatki
+    public void clear() {
+        int black = 0 | (0 << 8) | (0 << 16) | (255 << 24);
+        clear(black);
+    }
+
+    public void clear(int color) {
+        frameBuffer.fill(color);
+        zbuffer.clear();
+        if (concurrentTarget != null) concurrentTarget.clear(color);
+    }
+
     public static BufferedImage verticalFlip(BufferedImage img) {
         int w = img.getWidth();
         int h = img.getHeight();
@@ -0,0 +1,97 @@
+package CGlab;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+// Wersja SIMD jądra z VectorKernels. Wymaga --add-modules jdk.incubator.vector zarówno przy
+// kompilacji, jak i przy uruchomieniu; bez tego VectorKernels.INSTANCE jest null i ta klasa nie
+// jest w ogóle ładowana.
+//
+// Rasteryzer liczy funkcje krawędziowe na longach (dokładnie, jak wersja skalarna), a głębokość na
+// double, więc liczba pasów to LongVector.SPECIES_PREFERRED.length(): 8 na AVX-512, 4 na AVX2.
+// Kolor i głębokość zapisujemy wektorami int/float o tej samej liczbie pasów.
+class SimdVectorKernels implements VectorKernels {
+
+    private static final VectorSpecies<Long> L = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = L.length();
+    private static final VectorSpecies<Integer> I = VectorSpecies.of(int.class, VectorShape.forBitSize(32 * LANES));
+    private static final VectorSpecies<Float> F = VectorSpecies.of(float.class, VectorShape.forBitSize(32 * LANES));
+
+    private static final LongVector LANE_INDEX_L = LongVector.zero(L).addIndex(1);
+    private static final DoubleVector LANE_INDEX_D = DoubleVector.zero(D).addIndex(1);
+    private static final IntVector LANE_INDEX_I = IntVector.zero(I).addIndex(1);
+
+    static {
+        if (DepthBuffer.TILE % LANES != 0) throw new ExceptionInInitializerError("unsupported vector width " + LANES);
+    }
+
+    @Override
+    public long rasterize(int[] pixels, DepthBuffer zbuffer, int width,
+                          int minX, int minY, int maxX, int maxY,
+                          long w0row, long w1row, long w2row,
+                          long w0dx, long w1dx, long w2dx,
+                          long w0dy, long w1dy, long w2dy,
+                          long bias0, long bias1, long bias2,
+                          double z00, double zdx, double zdy, int frameOffsetY,
+                          int color, boolean depthTest) {
+        float[] depth = zbuffer.depth;
+        IntVector colorVec = IntVector.broadcast(I, color);
+        FloatVector inf = FloatVector.broadcast(F, Float.POSITIVE_INFINITY);
+
+        // bloki zaczynają się na wielokrotności LANES, więc blok nigdy nie przecina kafelka Hi-Z
+        int startX = minX - minX % LANES;
+        long tested = 0, written = 0;
+        LongVector step0 = LANE_INDEX_L.mul(w0dx), step1 = LANE_INDEX_L.mul(w1dx), step2 = LANE_INDEX_L.mul(w2dx);
+        long x0dist = startX - minX; // <= 0: przesunięcie od minX do początku pierwszego bloku
+
+        for (int y = minY; y <= maxY; y++) {
+            int rowOffset = y * width;
+            double zRow = z00 + (y + frameOffsetY) * zdy;
+            long w0 = w0row + x0dist * w0dx, w1 = w1row + x0dist * w1dx, w2 = w2row + x0dist * w2dx;
+
+            for (int x = startX; x <= maxX; x += LANES) {
+                // piksele bloku poza [minX, maxX] są wyłączone maską
+                VectorMask<Integer> inRange = LANE_INDEX_I.add(x).compare(VectorOperators.GE, minX)
+                        .and(LANE_INDEX_I.add(x).compare(VectorOperators.LE, maxX));
+
+                LongVector e0 = step0.add(w0 + bias0);
+                LongVector e1 = step1.add(w1 + bias1);
+                LongVector e2 = step2.add(w2 + bias2);
+                VectorMask<Long> inside = e0.or(e1).or(e2).compare(VectorOperators.GE, 0L);
+                VectorMask<Integer> mask = inside.cast(I).and(inRange);
+
+                if (mask.anyTrue()) {
+                    int i = rowOffset + x;
+                    int lanes = mask.trueCount();
+                    tested += lanes;
+                    if (!depthTest) {
+                        colorVec.intoArray(pixels, i, mask);
+                        written += lanes;
+                    } else {
+                        DoubleVector zd = LANE_INDEX_D.add(x).mul(zdx).add(zRow);
+                        FloatVector z = (FloatVector) zd.convertShape(VectorOperators.D2F, F, 0);
+                        FloatVector old = FloatVector.fromArray(F, depth, i, mask.cast(F));
+                        VectorMask<Float> pass = z.compare(VectorOperators.LT, old).and(mask.cast(F));
+                        if (pass.anyTrue()) {
+                            written += pass.trueCount();
+                            colorVec.intoArray(pixels, i, pass.cast(I));
+                            z.intoArray(depth, i, pass);
+                            int newlyCovered = old.compare(VectorOperators.EQ, inf).and(pass).trueCount();
+                            zbuffer.markWritten(Math.max(x, minX), y, newlyCovered);
+                        }
+                    }
+                }
+                w0 += LANES * w0dx; w1 += LANES * w1dx; w2 += LANES * w2dx;
+            }
+            w0row += w0dy; w1row += w1dy; w2row += w2dy;
+        }
+        return (tested << 32) | written;
+    }
+}
@@ -0,0 +1,109 @@
+package CGlab;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Obrazy większe, niż zmieściłby zwykły renderer (plakat 32K x 32K to 4 GB koloru, 4 GB z-bufora i drugie
+// 4 GB na kopię z verticalFlip). Klatka jest rysowana pasami poziomymi po stripHeight wierszy jednym
+// FlatShadingRenderer o rozmiarze pasa: przed każdym pasem renderer dostaje przesunięcie w klatce
+// (setFrameRegion), scena jest rysowana od nowa (modele poza pasem odpadają na teście bryły widzenia),
+// a gotowy pas idzie wiersz po wierszu do PngWriter. Rzutowanie jest zawsze na całą klatkę, a pas odejmuje
+// rasteryzer w podpikselach (Renderer.frameOffsetY), więc obraz jest co do bitu taki jak klatka naraz.
+// Pasy idą od góry obrazu, a wiersze pasa od ostatniego, więc odwracanie nie jest potrzebne. Pamięć zależy
+// od szerokości i wysokości pasa, nie od wysokości obrazu.
+//
+// Koszt: każdy pas przepuszcza przez transformację i setup wszystkie modele, których prostopadłościan
+// otaczający go przecina, więc ta część pracy rośnie jak (liczba pasów) x (ściany modeli). Ściany spoza pasa
+// odpadają na outcode, zanim dojdą do rasteryzera, a rasteryzacja i kodowanie PNG kosztują tyle co klatka
+// naraz. Przy 4096 x 4096 i 400k ścian (sfera + teren, rozciągnięte na całą wysokość) transformacja i setup
+// to łącznie ok. 15 ms jednym pasem, 80 ms pasami po 256 wierszy i 250 ms pasami po 64, przy ok. 1.4 s
+// samego kodowania PNG - dlatego pasy nie powinny być dużo niższe niż DEFAULT_STRIP_HEIGHT.
+//
+// Scena to lista draw() zapamiętana do save() - geometria nie może się do tego czasu zmieniać (macierze
+// instancji są kopiowane). Ustawienia rysowania (światło, LOD, bufor widoczności itd.) przez getRenderer().
+// Bufory pasa są na stercie: rasteryzer i jądra SIMD piszą do int[] / float[], a MemorySegment wymaga
+// nowszego JDK niż ten, pod który budujemy.
+public class StripRenderer {
+
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+
+    private final String filename;
+    private final int width, height;
+    private final FlatShadingRenderer strip;
+    private final List<Geometry> geometries = new ArrayList<>();
+    private final List<Matrix4f> transforms = new ArrayList<>();
+    private int clearColor = 255 << 24;
+
+    public StripRenderer(String filename, int width, int height) {
+        this(filename, width, height, DEFAULT_STRIP_HEIGHT);
+    }
+
+    public StripRenderer(String filename, int width, int height, int stripHeight) {
+        this.filename = filename;
+        this.width = width;
+        this.height = height;
+        this.strip = new FlatShadingRenderer(filename, width, Math.min(stripHeight, height));
+    }
+
+    // renderer pasa - do ustawień rysowania; modele podajemy przez draw(), a zapis przez save() StripRenderer
+    public FlatShadingRenderer getRenderer() {
+        return strip;
+    }
+
+    public void setClearColor(int color) {
+        this.clearColor = color;
+    }
+
+    public void draw(Model model) {
+        draw(model, null);
+    }
+
+    public void draw(MeshInstance instance) {
+        draw(instance.getMesh(), instance.getTransform());
+    }
+
+    public void draw(Geometry geometry, Matrix4f world) {
+        geometries.add(geometry);
+        transforms.add(world == null ? null : new Matrix4f().set(world));
+    }
+
+    public void clear() {
+        geometries.clear();
+        transforms.clear();
+    }
+
+    public void save() throws IOException {
+        save(new BufferedOutputStream(new FileOutputStream(filename)));
+    }
+
+    // PNG do out (zamykanego po zapisie).
+    public void save(OutputStream out) throws IOException {
+        int stripHeight = strip.frameBuffer.height;
+        int[] pixels = strip.frameBuffer.pixels;
+        try (PngWriter png = new PngWriter(out, width, height)) {
+            for (int top = height; top > 0; top -= stripHeight) {
+                int bottom = Math.max(0, top - stripHeight);
+                strip.setFrameRegion(width, height, bottom);
+                strip.clear(clearColor);
+                for (int i = 0; i < geometries.size(); i++) strip.render(geometries.get(i), transforms.get(i));
+                strip.resolve();
+
+                long start = RenderMetrics.start();
+                for (int y = top - 1; y >= bottom; y--) png.writeRow(pixels, (y - bottom) * width);
+                RenderMetrics.end(RenderMetrics.Stage.ENCODE, start, (long) width * (top - bottom));
+            }
+        } finally {
+            strip.setFrameRegion(width, strip.frameBuffer.height, 0);
+        }
+    }
+
+    // pamięć buforów pasa: kolor, głębokość, piramida Hi-Z (bez buforów wierzchołków, zależnych od modeli)
+    public long getStripBytes() {
+        long pixels = (long) width * strip.frameBuffer.height;
+        return 4 * pixels + 4 * pixels + 4 * (pixels / (DepthBuffer.TILE * DepthBuffer.TILE) + 1);
+    }
+}
@@ -1,10 +1,15 @@
 package CGlab;
 
+// Operacje bez przyrostka zwracające Vec3f tworzą nowy obiekt; wersje Into zapisują wynik do dest
+// (może to być jeden z argumentów) i nic nie alokują - do używania w pętlach po ścianach.
 public class Vec3f {
     public float x;
     public float y;
     public float z;
 
+    public Vec3f() {
+    }
+
     public Vec3f(float x, float y, float z) {
         this.x = x;
         this.y = y;
@@ -24,6 +29,24 @@ public class Vec3f {
         return new Vec3f(crossX, crossY, crossZ);
     }
 
+    public Vec3f crossInto(Vec3f other, Vec3f dest) {
+        float crossX = this.y * other.z - this.z * other.y;
+        float crossY = this.z * other.x - this.x * other.z;
+        float crossZ = this.x * other.y - this.y * other.x;
+        return dest.set(crossX, crossY, crossZ);
+    }
+
+    public Vec3f set(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
+    public Vec3f set(Vec3f vec) {
+        return set(vec.x, vec.y, vec.z);
+    }
+
     public float dot(Vec3f other) {
         return this.x * other.x + this.y * other.y + this.z * other.z;
     }
@@ -42,6 +65,10 @@ public class Vec3f {
 
     }
 
+    public static Vec3f subInto(Vec3f a, Vec3f b, Vec3f dest) {
+        return dest.set(a.x - b.x, a.y - b.y, a.z - b.z);
+    }
+
     public void add(Vec3f vec) {
         this.x += vec.x;
         this.y += vec.y;
@@ -55,6 +82,10 @@ public class Vec3f {
         return new Vec3f(sumX, sumY, sumZ);
     }
 
+    public static Vec3f addInto(Vec3f a, Vec3f b, Vec3f dest) {
+        return dest.set(a.x + b.x, a.y + b.y, a.z + b.z);
+    }
+
     public void normalize() {
         float length = (float) Math.sqrt(this.x * this.x + this.y * this.y + this.z * this.z);
         this.x /= length;
@@ -1,11 +1,15 @@
 package CGlab;
 
+// Jak w Vec3f: wersje Into zapisują wynik do dest zamiast tworzyć nowy obiekt.
 public class Vec4f {
     public float x;
     public float y;
     public float z;
     public float w;
 
+    public Vec4f() {
+    }
+
     public Vec4f(float x, float y, float z, float w) {
         this.x = x;
         this.y = y;
@@ -39,6 +43,25 @@ public class Vec4f {
         return new Vec4f(crossX, crossY, crossZ, 0);
     }
 
+    public Vec4f cross3DInto(Vec4f other, Vec4f dest) {
+        float crossX = this.y * other.z - this.z * other.y;
+        float crossY = this.z * other.x - this.x * other.z;
+        float crossZ = this.x * other.y - this.y * other.x;
+        return dest.set(crossX, crossY, crossZ, 0);
+    }
+
+    public Vec4f set(float x, float y, float z, float w) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.w = w;
+        return this;
+    }
+
+    public Vec4f set(Vec4f vec) {
+        return set(vec.x, vec.y, vec.z, vec.w);
+    }
+
     public float dot(Vec4f other) {
         return this.x * other.x + this.y * other.y + this.z * other.z + this.w * other.w;
     }
@@ -59,6 +82,10 @@ public class Vec4f {
 
     }
 
+    public static Vec4f subInto(Vec4f a, Vec4f b, Vec4f dest) {
+        return dest.set(a.x - b.x, a.y - b.y, a.z - b.z, a.w - b.w);
+    }
+
     public void add(Vec4f vec) {
         this.x += vec.x;
         this.y += vec.y;
@@ -74,6 +101,10 @@ public class Vec4f {
         return new Vec4f(sumX, sumY, sumZ, sumW);
     }
 
+    public static Vec4f addInto(Vec4f a, Vec4f b, Vec4f dest) {
+        return dest.set(a.x + b.x, a.y + b.y, a.z + b.z, a.w + b.w);
+    }
+
     public void normalize() {
         float length = (float) Math.sqrt(this.x * this.x + this.y * this.y + this.z * this.z + this.w * this.w);
         this.x /= length;
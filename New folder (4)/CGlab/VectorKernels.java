@@ -0,0 +1,40 @@
+package CGlab;
+
+// Jądra obliczeniowe z wersją SIMD (SimdVectorKernels, zbudowane na jdk.incubator.vector).
+// Na razie tylko pętla rasteryzera - transformacja wierzchołków w wersji wektorowej była wolniejsza
+// od skalarnej, bo pozycje są przeplecione (xyz) i samo rozkładanie ich na wektory kosztuje więcej,
+// niż oszczędza mnożenie.
+//
+// Ten interfejs nie zależy od modułu inkubatora, więc reszta kodu kompiluje się i działa bez niego:
+// INSTANCE jest null, jeśli moduł nie został dodany do uruchomienia (--add-modules jdk.incubator.vector)
+// albo klasa SIMD nie daje się załadować - wtedy Renderer używa zwykłej pętli.
+//
+// PREFERRED mówi, czy włączać SIMD domyślnie: na JDK 17 inkubator kompiluje maski o różnych
+// kształtach (long -> int/float) do wolnego kodu i wersja wektorowa jest 2-4x wolniejsza.
+interface VectorKernels {
+
+    VectorKernels INSTANCE = load();
+    boolean PREFERRED = INSTANCE != null && Runtime.version().feature() >= 21;
+
+    // Wnętrze Renderer.rasterizeTriangle po przygotowaniu funkcji krawędziowych: przejście po
+    // bounding boxie [minX, maxX] x [minY, maxY], test pokrycia, test głębokości i zapis z maską.
+    // Głębokość wiersza y to z00 + (y + frameOffsetY) * zdy (zaczepiona w wierszu 0 klatki, nie obrazu).
+    // Zwraca (liczba pikseli wewnątrz trójkąta << 32) | liczba zapisanych pikseli, dla RenderMetrics.
+    long rasterize(int[] pixels, DepthBuffer zbuffer, int width,
+                   int minX, int minY, int maxX, int maxY,
+                   long w0row, long w1row, long w2row,
+                   long w0dx, long w1dx, long w2dx,
+                   long w0dy, long w1dy, long w2dy,
+                   long bias0, long bias1, long bias2,
+                   double z00, double zdx, double zdy, int frameOffsetY,
+                   int color, boolean depthTest);
+
+    private static VectorKernels load() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return null;
+        try {
+            return (VectorKernels) Class.forName("CGlab.SimdVectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package CGlab;
+
+import java.util.stream.IntStream;
+
+// Bufor wierzchołków po transformacji. Każdy wierzchołek modelu jest mnożony przez macierz raz,
+// a nie raz na każdą ścianę, do której należy (w zamkniętej siatce to ok. 6 razy mniej pracy).
+// W tym samym przebiegu robimy dzielenie perspektywiczne i wyznaczamy outcode wierzchołka, czyli
+// bity mówiące, po której stronie bryły widzenia leży. Ściana, której wszystkie trzy wierzchołki
+// mają wspólny bit, leży w całości poza ekranem i można ją odrzucić bez rasteryzacji.
+//
+// Wierzchołek v zajmuje screen[3*v .. 3*v+2] = (x / w, y / w, z) w pikselach ekranu, tak jak
+// liczył to wcześniej FlatShadingRenderer, oraz outcode[v]. Dla wierzchołków za płaszczyzną bliską
+// (OUT_NEAR) współrzędne ekranowe nie mają sensu - ściany z takimi wierzchołkami trzeba przyciąć
+// w przestrzeni obcinania (clipCoords, NearPlaneClipper); nearVertices mówi, czy w ogóle są takie.
+public class VertexBuffer {
+
+    public static final byte OUT_LEFT = 1;
+    public static final byte OUT_RIGHT = 2;
+    public static final byte OUT_BOTTOM = 4;
+    public static final byte OUT_TOP = 8;
+    public static final byte OUT_NEAR = 16;
+    public static final byte OUT_FAR = 32;
+
+    private static final int BATCH = 4096;
+
+    public float[] screen = new float[0];
+    public byte[] outcode = new byte[0];
+    public int vertexCount;
+    public boolean nearVertices;
+
+    private final Matrix4f matrix = new Matrix4f();  // macierz z ostatniego transform(), dla clipCoords
+
+    // M to pełna macierz model -> ekran (Mvp * Mper * Mcam, dla instancji jeszcze razy macierz modelu). near i far to płaszczyzny z kamery
+    // (ujemne, jak w FlatShadingRenderer); w = -z w układzie kamery, więc near/far sprawdzamy przez w.
+    // Zwarta siatka (QuantizedMesh) jest rozpakowywana partiami po BATCH wierzchołków do tablicy partii,
+    // więc nie powstaje żadna kopia pozycji całego modelu.
+    // Obraz to wiersze [offsetY, offsetY + height) klatki, na którą rzutuje M (StripRenderer; zwykle offsetY = 0).
+    public void transform(Geometry model, Matrix4f M, int width, int height, int offsetY, float near, float far,
+                          boolean parallel) {
+        vertexCount = model.getVertexCount();
+        if (screen.length < 3 * vertexCount) {
+            screen = new float[3 * vertexCount];
+            outcode = new byte[vertexCount];
+        }
+        QuantizedMesh quantized = model instanceof QuantizedMesh ? (QuantizedMesh) model : null;
+        float[] positions = quantized == null ? model.getPositions() : null;
+        matrix.set(M);
+        nearVertices = false;
+        int batches = (vertexCount + BATCH - 1) / BATCH;
+        if (parallel) {
+            IntStream.range(0, batches).parallel()
+                     .forEach(b -> transformBatch(quantized, positions, M, width, height, offsetY, -near, -far, b));
+        } else {
+            for (int b = 0; b < batches; b++) {
+                transformBatch(quantized, positions, M, width, height, offsetY, -near, -far, b);
+            }
+        }
+    }
+
+    private void transformBatch(QuantizedMesh quantized, float[] positions, Matrix4f M, int width, int height,
+                                int offsetY, float wNear, float wFar, int batch) {
+        int from = batch * BATCH, to = Math.min(vertexCount, from + BATCH);
+        if (quantized == null) {
+            transformRange(positions, 0, M, width, height, offsetY, wNear, wFar, from, to);
+        } else {
+            float[] local = new float[3 * (to - from)];
+            quantized.decodePositions(local, from, to);
+            transformRange(local, from, M, width, height, offsetY, wNear, wFar, from, to);
+        }
+    }
+
+    // positions[3 * (v - base) ..] to pozycja wierzchołka v
+    private void transformRange(float[] positions, int base, Matrix4f M, int width, int height, int offsetY,
+                                float wNear, float wFar, int from, int to) {
+        float m00 = M.data(0, 0), m01 = M.data(0, 1), m02 = M.data(0, 2), m03 = M.data(0, 3);
+        float m10 = M.data(1, 0), m11 = M.data(1, 1), m12 = M.data(1, 2), m13 = M.data(1, 3);
+        float m20 = M.data(2, 0), m21 = M.data(2, 1), m22 = M.data(2, 2), m23 = M.data(2, 3);
+        float m30 = M.data(3, 0), m31 = M.data(3, 1), m32 = M.data(3, 2), m33 = M.data(3, 3);
+
+        int any = 0;
+        for (int v = from; v < to; v++) {
+            int p = 3 * (v - base);
+            float x = positions[p], y = positions[p + 1], z = positions[p + 2];
+
+            float sx = m00*x + m01*y + m02*z + m03*1.0f;
+            float sy = m10*x + m11*y + m12*z + m13*1.0f;
+            float sz = m20*x + m21*y + m22*z + m23*1.0f;
+            float sw = m30*x + m31*y + m32*z + m33*1.0f;
+
+            int code = outcode(sx, sy, sw, width, height, offsetY, wNear, wFar);
+            outcode[v] = (byte) code;
+            any |= code;
+
+            screen[3 * v] = sx / sw;
+            screen[3 * v + 1] = sy / sw;
+            screen[3 * v + 2] = sz;
+        }
+        // zapis tylko true, więc wyścig między partiami jest nieszkodliwy; zakończenie strumienia
+        // w transform() daje widoczność dla wywołującego
+        if ((any & OUT_NEAR) != 0) nearVertices = true;
+    }
+
+    // Bity bryły widzenia dla punktu (sx, sy, ?, sw) po mnożeniu przez macierz model -> ekran.
+    // Mvp przesuwa x o w * width / 2, więc -w <= x_clip <= w to 0 <= sx <= width * w; w y obraz to wiersze
+    // [offsetY, offsetY + height) klatki, czyli offsetY * w <= sy <= (offsetY + height) * w. Dół z zapasem
+    // podpiksela: wierzchołek tuż pod wierszem offsetY rasteryzer może zaokrąglić na ten wiersz, a ściana
+    // odrzucona przez pas, a narysowana przez całą klatkę, byłaby różnicą na granicy pasów.
+    static int outcode(float sx, float sy, float sw, int width, int height, int offsetY, float wNear, float wFar) {
+        int code = 0;
+        if (sx < 0) code |= OUT_LEFT;
+        if (sx > width * sw) code |= OUT_RIGHT;
+        if (sy < (offsetY - 1.0f / Renderer.SUBPIXEL_ONE) * sw) code |= OUT_BOTTOM;
+        if (sy > (offsetY + height) * sw) code |= OUT_TOP;
+        if (!(sw >= wNear)) code |= OUT_NEAR; // także NaN
+        if (sw > wFar) code |= OUT_FAR;
+        return code;
+    }
+
+    // Współrzędne punktu modelu przed dzieleniem perspektywicznym (sx, sy, sz, sw), do out[offset..offset+3].
+    public void clipCoords(Vec3f position, float[] out, int offset) {
+        float x = position.x, y = position.y, z = position.z;
+        Matrix4f M = matrix;
+        out[offset] = M.data(0, 0)*x + M.data(0, 1)*y + M.data(0, 2)*z + M.data(0, 3)*1.0f;
+        out[offset + 1] = M.data(1, 0)*x + M.data(1, 1)*y + M.data(1, 2)*z + M.data(1, 3)*1.0f;
+        out[offset + 2] = M.data(2, 0)*x + M.data(2, 1)*y + M.data(2, 2)*z + M.data(2, 3)*1.0f;
+        out[offset + 3] = M.data(3, 0)*x + M.data(3, 1)*y + M.data(3, 2)*z + M.data(3, 3)*1.0f;
+    }
+}
@@ -0,0 +1,130 @@
+package CGlab;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Bufor widoczności: zamiast koloru rasteryzer zapisuje w pikselu numer trójkąta (id), a głębokość jak
+// zwykle w DepthBuffer. Cieniowanie odbywa się dopiero potem, w osobnym przebiegu: tylko ściany, które
+// faktycznie są gdzieś widoczne, są cieniowane (po razie na ścianę), a każdy piksel jest zapisywany raz.
+// Ten sam bufor wystarcza, żeby po zmianie światła przeliczyć obraz bez transformacji i rasteryzacji.
+//
+// Id jest globalne w obrębie klatki: każdy render() dostaje kolejny przedział numerów (draw), a piksel
+// przechowuje id + 1, bo 0 oznacza "nic tu nie narysowano" (tak jak kolor 0 oznacza ścianę pominiętą).
+public class VisibilityBuffer {
+
+    private static final int ROWS_PER_TASK = 16;
+
+    public final int width;
+    public final int height;
+    public final int[] ids;
+
+    // kolejne wywołania render(): geometria, jej macierz modelu (null = jednostkowa) i pierwszy numer
+    // jej ścian; macierze są kopiowane do puli, bo ta sama instancja może być narysowana w kilku miejscach
+    private Geometry[] models = new Geometry[4];
+    private Matrix4f[] transforms = new Matrix4f[4];
+    private Matrix4f[] transformPool = new Matrix4f[4];
+    private int[] bases = new int[5];
+    private int drawCount;
+
+    // wynik cieniowania: kolor każdej ściany, 0 dla ścian niewidocznych
+    private byte[] visible = new byte[0];
+    private int[] faceColors = new int[0];
+
+    public VisibilityBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.ids = new int[width * height];
+    }
+
+    public void clear() {
+        Arrays.fill(ids, 0);
+        Arrays.fill(models, 0, drawCount, null);
+        Arrays.fill(transforms, 0, drawCount, null);
+        drawCount = 0;
+    }
+
+    // Rezerwuje numery dla faceCount ścian modelu; ściana f dostaje id base + f.
+    public int addDraw(Geometry model, Matrix4f transform) {
+        if (drawCount == models.length) {
+            models = Arrays.copyOf(models, 2 * drawCount);
+            transforms = Arrays.copyOf(transforms, 2 * drawCount);
+            transformPool = Arrays.copyOf(transformPool, 2 * drawCount);
+            bases = Arrays.copyOf(bases, 2 * drawCount + 1);
+        }
+        if (transform != null) {
+            if (transformPool[drawCount] == null) transformPool[drawCount] = new Matrix4f();
+            transforms[drawCount] = transformPool[drawCount].set(transform);
+        }
+        int base = bases[drawCount];
+        long next = (long) base + model.getFaceCount();
+        if (next >= Integer.MAX_VALUE) throw new IllegalStateException("Too many faces in one frame: " + next);
+        models[drawCount++] = model;
+        bases[drawCount] = (int) next;
+        return base;
+    }
+
+    public int getDrawCount() {
+        return drawCount;
+    }
+
+    public Geometry getModel(int draw) {
+        return models[draw];
+    }
+
+    public Matrix4f getTransform(int draw) {
+        return transforms[draw];
+    }
+
+    public int getBase(int draw) {
+        return bases[draw];
+    }
+
+    public int getFaceCount() {
+        return bases[drawCount];
+    }
+
+    // Pierwszy krok rozwiązania: które ściany trafiły w co najmniej jeden piksel. Zwraca liczbę
+    // pokrytych pikseli. Równoległe zapisy tej samej jedynki do visible są nieszkodliwe.
+    int markVisible() {
+        int faces = getFaceCount();
+        if (visible.length < faces) {
+            visible = new byte[faces];
+            faceColors = new int[faces];
+        } else {
+            Arrays.fill(visible, 0, faces, (byte) 0);
+        }
+        byte[] visible = this.visible;
+        return IntStream.range(0, (height + ROWS_PER_TASK - 1) / ROWS_PER_TASK).parallel().map(task -> {
+            int covered = 0;
+            for (int i = task * ROWS_PER_TASK * width, end = Math.min(height, (task + 1) * ROWS_PER_TASK) * width;
+                 i < end; i++) {
+                int id = ids[i];
+                if (id != 0) {
+                    visible[id - 1] = 1;
+                    covered++;
+                }
+            }
+            return covered;
+        }).sum();
+    }
+
+    boolean isVisible(int id) {
+        return visible[id] != 0;
+    }
+
+    void setFaceColor(int id, int color) {
+        faceColors[id] = color;
+    }
+
+    // Ostatni krok: każdy pokryty piksel dostaje kolor swojej ściany, reszta obrazu zostaje bez zmian.
+    void writeColors(int[] pixels) {
+        int[] faceColors = this.faceColors;
+        IntStream.range(0, (height + ROWS_PER_TASK - 1) / ROWS_PER_TASK).parallel().forEach(task -> {
+            for (int i = task * ROWS_PER_TASK * width, end = Math.min(height, (task + 1) * ROWS_PER_TASK) * width;
+                 i < end; i++) {
+                int id = ids[i];
+                if (id != 0) pixels[i] = faceColors[id - 1];
+            }
+        });
+    }
+}
@@ -0,0 +1,32 @@
+package CGlab.benchmarks;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Punkt wejścia benchmarks.jar. Przyjmuje zwykłe opcje JMH (np. "Line -p length=256"), a jeśli nie
+// podano inaczej, dokłada profiler GC (bajty alokowane na operację: gc.alloc.rate.norm) i zapisuje
+// wyniki w JSON do results/jmh-<data>.json, żeby dało się je porównywać między wersjami.
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+
+        if (cmd.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!cmd.getResultFormat().hasValue() && !cmd.getResult().hasValue()) {
+            new File("results").mkdirs();
+            String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+            options.resultFormat(ResultFormatType.JSON).result("results/jmh-" + stamp + ".json");
+        }
+        new Runner(options.build()).run();
+    }
+}
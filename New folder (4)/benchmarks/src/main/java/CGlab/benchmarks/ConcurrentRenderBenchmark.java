@@ -0,0 +1,118 @@
+package CGlab.benchmarks;
+
+import CGlab.ConcurrentFrameBuffer;
+import CGlab.FlatShadingRenderer;
+import CGlab.MeshGenerator;
+import CGlab.Model;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Klatka z MODELS nakładających się modeli (trójkąty losowo rozrzucone w tej samej bryle, więc wątki
+// piszą w te same piksele) przy rosnącej liczbie wątków. mode:
+//  - sequential - jeden wątek, zwykły bufor (threads bez znaczenia, punkt odniesienia),
+//  - tiled      - zwykły bufor, kafelki rasteryzowane równolegle (drawTrianglesTiled),
+//  - batches    - ConcurrentFrameBuffer, partie ścian jednego modelu równolegle (drawTrianglesConcurrent),
+//  - models     - ConcurrentFrameBuffer wspólny dla threads rendererów, każdy rysuje swoje modele w jednym wątku.
+// Wszystko wykonuje się na ForkJoinPool o zadanej liczbie wątków (równoległe strumienie w środku też).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ConcurrentRenderBenchmark {
+
+    private static final int MODELS = 8;
+    private static final int WIDTH = 1920, HEIGHT = 1080;
+
+    @Param({"200000"})
+    public int triangles;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"sequential", "tiled", "batches", "models"})
+    public String mode;
+
+    private Model[] models;
+    private FlatShadingRenderer[] renderers;
+    private ForkJoinPool pool;
+    private List<Callable<Void>> perThread;
+
+    @Setup
+    public void setup() {
+        models = new Model[MODELS];
+        for (int m = 0; m < MODELS; m++) {
+            models[m] = MeshGenerator.soup(triangles / MODELS, m);
+        }
+        pool = new ForkJoinPool(threads);
+
+        boolean perModel = mode.equals("models");
+        renderers = new FlatShadingRenderer[perModel ? threads : 1];
+        ConcurrentFrameBuffer shared = new ConcurrentFrameBuffer(WIDTH, HEIGHT);
+        for (int r = 0; r < renderers.length; r++) {
+            FlatShadingRenderer renderer = new FlatShadingRenderer("concurrent.png", WIDTH, HEIGHT);
+            switch (mode) {
+                case "sequential": renderer.parallelRenderingOff(); break;
+                case "tiled": renderer.parallelRenderingOn(); break;
+                case "batches": renderer.parallelRenderingOn(); renderer.concurrentFrameBufferOn(); break;
+                case "models": renderer.parallelRenderingOff(); renderer.concurrentFrameBufferOn(shared); break;
+                default: throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+            renderers[r] = renderer;
+        }
+
+        perThread = new ArrayList<>();
+        for (int r = 0; r < renderers.length; r++) {
+            FlatShadingRenderer renderer = renderers[r];
+            int first = r;
+            perThread.add(() -> {
+                for (int m = first; m < MODELS; m += renderers.length) renderer.render(models[m]);
+                return null;
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public FlatShadingRenderer render() {
+        FlatShadingRenderer renderer = renderers[0];
+        renderer.clear(); // przy trybie models czyści też wspólny bufor pozostałych rendererów
+        if (mode.equals("sequential")) {
+            for (Model model : models) renderer.render(model);
+        } else if (mode.equals("models")) {
+            for (var result : pool.invokeAll(perThread)) {
+                try {
+                    result.get();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        } else {
+            pool.submit(() -> {
+                for (Model model : models) renderer.render(model);
+            }).join();
+        }
+        renderer.resolve();
+        return renderer;
+    }
+}
@@ -0,0 +1,53 @@
+package CGlab.benchmarks;
+
+import CGlab.Renderer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Jeden odcinek na operację dla każdego z algorytmów Renderer.LineAlgo. slope to dy/dx: 0 (poziomy),
+// 0.5, 1 (przekątna), 4 (stromy - osobna gałąź w Bresenhamie).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineBenchmark {
+
+    @Param({"NAIVE", "BRESENHAM", "BRESENHAM_INT"})
+    public Renderer.LineAlgo algo;
+
+    @Param({"16", "256", "1024"})
+    public int length;
+
+    @Param({"0", "0.5", "1", "4"})
+    public double slope;
+
+    private Renderer renderer;
+    private int x0, y0, x1, y1;
+
+    @Setup
+    public void setup() {
+        renderer = new Renderer("line.png", 1100, 1100, algo);
+        double dx = length / Math.sqrt(1 + slope * slope);
+        x0 = 10;
+        y0 = 10;
+        x1 = x0 + (int) Math.round(dx);
+        y1 = y0 + (int) Math.round(dx * slope);
+    }
+
+    @Benchmark
+    public void drawLine() {
+        renderer.drawLine(x0, y0, x1, y1, 0xffffffff);
+    }
+}
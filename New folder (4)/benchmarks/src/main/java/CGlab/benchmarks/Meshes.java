@@ -0,0 +1,44 @@
+package CGlab.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Siatki do benchmarków zapisywane jako OBJ, żeby nie zależeć od plików modeli na dysku.
+class Meshes {
+
+    // Falująca siatka n x n kwadratów (2 * n * n trójkątów) o boku 3, przesunięta przed kamerę
+    // tak, żeby w FlatShadingRenderer wypełniała większość obrazu.
+    static Path writeGrid(Path dir, int n) throws IOException {
+        Path path = dir.resolve("grid-" + n + ".obj");
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            for (int y = 0; y <= n; y++) {
+                for (int x = 0; x <= n; x++) {
+                    float fx = -1 + 2.0f * x / n, fy = -1 + 2.0f * y / n;
+                    float fz = 0.05f * (float) (Math.sin(fx * 7) * Math.cos(fy * 5)) - 2.0f;
+                    out.write("v " + 1.5f * fx + " " + (1.5f * fy + 1.0f) + " " + fz + "\n");
+                }
+            }
+            for (int y = 0; y < n; y++) {
+                for (int x = 0; x < n; x++) {
+                    int v = 1 + y * (n + 1) + x;
+                    out.write("f " + v + " " + (v + 1) + " " + (v + n + 2) + "\n");
+                    out.write("f " + v + " " + (v + n + 2) + " " + (v + n + 1) + "\n");
+                }
+            }
+        }
+        return path;
+    }
+
+    // Boki siatki dla zadanej liczby trójkątów (zaokrąglone w dół).
+    static int gridSide(int triangles) {
+        return Math.max(1, (int) Math.sqrt(triangles / 2.0));
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package CGlab.benchmarks;
+
+import CGlab.Model;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Model.readOBJ na wygenerowanej siatce: parsowanie tekstu (cache = false) albo wczytanie z MeshCache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjLoadBenchmark {
+
+    @Param({"20000", "500000"})
+    public int triangles;
+
+    @Param({"false", "true"})
+    public boolean cache;
+
+    private Path dir;
+    private String path;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("cglab-bench");
+        path = Meshes.writeGrid(dir, Meshes.gridSide(triangles)).toString();
+        if (cache) new Model().readOBJ(path, true); // zapisuje .mesh obok pliku
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Meshes.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Model readOBJ() throws IOException {
+        Model model = new Model();
+        model.readOBJ(path, cache);
+        return model;
+    }
+}
@@ -0,0 +1,63 @@
+package CGlab.benchmarks;
+
+import CGlab.FlatShadingRenderer;
+import CGlab.Model;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cała klatka: clear() + FlatShadingRenderer.render(model), bez zapisu do pliku.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class RenderBenchmark {
+
+    @Param({"20000", "500000"})
+    public int triangles;
+
+    @Param({"640x480", "1920x1080"})
+    public String resolution;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private FlatShadingRenderer renderer;
+    private Model model;
+
+    @Setup
+    public void setup() throws IOException {
+        Path dir = Files.createTempDirectory("cglab-bench");
+        try {
+            model = new Model();
+            model.readOBJ(Meshes.writeGrid(dir, Meshes.gridSide(triangles)).toString(), false);
+        } finally {
+            Meshes.deleteRecursively(dir);
+        }
+
+        String[] size = resolution.split("x");
+        renderer = new FlatShadingRenderer("render.png", Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        if (parallel) renderer.parallelRenderingOn(); else renderer.parallelRenderingOff();
+    }
+
+    @Benchmark
+    public FlatShadingRenderer render() {
+        renderer.clear();
+        renderer.render(model);
+        return renderer;
+    }
+}
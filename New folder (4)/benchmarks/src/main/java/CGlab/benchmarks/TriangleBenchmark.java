@@ -0,0 +1,80 @@
+package CGlab.benchmarks;
+
+import CGlab.Renderer;
+import CGlab.Vec3f;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Rasteryzacja pojedynczego trójkąta z testem głębokości. size to szerokość bounding boxa w pikselach,
+// aspect to stosunek szerokości do wysokości (duży = długie, cienkie trójkąty, dużo pustego bboxa).
+// simd = true porównuje pętlę z jdk.incubator.vector ze skalarną (patrz VectorKernels).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class TriangleBenchmark {
+
+    private static final int WIDTH = 1024, HEIGHT = 1024;
+    private static final int TRIANGLES = 256;   // trójkąty w różnych miejscach, żeby nie mierzyć jednego fragmentu pamięci
+    private static final int CLEAR_EVERY = 1 << 20;
+
+    @Param({"4", "32", "256"})
+    public int size;
+
+    @Param({"1", "8"})
+    public int aspect;
+
+    @Param({"false", "true"})
+    public boolean simd;
+
+    private Renderer renderer;
+    private Vec3f[] vertices;
+    private int next;
+    private float z;
+
+    @Setup
+    public void setup() {
+        renderer = new Renderer("triangle.png", WIDTH, HEIGHT);
+        if (simd) renderer.simdOn(); else renderer.simdOff();
+        renderer.clear();
+
+        Random random = new Random(1);
+        int h = Math.max(1, size / aspect);
+        vertices = new Vec3f[3 * TRIANGLES];
+        for (int i = 0; i < TRIANGLES; i++) {
+            float x = random.nextInt(WIDTH - size), y = random.nextInt(HEIGHT - h);
+            vertices[3 * i] = new Vec3f(x, y, 0);
+            vertices[3 * i + 1] = new Vec3f(x + size, y + h * 0.3f, 0);
+            vertices[3 * i + 2] = new Vec3f(x + size * 0.4f, y + h, 0);
+        }
+        z = 0;
+    }
+
+    @Benchmark
+    public void drawTriangle() {
+        int i = next;
+        next = (i + 1) % TRIANGLES;
+        // każdy kolejny trójkąt jest bliżej, więc test głębokości przechodzi jak przy rysowaniu od tyłu;
+        // z-bufor czyścimy co jakiś czas, zanim z straci precyzję
+        if (--z < -CLEAR_EVERY) {
+            renderer.getZBuffer().clear();
+            z = 0;
+        }
+        Vec3f a = vertices[3 * i], b = vertices[3 * i + 1], c = vertices[3 * i + 2];
+        a.z = z; b.z = z; c.z = z;
+        renderer.drawTriangle(a, b, c, 0xff808080);
+    }
+}